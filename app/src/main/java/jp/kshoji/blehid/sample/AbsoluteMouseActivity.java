@@ -76,7 +76,7 @@ public class AbsoluteMouseActivity extends AbstractBleActivity {
         super.onDestroy();
         
         if (mouse != null) {
-            mouse.stopAdvertising();
+            mouse.close();
         }
     }
 }
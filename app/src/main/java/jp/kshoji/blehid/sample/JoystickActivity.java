@@ -101,6 +101,7 @@ public class JoystickActivity extends AbstractBleActivity implements SensorEvent
     void setupBlePeripheralProvider() {
         joystick = new JoystickPeripheral(this);
         joystick.setDeviceName(getString(string.ble_joystick));
+        joystick.setLatestStateWins(true);
         joystick.startAdvertising();
     }
 
@@ -139,7 +140,7 @@ public class JoystickActivity extends AbstractBleActivity implements SensorEvent
         sensorManager.unregisterListener(this, accelerometerSensor);
                 
         if (joystick != null) {
-            joystick.stopAdvertising();
+            joystick.close();
         }
     }
 }
@@ -30,7 +30,10 @@ public class KeyboardActivity extends AbstractBleActivity {
             @Override
             public void onClick(final View view) {
                 if (keyboard != null) {
-                    keyboard.sendKeys(((TextView) findViewById(id.editText)).getText().toString());
+                    final String text = ((TextView) findViewById(id.editText)).getText().toString();
+
+                    // typed on the GATT thread as the input report queue frees up
+                    keyboard.typeText(text, null);
                 }
             }
         });
@@ -48,7 +51,7 @@ public class KeyboardActivity extends AbstractBleActivity {
         super.onDestroy();
         
         if (keyboard != null) {
-            keyboard.stopAdvertising();
+            keyboard.close();
         }
     }
 }
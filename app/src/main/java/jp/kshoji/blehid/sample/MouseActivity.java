@@ -5,7 +5,7 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
 
-import jp.kshoji.blehid.MousePeripheral;
+import jp.kshoji.blehid.HighResolutionMousePeripheral;
 import jp.kshoji.blehid.sample.R.id;
 import jp.kshoji.blehid.sample.R.layout;
 import jp.kshoji.blehid.sample.R.string;
@@ -23,7 +23,7 @@ import static android.view.MotionEvent.ACTION_UP;
  */
 public class MouseActivity extends AbstractBleActivity {
 
-    private MousePeripheral mouse;
+    private HighResolutionMousePeripheral mouse;
     private float X, Y, firstX, firstY;
     private int maxPointerCount;
 
@@ -83,8 +83,10 @@ public class MouseActivity extends AbstractBleActivity {
 
     @Override
     void setupBlePeripheralProvider() {
-        mouse = new MousePeripheral(this);
+        // keep HID output independent from touch processing on the main thread
+        mouse = new HighResolutionMousePeripheral(this, null);
         mouse.setDeviceName(getString(string.ble_mouse));
+        mouse.setMotionCoalescing(true);
         mouse.startAdvertising();
     }
 
@@ -93,7 +95,7 @@ public class MouseActivity extends AbstractBleActivity {
         super.onDestroy();
         
         if (mouse != null) {
-            mouse.stopAdvertising();
+            mouse.close();
         }
     }
 }
@@ -0,0 +1,48 @@
+package jp.kshoji.blehid.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import jp.kshoji.blehid.util.BleUuidUtils;
+
+/**
+ * UUID conversions and matching, used on each GATT request
+ *
+ * @author K.Shoji
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BleUuidUtilsBenchmark {
+    private final UUID report = BleUuidUtils.fromShortValue(0x2A4D);
+    private final UUID reportCopy = BleUuidUtils.fromShortValue(0x2A4D);
+    private final UUID reportMap = BleUuidUtils.fromShortValue(0x2A4B);
+    private int shortValue = 0x2A4D;
+
+    @Benchmark
+    public boolean matchesSame() {
+        return BleUuidUtils.matches(report, reportCopy);
+    }
+
+    @Benchmark
+    public boolean matchesDifferent() {
+        return BleUuidUtils.matches(report, reportMap);
+    }
+
+    @Benchmark
+    public UUID fromShortValue() {
+        return BleUuidUtils.fromShortValue(shortValue);
+    }
+
+    @Benchmark
+    public int toShortValue() {
+        return BleUuidUtils.toShortValue(report);
+    }
+}
@@ -0,0 +1,80 @@
+package jp.kshoji.blehid.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.kshoji.blehid.KeyboardPeripheral;
+import jp.kshoji.blehid.util.KeyboardLayout;
+
+/**
+ * Translation from text to key reports, as {@link KeyboardPeripheral#sendKeys(String)} does
+ *
+ * @author K.Shoji
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyboardTranslationBenchmark {
+    @Param({"The quick brown fox jumps over the lazy dog.", "P@ssw0rd! {[(<>)]} ~`|\\\"';:"})
+    public String text;
+
+    @Benchmark
+    public void translateText(final Blackhole blackhole) {
+        for (int i = 0; i < text.length(); ) {
+            final int codePoint = text.codePointAt(i);
+            blackhole.consume(KeyboardPeripheral.modifier(codePoint));
+            blackhole.consume(KeyboardPeripheral.keyCode(codePoint));
+            i += Character.charCount(codePoint);
+        }
+    }
+
+    @Benchmark
+    public void translateTextByLayout(final Blackhole blackhole) {
+        for (int i = 0; i < text.length(); ) {
+            final int codePoint = text.codePointAt(i);
+            blackhole.consume(KeyboardLayout.DE.getDeadKeyStroke(codePoint));
+            blackhole.consume(KeyboardLayout.DE.getKeyStroke(codePoint));
+            i += Character.charCount(codePoint);
+        }
+    }
+
+    /**
+     * Translation through the String API, with a substring per character
+     */
+    @Benchmark
+    public void translateTextByString(final Blackhole blackhole) {
+        for (int i = 0; i < text.length(); i++) {
+            final String key = text.substring(i, i + 1);
+            blackhole.consume(KeyboardPeripheral.modifier(key));
+            blackhole.consume(KeyboardPeripheral.keyCode(key));
+        }
+    }
+
+    @Benchmark
+    public byte modifier() {
+        return KeyboardPeripheral.modifier("A");
+    }
+
+    @Benchmark
+    public byte keyCode() {
+        return KeyboardPeripheral.keyCode("~");
+    }
+
+    @Benchmark
+    public byte modifierByChar() {
+        return KeyboardPeripheral.modifier('A');
+    }
+
+    @Benchmark
+    public byte keyCodeByChar() {
+        return KeyboardPeripheral.keyCode('~');
+    }
+}
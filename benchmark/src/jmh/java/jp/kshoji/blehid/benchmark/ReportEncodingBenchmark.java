@@ -0,0 +1,136 @@
+package jp.kshoji.blehid.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapBuilder;
+import jp.kshoji.blehid.util.ReportMapParser;
+
+/**
+ * Encoding of the mouse and joystick Input Reports, with the same layouts as MousePeripheral and JoystickPeripheral
+ *
+ * @author K.Shoji
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ReportEncodingBenchmark {
+    private ReportField mouseButtons;
+    private ReportField mouseX;
+    private ReportField mouseY;
+    private ReportField mouseWheel;
+    private byte[] mouseReport;
+
+    private ReportField joystickButtons;
+    private ReportField joystickX;
+    private ReportField joystickY;
+    private ReportField joystickZ;
+    private ReportField joystickRx;
+    private byte[] joystickReport;
+    private byte[] joystickReportMap;
+
+    private int step;
+
+    @Setup
+    public void setUp() {
+        final ReportLayout mouse = pointerLayout(0x02, 3, 0x30, 0x31, 0x38)
+                .input(ReportField.FLAG_VARIABLE | ReportField.FLAG_RELATIVE)
+                .endCollection()
+                .endCollection()
+                .build();
+        mouseButtons = mouse.getField(ReportField.TYPE_INPUT, 0, 0x09, 0x01);
+        mouseX = mouse.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x30);
+        mouseY = mouse.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x31);
+        mouseWheel = mouse.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x38);
+        mouseReport = new byte[mouse.getReportSize(ReportField.TYPE_INPUT, 0)];
+
+        final ReportLayout joystick = pointerLayout(0x04, 4, 0x30, 0x31, 0x32, 0x33)
+                .input(ReportField.FLAG_VARIABLE)
+                .endCollection()
+                .endCollection()
+                .build();
+        joystickButtons = joystick.getField(ReportField.TYPE_INPUT, 0, 0x09, 0x01);
+        joystickX = joystick.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x30);
+        joystickY = joystick.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x31);
+        joystickZ = joystick.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x32);
+        joystickRx = joystick.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x33);
+        joystickReport = new byte[joystick.getReportSize(ReportField.TYPE_INPUT, 0)];
+        joystickReportMap = joystick.getReportMap();
+    }
+
+    /**
+     * Builds the pointer layout up to the axes main item
+     *
+     * @param usage the application usage
+     * @param axisCount the number of axes
+     * @param axisUsages the axis usages
+     * @return the builder
+     */
+    private static ReportMapBuilder pointerLayout(final int usage, final int axisCount, final int... axisUsages) {
+        final ReportMapBuilder builder = new ReportMapBuilder()
+                .usagePage(0x01)
+                .usage(usage)
+                .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+                .collection(ReportMapBuilder.COLLECTION_PHYSICAL)
+                .usagePage(0x09)
+                .usageMinimum(0x01)
+                .usageMaximum(0x03)
+                .logicalMinimum(0)
+                .logicalMaximum(1)
+                .reportCount(3)
+                .reportSize(1)
+                .input(ReportField.FLAG_VARIABLE)
+                .reportCount(1)
+                .reportSize(5)
+                .input(ReportField.FLAG_CONSTANT)
+                .usagePage(0x01);
+        for (final int axisUsage : axisUsages) {
+            builder.usage(axisUsage);
+        }
+        return builder
+                .logicalMinimum(-127)
+                .logicalMaximum(127)
+                .reportSize(8)
+                .reportCount(axisCount);
+    }
+
+    @Benchmark
+    public byte[] encodeMouseReport() {
+        final int value = (step++ & 0x1ff) - 256;
+        mouseButtons.setBitmap(mouseReport, step & 7);
+        mouseX.set(mouseReport, value);
+        mouseY.set(mouseReport, -value);
+        mouseWheel.set(mouseReport, value >> 4);
+        return mouseReport;
+    }
+
+    @Benchmark
+    public byte[] encodeJoystickReport() {
+        final int value = (step++ & 0x1ff) - 256;
+        joystickButtons.setBitmap(joystickReport, step & 7);
+        joystickX.set(joystickReport, value);
+        joystickY.set(joystickReport, -value);
+        joystickZ.set(joystickReport, value >> 1);
+        joystickRx.set(joystickReport, value >> 2);
+        return joystickReport;
+    }
+
+    @Benchmark
+    public int decodeMouseReport() {
+        return mouseButtons.getBitmap(mouseReport) + mouseX.get(mouseReport) + mouseY.get(mouseReport) + mouseWheel.get(mouseReport);
+    }
+
+    @Benchmark
+    public ReportLayout parseJoystickReportMap() {
+        return ReportMapParser.parse(joystickReportMap);
+    }
+}
@@ -0,0 +1,105 @@
+package jp.kshoji.blehid.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.kshoji.blehid.util.ReportRingBuffer;
+
+/**
+ * Input Report queueing and draining, as HidPeripheral does with its Input Report queue
+ *
+ * @author K.Shoji
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReportQueueBenchmark {
+    private static final int REPORT_SIZE = 8;
+
+    /**
+     * Queue used by a single thread
+     */
+    @State(Scope.Thread)
+    public static class SingleThreadQueue {
+        @Param({"OVERFLOW_DROP_OLDEST", "OVERFLOW_COALESCE"})
+        public String overflowPolicy;
+
+        ReportRingBuffer queue;
+
+        @Setup
+        public void setUp() throws Exception {
+            queue = new ReportRingBuffer(32, REPORT_SIZE);
+            queue.setOverflowPolicy(ReportRingBuffer.class.getField(overflowPolicy).getInt(null));
+        }
+    }
+
+    /**
+     * Queue shared by the producers and the consumer
+     */
+    @State(Scope.Group)
+    public static class SharedQueue {
+        ReportRingBuffer queue;
+
+        @Setup
+        public void setUp() {
+            queue = new ReportRingBuffer(32, REPORT_SIZE);
+            // producers must not wait for the consumer, the drops are the cost of the contention
+            queue.setOverflowPolicy(ReportRingBuffer.OVERFLOW_DROP_OLDEST);
+        }
+    }
+
+    @Benchmark
+    public byte[] enqueueAndDrain(final SingleThreadQueue state) {
+        final byte[] report = state.queue.claim(false);
+        if (report != null) {
+            report[0] = 1;
+            state.queue.commit(REPORT_SIZE);
+        }
+        return state.queue.poll();
+    }
+
+    @Benchmark
+    public byte[] enqueueMergeAndDrain(final SingleThreadQueue state) {
+        byte[] report = state.queue.claim(false);
+        if (report != null) {
+            state.queue.commit(REPORT_SIZE);
+        }
+        report = state.queue.claimNewest();
+        if (report != null) {
+            report[1]++;
+            state.queue.commit(REPORT_SIZE);
+        }
+        return state.queue.poll();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void produce(final SharedQueue state) {
+        final byte[] report = state.queue.claim(false);
+        if (report != null) {
+            report[0] = 1;
+            state.queue.commit(REPORT_SIZE);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public byte[] drain(final SharedQueue state) {
+        final byte[] report = state.queue.peek();
+        if (report != null) {
+            state.queue.removePeeked();
+        }
+        return report;
+    }
+}
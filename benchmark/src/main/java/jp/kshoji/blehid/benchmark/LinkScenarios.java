@@ -0,0 +1,191 @@
+package jp.kshoji.blehid.benchmark;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+
+import jp.kshoji.blehid.core.HidPipeline;
+import jp.kshoji.blehid.core.SimulatedCentral;
+import jp.kshoji.blehid.core.VirtualScheduler;
+import jp.kshoji.blehid.util.LatencyHistogram;
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapBuilder;
+import jp.kshoji.blehid.util.ReportRingBuffer;
+
+/**
+ * End-to-end scenarios over a simulated BLE link, on a virtual clock<br />
+ * Prints the delay from the input events to the host and the sustained report rate of each scenario.
+ * Exits with 1 if any input event has not arrived at the host, so that the scenarios can be run on CI.
+ *
+ * @author K.Shoji
+ */
+public final class LinkScenarios {
+    private static final long SEED = 1;
+    private static final int MOUSE_SENDING_RATE = 10;
+    private static final long DRAIN_MILLIS = 2000;
+
+    /**
+     * Same layout as MousePeripheral
+     */
+    private static final ReportLayout MOUSE_LAYOUT = new ReportMapBuilder()
+            .usagePage(0x01)                  // Generic Desktop
+            .usage(0x02)                      // Mouse
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .usage(0x01)                      //  Pointer
+            .collection(ReportMapBuilder.COLLECTION_PHYSICAL)
+            .usagePage(0x09)                  //   Buttons
+            .usageMinimum(0x01)
+            .usageMaximum(0x03)
+            .logicalMinimum(0)
+            .logicalMaximum(1)
+            .reportCount(3)                   //   3 bits (Buttons)
+            .reportSize(1)
+            .input(ReportField.FLAG_VARIABLE)
+            .reportCount(1)                   //   5 bits (Padding)
+            .reportSize(5)
+            .input(ReportField.FLAG_CONSTANT)
+            .usagePage(0x01)                  //   Generic Desktop
+            .usage(0x30)                      //   X
+            .usage(0x31)                      //   Y
+            .usage(0x38)                      //   Wheel
+            .logicalMinimum(-127)
+            .logicalMaximum(127)
+            .reportSize(8)                    //   Three bytes
+            .reportCount(3)
+            .input(ReportField.FLAG_VARIABLE | ReportField.FLAG_RELATIVE)
+            .endCollection()
+            .endCollection()
+            .build();
+
+    private static final ReportField BUTTONS = MOUSE_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x09, 0x01);
+    private static final ReportField X = MOUSE_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x30);
+    private static final int MOUSE_REPORT_SIZE = MOUSE_LAYOUT.getReportSize(ReportField.TYPE_INPUT, 0);
+
+    private LinkScenarios() {
+    }
+
+    public static void main(final String[] args) {
+        boolean passed = true;
+        passed &= mouseDrag("MouseActivity drag 120 Hz / 30 ms interval", 120, 30, 4, 0f);
+        passed &= mouseDrag("MouseActivity drag 120 Hz / 30 ms, 5% loss", 120, 30, 4, 0.05f);
+        passed &= mouseDrag("MouseActivity drag 120 Hz / 15 ms interval", 120, 15, 4, 0f);
+        passed &= reportBurst("Report burst 1 kHz / 15 ms interval", 15, 6, 0f);
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Drags the mouse with the left button for 2 seconds, merging the movements into the waiting report as MousePeripheral does
+     *
+     * @param name the scenario name
+     * @param eventRate the input events per second
+     * @param connectionInterval the connection interval in milliseconds
+     * @param notificationsPerInterval the notifications sent on each connection event
+     * @param packetLossRate the packet loss rate
+     * @return true if all events have arrived
+     */
+    private static boolean mouseDrag(@NonNull final String name, final int eventRate, final int connectionInterval, final int notificationsPerInterval, final float packetLossRate) {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final SimulatedCentral central = new SimulatedCentral(scheduler, connectionInterval, notificationsPerInterval, HidPipeline.DEFAULT_ATT_MTU, packetLossRate, SEED);
+        final HidPipeline pipeline = new HidPipeline(MOUSE_LAYOUT, new int[] {0}, 128, MOUSE_REPORT_SIZE, MOUSE_SENDING_RATE, central);
+        central.setMotionUsage(0x01, 0x30);
+        connect(scheduler, central, pipeline);
+
+        final long startedAt = scheduler.uptimeMillis();
+        for (int i = 0; i < eventRate * 2; i++) {
+            scheduler.advanceTo(startedAt + i * 1000L / eventRate);
+            central.markMotionEvent(2);
+            movePointer(pipeline, 2);
+        }
+        scheduler.advanceBy(DRAIN_MILLIS);
+
+        return printResult(name, central);
+    }
+
+    /**
+     * Sends a report per millisecond for 200 milliseconds, without merging
+     *
+     * @param name the scenario name
+     * @param connectionInterval the connection interval in milliseconds
+     * @param notificationsPerInterval the notifications sent on each connection event
+     * @param packetLossRate the packet loss rate
+     * @return true if all events have arrived
+     */
+    private static boolean reportBurst(@NonNull final String name, final int connectionInterval, final int notificationsPerInterval, final float packetLossRate) {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final SimulatedCentral central = new SimulatedCentral(scheduler, connectionInterval, notificationsPerInterval, HidPipeline.DEFAULT_ATT_MTU, packetLossRate, SEED);
+        final HidPipeline pipeline = new HidPipeline(MOUSE_LAYOUT, new int[] {0}, 256, MOUSE_REPORT_SIZE, MOUSE_SENDING_RATE, central);
+        pipeline.setInputReportOverflowPolicy(ReportRingBuffer.OVERFLOW_DROP_NEWEST);
+        pipeline.setSendMode(HidPipeline.SEND_MODE_EVENT);
+        pipeline.setMaxInputReportsPerTick(notificationsPerInterval);
+        connect(scheduler, central, pipeline);
+
+        final byte[] report = new byte[MOUSE_REPORT_SIZE];
+        for (int i = 0; i < 200; i++) {
+            scheduler.advanceBy(1);
+            X.set(report, i % 2 == 0 ? 1 : -1);
+            central.markInputEvent();
+            pipeline.addInputReport(0, report);
+        }
+        scheduler.advanceBy(DRAIN_MILLIS);
+
+        return printResult(name, central);
+    }
+
+    /**
+     * Starts the pipeline, and waits until the central has subscribed
+     *
+     * @param scheduler the scheduler
+     * @param central the central
+     * @param pipeline the pipeline
+     */
+    private static void connect(@NonNull final VirtualScheduler scheduler, @NonNull final SimulatedCentral central, @NonNull final HidPipeline pipeline) {
+        pipeline.start(scheduler);
+        central.connect();
+        while (central.getState() != SimulatedCentral.STATE_SUBSCRIBED) {
+            scheduler.advanceBy(1);
+        }
+    }
+
+    /**
+     * Moves the pointer to the right with the left button, merging into the waiting report as MousePeripheral#movePointer does
+     *
+     * @param pipeline the pipeline
+     * @param dx delta X
+     */
+    private static void movePointer(@NonNull final HidPipeline pipeline, int dx) {
+        final byte[] newest = pipeline.claimNewestInputReport();
+        if (newest != null) {
+            final int queuedDx = X.get(newest);
+            X.set(newest, queuedDx + dx);
+            dx -= X.get(newest) - queuedDx;
+            pipeline.commitInputReport(0, MOUSE_REPORT_SIZE);
+            if (dx == 0) {
+                return;
+            }
+        }
+
+        final byte[] report = pipeline.claimInputReport();
+        if (report != null) {
+            BUTTONS.setBitmap(report, 1);
+            X.set(report, dx);
+            pipeline.commitInputReport(0, MOUSE_REPORT_SIZE);
+        }
+    }
+
+    /**
+     * Prints the result of the scenario
+     *
+     * @param name the scenario name
+     * @param central the central
+     * @return true if all events have arrived
+     */
+    private static boolean printResult(@NonNull final String name, @NonNull final SimulatedCentral central) {
+        final LatencyHistogram latency = central.getLatencyHistogram();
+        System.out.println(String.format(Locale.US, "%-45s setup: %4d ms, rate: %6.1f reports/s, latency p50: %6.1f ms, p99: %6.1f ms, max: %6.1f ms, lost: %d, busy: %d, pending: %d",
+                name, central.getSetupMillis(), central.getReportsPerSecond(),
+                latency.getPercentileMicros(50) / 1000f, latency.getPercentileMicros(99) / 1000f, latency.getMaxMicros() / 1000f,
+                central.getLostPacketCount(), central.getBusyCount(), central.getPendingEventCount()));
+        return central.getPendingEventCount() == 0;
+    }
+}
@@ -0,0 +1,186 @@
+package jp.kshoji.blehid;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.Map;
+
+import jp.kshoji.blehid.core.HidPipeline;
+import jp.kshoji.blehid.util.LatencyHistogram;
+
+/**
+ * Snapshot of the Input Report pipeline metrics, obtained by {@link HidPipeline#getMetrics()}
+ *
+ * @author K.Shoji
+ */
+public final class HidMetrics {
+    private final long timestamp;
+    private final int queueDepth;
+    private final int queueCapacity;
+    private final long enqueuedCount;
+    private final long sentCount;
+    private final long droppedCount;
+    private final long coalescedCount;
+    private final long notificationBusyCount;
+    private final long notificationFailureCount;
+    private final long oversizedCount;
+    private final float sendRate;
+    private final LatencyHistogram latencyHistogram;
+    private final Map<String, Long> deviceNotificationFailureCounts;
+
+    /**
+     * Listener for the metrics reported periodically
+     */
+    public interface Listener {
+        /**
+         * Called on the sending thread with the metrics
+         *
+         * @param metrics the snapshot
+         */
+        void onMetrics(@NonNull HidMetrics metrics);
+    }
+
+    /**
+     * Constructor
+     */
+    public HidMetrics(final long timestamp, final int queueDepth, final int queueCapacity, final long enqueuedCount, final long sentCount, final long droppedCount, final long coalescedCount, final long notificationBusyCount, final long notificationFailureCount, final long oversizedCount, final float sendRate, @NonNull final LatencyHistogram latencyHistogram, @NonNull final Map<String, Long> deviceNotificationFailureCounts) {
+        this.timestamp = timestamp;
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+        this.enqueuedCount = enqueuedCount;
+        this.sentCount = sentCount;
+        this.droppedCount = droppedCount;
+        this.coalescedCount = coalescedCount;
+        this.notificationBusyCount = notificationBusyCount;
+        this.notificationFailureCount = notificationFailureCount;
+        this.oversizedCount = oversizedCount;
+        this.sendRate = sendRate;
+        this.latencyHistogram = latencyHistogram;
+        this.deviceNotificationFailureCounts = Collections.unmodifiableMap(deviceNotificationFailureCounts);
+    }
+
+    /**
+     * Obtains the time the snapshot was taken
+     *
+     * @return the time from {@link android.os.SystemClock#uptimeMillis()}
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Obtains the number of Input Reports waiting in the queue
+     *
+     * @return the number of reports
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Obtains the capacity of the Input Report queue
+     *
+     * @return the number of reports
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Obtains the number of Input Reports queued
+     *
+     * @return the number of reports
+     */
+    public long getEnqueuedCount() {
+        return enqueuedCount;
+    }
+
+    /**
+     * Obtains the number of Input Reports notified to at least one connected device
+     *
+     * @return the number of reports
+     */
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Obtains the number of Input Reports dropped by the overflow policy, or because no device could receive them
+     *
+     * @return the number of reports
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Obtains the number of Input Reports merged into the queued report
+     *
+     * @return the number of reports
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * Obtains the number of notifications refused by the stack, and retried later
+     *
+     * @return the number of notifications
+     */
+    public long getNotificationBusyCount() {
+        return notificationBusyCount;
+    }
+
+    /**
+     * Obtains the number of notifications failed
+     *
+     * @return the number of notifications
+     */
+    public long getNotificationFailureCount() {
+        return notificationFailureCount;
+    }
+
+    /**
+     * Obtains the number of Input Reports skipped for devices, because they did not fit the MTU
+     *
+     * @return the number of reports
+     */
+    public long getOversizedCount() {
+        return oversizedCount;
+    }
+
+    /**
+     * Obtains the effective send rate
+     *
+     * @return the number of Input Reports sent per second
+     */
+    public float getSendRate() {
+        return sendRate;
+    }
+
+    /**
+     * Obtains the latency from queueing an Input Report to notifying it, in all send modes
+     *
+     * @return the histogram, a copy taken with the snapshot
+     */
+    @NonNull
+    public LatencyHistogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    /**
+     * Obtains the number of notifications failed for each connected device
+     *
+     * @return the counts by the device address
+     */
+    @NonNull
+    public Map<String, Long> getDeviceNotificationFailureCounts() {
+        return deviceNotificationFailureCounts;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "queue: " + queueDepth + "/" + queueCapacity + ", enqueued: " + enqueuedCount + ", sent: " + sentCount + ", dropped: " + droppedCount + ", coalesced: " + coalescedCount + ", busy: " + notificationBusyCount + ", failed: " + notificationFailureCount + ", oversized: " + oversizedCount + ", rate: " + sendRate + "/s, latency: {" + latencyHistogram + "}, device failures: " + deviceNotificationFailureCounts;
+    }
+}
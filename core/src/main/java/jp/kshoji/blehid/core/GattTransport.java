@@ -0,0 +1,105 @@
+package jp.kshoji.blehid.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * GATT server transport used by {@link HidPipeline}<br />
+ * Devices are identified by their addresses, characteristics by their 16-bit UUIDs.
+ *
+ * @author K.Shoji
+ */
+public interface GattTransport {
+    /**
+     * Response status, same values as the Android GATT status
+     */
+    int STATUS_SUCCESS = 0;
+    int STATUS_INVALID_OFFSET = 7;
+    int STATUS_FAILURE = 0x101;
+
+    /**
+     * GATT server events, delivered by the transport
+     */
+    interface Callback {
+        /**
+         * Called when a device has connected and is ready to receive notifications
+         *
+         * @param deviceAddress the device address
+         */
+        void onConnected(@NonNull String deviceAddress);
+
+        /**
+         * Called when a device has disconnected
+         *
+         * @param deviceAddress the device address
+         */
+        void onDisconnected(@NonNull String deviceAddress);
+
+        /**
+         * Called when the ATT MTU has been negotiated, possibly before {@link #onConnected(String)}
+         *
+         * @param deviceAddress the device address
+         * @param mtu the ATT MTU
+         */
+        void onMtuChanged(@NonNull String deviceAddress, int mtu);
+
+        /**
+         * Called when a notification has been sent to a device
+         *
+         * @param deviceAddress the device address
+         * @param status the status, {@link #STATUS_SUCCESS} if succeeded
+         */
+        void onNotificationSent(@NonNull String deviceAddress, int status);
+
+        /**
+         * Called on a characteristic read request
+         *
+         * @param deviceAddress the device address
+         * @param requestId the request ID
+         * @param offset the offset
+         * @param characteristicUuid the 16-bit UUID of the characteristic
+         * @return true if the response has been sent, false if the transport should respond by itself
+         */
+        boolean onReadRequest(@NonNull String deviceAddress, int requestId, int offset, int characteristicUuid);
+
+        /**
+         * Called on a characteristic write request
+         *
+         * @param deviceAddress the device address
+         * @param requestId the request ID
+         * @param characteristicUuid the 16-bit UUID of the characteristic
+         * @param reportType the report type of the Report characteristic, 0 for the other characteristics
+         * @param responseNeeded true if the response should be sent
+         * @param value the value
+         */
+        void onWriteRequest(@NonNull String deviceAddress, int requestId, int characteristicUuid, int reportType, boolean responseNeeded, @NonNull byte[] value);
+    }
+
+    /**
+     * Set the callback to deliver the events to
+     *
+     * @param callback the callback, null to stop delivering
+     */
+    void setCallback(@Nullable Callback callback);
+
+    /**
+     * Notifies the Input Report to the device
+     *
+     * @param deviceAddress the device address
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param report the report, valid only while this call
+     * @return true if the notification has been accepted, false if the link is busy
+     */
+    boolean notifyInputReport(@NonNull String deviceAddress, int reportId, @NonNull byte[] report);
+
+    /**
+     * Sends the response to the request
+     *
+     * @param deviceAddress the device address
+     * @param requestId the request ID
+     * @param status the status
+     * @param offset the offset
+     * @param value the value, must not be modified after this call
+     */
+    void sendResponse(@NonNull String deviceAddress, int requestId, int status, int offset, @Nullable byte[] value);
+}
@@ -0,0 +1,1928 @@
+package jp.kshoji.blehid.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import jp.kshoji.blehid.HidMetrics;
+import jp.kshoji.blehid.util.HidTracer;
+import jp.kshoji.blehid.util.LatencyHistogram;
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportRingBuffer;
+
+/**
+ * Input Report pipeline and GATT request dispatch of a HID peripheral, independent of Android<br />
+ * Queues Input Reports, sends them through the {@link GattTransport} on the {@link Scheduler} thread with flow control,
+ * and answers the read and write requests.
+ *
+ * @author K.Shoji
+ */
+public final class HidPipeline implements GattTransport.Callback {
+    /**
+     * Sends queued reports on each tick of the fixed rate timer
+     */
+    public static final int SEND_MODE_TIMER = 0;
+    /**
+     * Sends a report as soon as it is queued, if the link is idle.<br />
+     * Reports queued back to back are paced by the sending rate.
+     */
+    public static final int SEND_MODE_EVENT = 1;
+
+    /**
+     * Discard queued Input Reports on {@link #close(Runnable)}
+     */
+    public static final int CLOSE_POLICY_DISCARD = 0;
+    /**
+     * Send queued Input Reports on {@link #close(Runnable)}, before the transport is closed
+     */
+    public static final int CLOSE_POLICY_DRAIN = 1;
+
+    /**
+     * The max size of a report, limited by the max attribute value length
+     */
+    public static final int MAX_REPORT_SIZE = 512;
+
+    /**
+     * ATT MTU
+     */
+    public static final int DEFAULT_ATT_MTU = 23;
+    private static final int MAX_ATT_MTU = 517;
+    private static final int ATT_NOTIFICATION_HEADER_SIZE = 3;
+    private static final int ATT_READ_RESPONSE_HEADER_SIZE = 1;
+
+    /**
+     * 16-bit UUIDs of the characteristics answered by the pipeline
+     */
+    public static final int CHARACTERISTIC_REPORT_MAP = 0x2A4B;
+    public static final int CHARACTERISTIC_REPORT = 0x2A4D;
+
+    private static final int REPORT_ID_COUNT = 256;
+    private static final byte[] EMPTY_BYTES = {};
+
+    /**
+     * Listener for the Output Reports written by the central
+     */
+    public interface OutputReportListener {
+        /**
+         * Called on the transport thread with the Output Report
+         *
+         * @param outputReport the report data
+         */
+        void onOutputReport(@NonNull byte[] outputReport);
+    }
+
+    /**
+     * Source of Input Reports generated on demand, as the queue frees up
+     */
+    public interface InputReportSource {
+        /**
+         * Called on the scheduler thread while the queue has free slots.<br />
+         * Queue up to freeSlots reports with {@link #claimInputReport()} and {@link #commitInputReport(int, int)}, at least one unless finished.
+         *
+         * @param pipeline the pipeline
+         * @param freeSlots the number of free slots of the queue
+         * @return true to be called again when slots are freed, false if the source has finished
+         */
+        boolean onInputReportSlotsAvailable(@NonNull HidPipeline pipeline, int freeSlots);
+    }
+
+    /**
+     * Connected device with its notification flow state
+     */
+    private static final class ConnectedDevice {
+        final String address;
+        final AtomicInteger inFlightNotifications = new AtomicInteger();
+        volatile long lastNotifiedAt;
+        volatile int mtu;
+        final AtomicLong notificationFailures = new AtomicLong();
+        // true if the report being sent has been notified to the device, accessed on the scheduler thread only
+        boolean delivered;
+        // the number of times the report being sent has been refused by the device, accessed on the scheduler thread only
+        int refusedCount;
+        // the reports notified and not confirmed by onNotificationSent yet, oldest first, guarded by this
+        final NotificationLog inFlightReports;
+        // the reports to notify again after a failure status, before any new report, guarded by this
+        final NotificationLog retryReports;
+
+        ConnectedDevice(@NonNull final String address, final int mtu, final int maxReportSize) {
+            this.address = address;
+            this.mtu = mtu;
+            inFlightReports = new NotificationLog(maxReportSize);
+            retryReports = new NotificationLog(maxReportSize);
+        }
+    }
+
+    /**
+     * Reports notified to a device with the number of attempts, oldest first<br />
+     * The slots are allocated only when more reports than ever before are logged.
+     */
+    private static final class NotificationLog {
+        private final int maxReportSize;
+        private byte[][] reports = new byte[0][];
+        private int[] lengths = new int[0];
+        private int[] reportIds = new int[0];
+        private int[] attempts = new int[0];
+        private int head;
+        private int count;
+
+        NotificationLog(final int maxReportSize) {
+            this.maxReportSize = maxReportSize;
+        }
+
+        int size() {
+            return count;
+        }
+
+        int getReportId(final int index) {
+            return reportIds[(head + index) % reports.length];
+        }
+
+        int getAttempts(final int index) {
+            return attempts[(head + index) % reports.length];
+        }
+
+        void setAttempts(final int index, final int attemptCount) {
+            attempts[(head + index) % reports.length] = attemptCount;
+        }
+
+        /**
+         * Copies the report out of the log
+         *
+         * @param index the index from the oldest
+         * @return the report, with its length
+         */
+        @NonNull
+        byte[] copyReport(final int index) {
+            final int slot = (head + index) % reports.length;
+            return Arrays.copyOf(reports[slot], lengths[slot]);
+        }
+
+        void addFirst(final int reportId, @NonNull final byte[] report, final int length, final int attemptCount) {
+            ensureCapacity();
+            head = (head + reports.length - 1) % reports.length;
+            count++;
+            set(head, reportId, report, length, attemptCount);
+        }
+
+        void addLast(final int reportId, @NonNull final byte[] report, final int length, final int attemptCount) {
+            ensureCapacity();
+            set((head + count) % reports.length, reportId, report, length, attemptCount);
+            count++;
+        }
+
+        /**
+         * Copies the entry of the other log as the first entry
+         *
+         * @param log the log
+         * @param index the index of the entry in the log
+         * @param attemptCount the number of attempts
+         */
+        void addFirst(@NonNull final NotificationLog log, final int index, final int attemptCount) {
+            final int slot = (log.head + index) % log.reports.length;
+            addFirst(log.reportIds[slot], log.reports[slot], log.lengths[slot], attemptCount);
+        }
+
+        void removeFirst() {
+            if (count > 0) {
+                head = (head + 1) % reports.length;
+                count--;
+            }
+        }
+
+        void removeLast() {
+            if (count > 0) {
+                count--;
+            }
+        }
+
+        void clear() {
+            head = 0;
+            count = 0;
+        }
+
+        private void set(final int slot, final int reportId, @NonNull final byte[] report, final int length, final int attemptCount) {
+            System.arraycopy(report, 0, reports[slot], 0, length);
+            lengths[slot] = length;
+            reportIds[slot] = reportId;
+            attempts[slot] = attemptCount;
+        }
+
+        private void ensureCapacity() {
+            if (count < reports.length) {
+                return;
+            }
+
+            final int capacity = Math.max(4, reports.length * 2);
+            final byte[][] newReports = new byte[capacity][];
+            final int[] newLengths = new int[capacity];
+            final int[] newReportIds = new int[capacity];
+            final int[] newAttempts = new int[capacity];
+            for (int i = 0; i < count; i++) {
+                final int slot = (head + i) % reports.length;
+                newReports[i] = reports[slot];
+                newLengths[i] = lengths[slot];
+                newReportIds[i] = reportIds[slot];
+                newAttempts[i] = attempts[slot];
+            }
+            for (int i = count; i < capacity; i++) {
+                newReports[i] = new byte[maxReportSize];
+            }
+            reports = newReports;
+            lengths = newLengths;
+            reportIds = newReportIds;
+            attempts = newAttempts;
+            head = 0;
+        }
+    }
+
+    /**
+     * Immutable read responses, keyed by the 16-bit characteristic UUID
+     */
+    private static final class ReadResponses {
+        final int[] uuids;
+        final byte[][] responses;
+
+        ReadResponses(@NonNull final int[] uuids, @NonNull final byte[][] responses) {
+            this.uuids = uuids;
+            this.responses = responses;
+        }
+
+        @Nullable
+        byte[] get(final int uuid) {
+            final int index = Arrays.binarySearch(uuids, uuid);
+            return index < 0 ? null : responses[index];
+        }
+
+        @NonNull
+        ReadResponses with(final int uuid, @NonNull final byte[] response) {
+            int index = Arrays.binarySearch(uuids, uuid);
+            if (index >= 0) {
+                final byte[][] newResponses = responses.clone();
+                newResponses[index] = response;
+                return new ReadResponses(uuids, newResponses);
+            }
+
+            index = -index - 1;
+            final int[] newUuids = new int[uuids.length + 1];
+            final byte[][] newResponses = new byte[uuids.length + 1][];
+            System.arraycopy(uuids, 0, newUuids, 0, index);
+            System.arraycopy(responses, 0, newResponses, 0, index);
+            newUuids[index] = uuid;
+            newResponses[index] = response;
+            System.arraycopy(uuids, index, newUuids, index + 1, uuids.length - index);
+            System.arraycopy(responses, index, newResponses, index + 1, uuids.length - index);
+            return new ReadResponses(newUuids, newResponses);
+        }
+    }
+
+    private final ReportLayout reportLayout;
+    // the Report Map served to the centrals, never exposed
+    private final byte[] reportMap;
+    private final boolean[] inputReportIds = new boolean[REPORT_ID_COUNT];
+    private final GattTransport transport;
+    private final Object lifecycleLock = new Object();
+    // null while closed
+    private volatile Scheduler scheduler;
+    // the clock of the last started scheduler
+    private volatile Scheduler clock;
+    // incremented on each start, guarded by lifecycleLock
+    private int startCount;
+    private volatile OutputReportListener outputReportListener;
+    private volatile ReadResponses readResponses = new ReadResponses(new int[0], new byte[0][]);
+
+    private final Map<String, ConnectedDevice> connectedDevicesMap = new HashMap<>();
+    private volatile ConnectedDevice[] connectedDevices = {};
+    // negotiated MTU for each device address, including devices not connected yet, guarded by connectedDevicesMap
+    private final Map<String, Integer> deviceMtus = new HashMap<>();
+
+    /**
+     * Input Report queue and state
+     */
+    private final ReportRingBuffer inputReportQueue;
+    private final Object inputReportStateLock = new Object();
+    private final byte[] inputReportState;
+    private int inputReportStateLength;
+    private int inputReportStateId;
+    private byte[] notifiedInputReportState = EMPTY_BYTES;
+    private int notifiedInputReportStateId;
+    private volatile boolean inputReportStateChanged;
+    private volatile long inputReportStateChangedAt;
+    private final AtomicReference<InputReportSource> inputReportSource = new AtomicReference<>();
+
+    /**
+     * Input Report sending
+     */
+    private static final long THROUGHPUT_WINDOW_MILLIS = 1000;
+    private final int dataSendingRate;
+    private volatile int sendMode = SEND_MODE_TIMER;
+    private volatile int closePolicy = CLOSE_POLICY_DISCARD;
+    private volatile long lastSentAt;
+    private volatile long drainRequestedAt;
+    private long tickDueAt;
+    private final LatencyHistogram sendDispatchJitterHistogram = new LatencyHistogram();
+    private final LatencyHistogram[] inputReportLatencyHistograms = {new LatencyHistogram(), new LatencyHistogram()};
+    private volatile int maxInputReportsPerTick = 1;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    // true while the sending tick runs, on SEND_MODE_TIMER only
+    private final AtomicBoolean tickScheduled = new AtomicBoolean();
+    private final AtomicBoolean resumeScheduled = new AtomicBoolean();
+    private final AtomicLong sentInputReportCount = new AtomicLong();
+    private final AtomicLong enqueuedInputReportCount = new AtomicLong();
+    private long throughputWindowStartedAt;
+    private long throughputWindowStartCount;
+    private volatile float inputReportThroughput;
+
+    /**
+     * Notification flow control
+     */
+    private static final int NOTIFY_COMPLETED = 0;
+    private static final int NOTIFY_BUSY = 1;
+    private static final int NOTIFY_WINDOW_FULL = 2;
+    private static final int NOTIFY_UNDELIVERABLE = 3;
+    private static final int DEFAULT_NOTIFICATION_WINDOW = 4;
+    private static final long NOTIFICATION_SENT_TIMEOUT_MILLIS = 100;
+    /**
+     * The number of times a report is retried for a device refusing it, then the report is given up for the device
+     */
+    public static final int MAX_NOTIFICATION_ATTEMPTS = 16;
+    private volatile int notificationWindow = DEFAULT_NOTIFICATION_WINDOW;
+    private volatile boolean notificationWindowFull;
+    private int remainingSendBudget;
+    private long deliveringSequence = -1;
+    // true if a connected device can receive the report being sent, accessed on the scheduler thread only
+    private boolean deliverable;
+    // true if the report being sent has been notified to a device, accessed on the scheduler thread only
+    private boolean notified;
+    private final AtomicLong undeliverableInputReportCount = new AtomicLong();
+    private final AtomicLong notificationBusyCount = new AtomicLong();
+    private final AtomicLong notificationFailureCount = new AtomicLong();
+    private final AtomicLong oversizedInputReportCount = new AtomicLong();
+
+    /**
+     * Report Map read statistics
+     */
+    private final AtomicLong reportMapReadCount = new AtomicLong();
+    private final AtomicLong savedRoundTripCount = new AtomicLong();
+    private final AtomicLong reportMapBytesServedCount = new AtomicLong();
+    // Report Map bytes served for each device address in the current connection, guarded by connectedDevicesMap
+    private final Map<String, AtomicLong> reportMapBytesServed = new HashMap<>();
+    // Report Map read responses indexed by the MTU, guarded by itself
+    private final byte[][][] reportMapSlices = new byte[MAX_ATT_MTU + 1][][];
+
+    // null while tracing is disabled
+    private volatile HidTracer tracer;
+    private volatile HidMetrics.Listener metricsListener;
+    private volatile long metricsIntervalMillis;
+
+    /**
+     * Constructor
+     *
+     * @param reportLayout the layout of the Report Map
+     * @param inputReportIds the Report IDs of the Input Reports, {0} if the Report Map has no Report ID
+     * @param inputReportQueueCapacity the number of Input Reports can be queued
+     * @param maxInputReportSize the max size of an Input Report in bytes, up to {@link #MAX_REPORT_SIZE}
+     * @param dataSendingRate sending rate in milliseconds
+     * @param transport the transport
+     * @throws IllegalArgumentException if maxInputReportSize is out of range, an Input Report is larger than it, or a Report ID is out of range
+     */
+    public HidPipeline(@NonNull final ReportLayout reportLayout, @NonNull final int[] inputReportIds, final int inputReportQueueCapacity, final int maxInputReportSize, final int dataSendingRate, @NonNull final GattTransport transport) throws IllegalArgumentException {
+        if (maxInputReportSize < 1 || maxInputReportSize > MAX_REPORT_SIZE) {
+            throw new IllegalArgumentException("maxInputReportSize must be 1 to " + MAX_REPORT_SIZE + ": " + maxInputReportSize);
+        }
+        for (final int reportId : inputReportIds) {
+            if (reportId < 0 || reportId >= REPORT_ID_COUNT) {
+                throw new IllegalArgumentException("Invalid Report ID: " + reportId);
+            }
+            final int reportSize = reportLayout.getReportSize(ReportField.TYPE_INPUT, reportId);
+            if (reportSize > maxInputReportSize) {
+                throw new IllegalArgumentException("Input Report " + reportId + " is larger than maxInputReportSize: " + reportSize);
+            }
+            this.inputReportIds[reportId] = true;
+        }
+
+        this.reportLayout = reportLayout;
+        reportMap = reportLayout.getReportMap();
+        this.dataSendingRate = dataSendingRate;
+        this.transport = transport;
+        inputReportQueue = new ReportRingBuffer(inputReportQueueCapacity, maxInputReportSize);
+        inputReportState = new byte[maxInputReportSize];
+        setReadResponse(CHARACTERISTIC_REPORT, EMPTY_BYTES);
+        transport.setCallback(this);
+    }
+
+    /**
+     * Obtains the layout of the reports
+     *
+     * @return the layout
+     */
+    @NonNull
+    public ReportLayout getReportLayout() {
+        return reportLayout;
+    }
+
+    /**
+     * Obtains the transport
+     *
+     * @return the transport
+     */
+    @NonNull
+    public GattTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Set the listener for the Output Reports
+     *
+     * @param listener the listener, null to ignore the Output Reports
+     */
+    public void setOutputReportListener(@Nullable final OutputReportListener listener) {
+        outputReportListener = listener;
+    }
+
+    /**
+     * Replaces the pre-encoded read response of the characteristic, the table is copied on write.
+     *
+     * @param characteristicUuid the 16-bit UUID of the characteristic
+     * @param response the response, must not be modified after this call
+     */
+    public void setReadResponse(final int characteristicUuid, @NonNull final byte[] response) {
+        synchronized (lifecycleLock) {
+            readResponses = readResponses.with(characteristicUuid, response);
+        }
+    }
+
+    /**
+     * Starts sending on the scheduler, if not started
+     *
+     * @param newScheduler the scheduler
+     */
+    public void start(@NonNull final Scheduler newScheduler) {
+        synchronized (lifecycleLock) {
+            if (scheduler != null) {
+                return;
+            }
+            scheduler = newScheduler;
+            clock = newScheduler;
+            startCount++;
+            // the tasks of the closed session have been removed
+            drainScheduled.set(false);
+            resumeScheduled.set(false);
+            tickScheduled.set(false);
+
+            throughputWindowStartedAt = newScheduler.uptimeMillis();
+            if (sendMode == SEND_MODE_TIMER) {
+                startSendTick();
+            } else if (hasPendingInputReport()) {
+                scheduleEventDrain();
+            }
+            if (inputReportSource.get() != null) {
+                newScheduler.post(pullInputReportSourceTask);
+            }
+            if (metricsListener != null) {
+                newScheduler.postDelayed(reportMetricsTask, metricsIntervalMillis);
+            }
+        }
+    }
+
+    /**
+     * Check if the pipeline has been started and not closed
+     *
+     * @return true if started
+     */
+    public boolean isStarted() {
+        return scheduler != null;
+    }
+
+    /**
+     * Stops sending. The queued Input Reports are drained or discarded by the close policy, on the scheduler thread.<br />
+     * Calling {@link #start(Scheduler)} afterwards restarts the pipeline.
+     * If it is restarted before the closing runs on the scheduler thread, the queue and the connected devices are kept for the new session.
+     *
+     * @param closedTask the task to run on the scheduler thread after the reports have been drained, to close the transport
+     */
+    public void close(@Nullable final Runnable closedTask) {
+        final Scheduler closingScheduler;
+        final int closingStartCount;
+        synchronized (lifecycleLock) {
+            closingScheduler = scheduler;
+            if (closingScheduler == null) {
+                // already closed
+                return;
+            }
+            scheduler = null;
+            closingStartCount = startCount;
+        }
+
+        closingScheduler.remove(sendTickTask);
+        closingScheduler.remove(drainInputReportsTask);
+        closingScheduler.remove(resumeInputReportsTask);
+        closingScheduler.remove(notificationTimeoutTask);
+        closingScheduler.remove(reportMetricsTask);
+        closingScheduler.remove(pullInputReportSourceTask);
+        closingScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (closePolicy == CLOSE_POLICY_DRAIN && !isRestarted(closingStartCount)) {
+                    remainingSendBudget = Integer.MAX_VALUE;
+                    drainInputReports();
+                }
+
+                if (closedTask != null) {
+                    closedTask.run();
+                }
+
+                synchronized (lifecycleLock) {
+                    if (isRestarted(closingStartCount)) {
+                        // the new session owns the queue and the connected devices
+                        return;
+                    }
+
+                    inputReportSource.set(null);
+                    inputReportQueue.clear();
+                    synchronized (inputReportStateLock) {
+                        inputReportStateChanged = false;
+                        notifiedInputReportState = EMPTY_BYTES;
+                    }
+                    synchronized (connectedDevicesMap) {
+                        connectedDevicesMap.clear();
+                        connectedDevices = new ConnectedDevice[0];
+                    }
+                    drainScheduled.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Check if the pipeline has been started again, after the close of the session
+     *
+     * @param closingStartCount the start count when the session was closed
+     * @return true if restarted
+     */
+    private boolean isRestarted(final int closingStartCount) {
+        synchronized (lifecycleLock) {
+            return startCount != closingStartCount;
+        }
+    }
+
+    /**
+     * Set the policy applied to the queued Input Reports on {@link #close(Runnable)}
+     *
+     * @param policy {@link #CLOSE_POLICY_DISCARD} or {@link #CLOSE_POLICY_DRAIN}
+     * @throws IllegalArgumentException if the policy is unknown
+     */
+    public void setClosePolicy(final int policy) throws IllegalArgumentException {
+        if (policy != CLOSE_POLICY_DISCARD && policy != CLOSE_POLICY_DRAIN) {
+            throw new IllegalArgumentException("Unknown close policy: " + policy);
+        }
+        closePolicy = policy;
+    }
+
+    /**
+     * Obtains the policy applied to the queued Input Reports on {@link #close(Runnable)}
+     *
+     * @return {@link #CLOSE_POLICY_DISCARD} or {@link #CLOSE_POLICY_DRAIN}
+     */
+    public int getClosePolicy() {
+        return closePolicy;
+    }
+
+    /**
+     * Obtains the current time of the scheduler clock
+     *
+     * @return the time in milliseconds, 0 if never started
+     */
+    private long uptimeMillis() {
+        final Scheduler currentClock = clock;
+        return currentClock == null ? 0 : currentClock.uptimeMillis();
+    }
+
+    /**
+     * Posts the task to the scheduler, if the pipeline is not closed.
+     *
+     * @param task the task
+     */
+    private void post(@NonNull final Runnable task) {
+        final Scheduler currentScheduler = scheduler;
+        if (currentScheduler != null) {
+            currentScheduler.post(task);
+        }
+    }
+
+    /**
+     * Queue an Input Report with the Report ID, the data is copied into the queue.
+     *
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param inputReport the report data, without the Report ID
+     * @throws IllegalArgumentException if the report is larger than the max Input Report size
+     */
+    public void addInputReport(final int reportId, @Nullable final byte[] inputReport) throws IllegalArgumentException {
+        addInputReport(reportId, inputReport, true);
+    }
+
+    /**
+     * Queue an Input Report with the Report ID, the data is copied into the queue.
+     *
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param inputReport the report data, without the Report ID
+     * @param mayBlock false: the caller must not wait, such as a UI thread, see {@link #claimInputReport(boolean)}
+     * @throws IllegalArgumentException if the report is larger than the max Input Report size
+     */
+    public void addInputReport(final int reportId, @Nullable final byte[] inputReport, final boolean mayBlock) throws IllegalArgumentException {
+        if (inputReport != null && inputReport.length > 0) {
+            if (inputReport.length > inputReportQueue.getMaxReportSize()) {
+                throw new IllegalArgumentException("Input Report too large: " + inputReport.length);
+            }
+
+            final byte[] report = claimInputReport(mayBlock);
+            if (report != null) {
+                System.arraycopy(inputReport, 0, report, 0, inputReport.length);
+                commitInputReport(reportId, inputReport.length);
+            }
+        }
+    }
+
+    /**
+     * Claims a zero-filled Input Report slot to encode a report into, without allocation.<br />
+     * When a slot is returned, {@link #commitInputReport(int, int)} must be called on the same thread.
+     *
+     * @return the slot, null if the pipeline is closed or the report is dropped by the overflow policy
+     */
+    @Nullable
+    public byte[] claimInputReport() {
+        return claimInputReport(true);
+    }
+
+    /**
+     * Claims a zero-filled Input Report slot to encode a report into, without allocation.<br />
+     * When a slot is returned, {@link #commitInputReport(int, int)} must be called on the same thread.
+     * On the scheduler thread, or if the caller must not wait, {@link ReportRingBuffer#OVERFLOW_BLOCK} drops the new report instead of waiting.
+     *
+     * @param mayBlock false: the caller must not wait, such as a UI thread
+     * @return the slot, null if the pipeline is closed or the report is dropped by the overflow policy
+     */
+    @Nullable
+    public byte[] claimInputReport(final boolean mayBlock) {
+        return claimInputReport(mayBlock, true);
+    }
+
+    /**
+     * Claims a zero-filled Input Report slot to encode a report into, without allocation.<br />
+     * When a slot is returned, {@link #commitInputReport(int, int)} must be called on the same thread.
+     * On the scheduler thread, or if the caller must not wait, {@link ReportRingBuffer#OVERFLOW_BLOCK} drops the new report instead of waiting.
+     *
+     * @param mayBlock false: the caller must not wait, such as a UI thread
+     * @param mayCoalesce false: the report must not replace the newest queued one, such as a button change, {@link ReportRingBuffer#OVERFLOW_COALESCE} waits or drops instead
+     * @return the slot, null if the pipeline is closed or the report is dropped by the overflow policy
+     */
+    @Nullable
+    public byte[] claimInputReport(final boolean mayBlock, final boolean mayCoalesce) {
+        final Scheduler currentScheduler = scheduler;
+        if (currentScheduler == null) {
+            // closed
+            return null;
+        }
+
+        // blocking on the sending thread never frees a slot
+        return inputReportQueue.claim(mayBlock && !currentScheduler.isSchedulerThread(), mayCoalesce);
+    }
+
+    /**
+     * Queues the Input Report claimed by {@link #claimInputReport()} or {@link #claimNewestInputReport(int)} with the Report ID
+     *
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param length the report length, 0 to cancel
+     */
+    public void commitInputReport(final int reportId, final int length) {
+        inputReportQueue.commit(reportId, length);
+        if (length > 0) {
+            enqueuedInputReportCount.incrementAndGet();
+        }
+
+        final HidTracer currentTracer = tracer;
+        if (currentTracer != null && length > 0) {
+            currentTracer.record(HidTracer.EVENT_ENQUEUE, reportId, length);
+        }
+
+        if (length > 0 && sendMode == SEND_MODE_EVENT) {
+            scheduleEventDrain();
+        }
+    }
+
+    /**
+     * Claims the newest queued Input Report to merge new data into it, the slot keeps the queued contents.<br />
+     * When a slot is returned, {@link #commitInputReport(int, int)} must be called on the same thread: the length to update the report, or 0 to leave it unchanged.
+     *
+     * @return the slot, null if no reports are waiting to be sent
+     */
+    @Nullable
+    public byte[] claimNewestInputReport() {
+        return inputReportQueue.claimNewest();
+    }
+
+    /**
+     * Claims the newest queued Input Report with the Report ID to merge new data into it, the slot keeps the queued contents.
+     *
+     * @param reportId the Report ID
+     * @return the slot, null if no reports are waiting to be sent, or the newest one has another Report ID
+     */
+    @Nullable
+    public byte[] claimNewestInputReport(final int reportId) {
+        return inputReportQueue.claimNewest(reportId);
+    }
+
+    /**
+     * Overwrites the latest Input Report state with the Report ID, instead of queueing a report.<br />
+     * The state is sent after the queued reports, only if it differs from the last notified state.
+     * When the state of another Report ID is still waiting to be sent, it is queued first.
+     *
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param report the report data, copied into the state slot
+     * @param length the report length
+     * @throws IllegalArgumentException if the length is larger than the max Input Report size
+     */
+    public void setInputReportState(final int reportId, @NonNull final byte[] report, final int length) throws IllegalArgumentException {
+        if (length < 1 || length > inputReportState.length) {
+            throw new IllegalArgumentException("Invalid report length: " + length);
+        }
+
+        synchronized (inputReportStateLock) {
+            if (reportId != inputReportStateId) {
+                // keep the pending state of the other report
+                queueInputReportState();
+                inputReportStateChanged = false;
+                inputReportStateId = reportId;
+                notifiedInputReportState = EMPTY_BYTES;
+            }
+
+            System.arraycopy(report, 0, inputReportState, 0, length);
+            inputReportStateLength = length;
+
+            boolean changed = length != notifiedInputReportState.length;
+            for (int i = 0; !changed && i < length; i++) {
+                changed = report[i] != notifiedInputReportState[i];
+            }
+            if (changed && !inputReportStateChanged) {
+                inputReportStateChangedAt = System.nanoTime();
+            }
+            inputReportStateChanged = changed;
+        }
+
+        if (inputReportStateChanged && sendMode == SEND_MODE_EVENT) {
+            scheduleEventDrain();
+        }
+    }
+
+    /**
+     * Queues the latest Input Report state if it is waiting to be sent, so that the next state is sent after it instead of replacing it.<br />
+     * Call before a state which must not be coalesced, such as a button change.
+     *
+     * @return true if queued or no state is waiting, false if the queue has dropped it
+     */
+    public boolean flushInputReportState() {
+        synchronized (inputReportStateLock) {
+            return queueInputReportState();
+        }
+    }
+
+    /**
+     * Queues the latest Input Report state if it is waiting to be sent, while holding the lock of the state
+     *
+     * @return true if queued or no state is waiting, false if the queue has dropped it
+     */
+    private boolean queueInputReportState() {
+        if (!inputReportStateChanged) {
+            return true;
+        }
+
+        // never waits for a slot holding the lock, the scheduler thread polls the state with it
+        final byte[] pending = claimInputReport(false, false);
+        if (pending == null) {
+            return false;
+        }
+        System.arraycopy(inputReportState, 0, pending, 0, inputReportStateLength);
+        commitInputReport(inputReportStateId, inputReportStateLength);
+        // sent as a queued report: the next state is compared with it
+        notifiedInputReportState = Arrays.copyOf(inputReportState, inputReportStateLength);
+        inputReportStateChanged = false;
+        return true;
+    }
+
+    /**
+     * Obtains the latest Input Report state, if it has been changed since the last notification
+     *
+     * @return the state, null if unchanged
+     */
+    @Nullable
+    private byte[] pollInputReportState() {
+        if (!inputReportStateChanged) {
+            return null;
+        }
+
+        synchronized (inputReportStateLock) {
+            if (notifiedInputReportState.length != inputReportStateLength) {
+                notifiedInputReportState = new byte[inputReportStateLength];
+            }
+            System.arraycopy(inputReportState, 0, notifiedInputReportState, 0, inputReportStateLength);
+            notifiedInputReportStateId = inputReportStateId;
+            inputReportStateChanged = false;
+            return notifiedInputReportState;
+        }
+    }
+
+    /**
+     * Marks the latest Input Report state as changed again, after its notification has been refused
+     */
+    private void restoreInputReportState() {
+        synchronized (inputReportStateLock) {
+            // forget the refused state, so that any following state is sent
+            notifiedInputReportState = EMPTY_BYTES;
+            inputReportStateChanged = true;
+        }
+    }
+
+    /**
+     * Set the source of Input Reports generated as the queue frees up, replacing the current one.<br />
+     * The source is removed when it has finished, or the pipeline is closed.
+     *
+     * @param source the source, null to remove
+     */
+    public void setInputReportSource(@Nullable final InputReportSource source) {
+        inputReportSource.set(source);
+        if (source != null) {
+            post(pullInputReportSourceTask);
+        }
+    }
+
+    /**
+     * Obtains the source of Input Reports
+     *
+     * @return the source, null if not set or finished
+     */
+    @Nullable
+    public InputReportSource getInputReportSource() {
+        return inputReportSource.get();
+    }
+
+    /**
+     * Check if any Input Report is waiting to be sent
+     *
+     * @return true if the queue or the latest state has a report to send
+     */
+    public boolean hasPendingInputReport() {
+        return inputReportStateChanged || !inputReportQueue.isEmpty() || hasRetryReport();
+    }
+
+    /**
+     * Check if any report is waiting to be notified again after a failure status
+     *
+     * @return true if a connected device has a report to retry
+     */
+    private boolean hasRetryReport() {
+        for (final ConnectedDevice connectedDevice : connectedDevices) {
+            synchronized (connectedDevice) {
+                if (connectedDevice.retryReports.size() > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set the policy applied when an Input Report is queued while the queue is full
+     *
+     * @param policy {@link ReportRingBuffer#OVERFLOW_BLOCK}, {@link ReportRingBuffer#OVERFLOW_DROP_OLDEST}, {@link ReportRingBuffer#OVERFLOW_DROP_NEWEST} or {@link ReportRingBuffer#OVERFLOW_COALESCE}
+     * @throws IllegalArgumentException if the policy is unknown
+     */
+    public void setInputReportOverflowPolicy(final int policy) throws IllegalArgumentException {
+        inputReportQueue.setOverflowPolicy(policy);
+    }
+
+    /**
+     * Obtains the policy applied when an Input Report is queued while the queue is full
+     *
+     * @return the policy
+     */
+    public int getInputReportOverflowPolicy() {
+        return inputReportQueue.getOverflowPolicy();
+    }
+
+    /**
+     * Obtains the number of Input Reports discarded by the overflow policy,
+     * or because no device was connected, or all of them needed a larger MTU
+     *
+     * @return the number of reports
+     */
+    public long getDroppedInputReportCount() {
+        return inputReportQueue.getDroppedCount() + undeliverableInputReportCount.get();
+    }
+
+    /**
+     * Obtains the number of Input Reports merged into the queued report
+     *
+     * @return the number of reports
+     */
+    public long getCoalescedInputReportCount() {
+        return inputReportQueue.getCoalescedCount();
+    }
+
+    /**
+     * Starts the sending tick for {@link #SEND_MODE_TIMER}, if not running
+     */
+    private void startSendTick() {
+        final Scheduler currentScheduler = scheduler;
+        if (currentScheduler == null || tickScheduled.getAndSet(true)) {
+            return;
+        }
+        tickDueAt = currentScheduler.uptimeMillis();
+        currentScheduler.post(sendTickTask);
+    }
+
+    /**
+     * Sends the queued reports on each tick of the sending rate, at a fixed rate.<br />
+     * Runs on {@link #SEND_MODE_TIMER} only, {@link #SEND_MODE_EVENT} schedules draining as the reports are queued, not to wake up while idle.
+     */
+    private final Runnable sendTickTask = new Runnable() {
+        @Override
+        public void run() {
+            final Scheduler currentScheduler = scheduler;
+            if (currentScheduler == null) {
+                // closed
+                return;
+            }
+            if (sendMode != SEND_MODE_TIMER) {
+                tickScheduled.set(false);
+                // keeps running if switched back to SEND_MODE_TIMER meanwhile
+                if (sendMode != SEND_MODE_TIMER || tickScheduled.getAndSet(true)) {
+                    return;
+                }
+            }
+
+            final long now = currentScheduler.uptimeMillis();
+            final long lateMillis = now - tickDueAt;
+            do {
+                // ticks missed while the thread was busy are skipped
+                tickDueAt += dataSendingRate;
+            } while (tickDueAt <= now);
+            currentScheduler.postDelayed(this, tickDueAt - now);
+
+            if (sendMode == SEND_MODE_TIMER && hasPendingInputReport() && !drainScheduled.getAndSet(true)) {
+                drainRequestedAt = System.nanoTime() - lateMillis * 1000000L;
+                drainInputReportsTask.run();
+            }
+        }
+    };
+
+    /**
+     * Sends queued Input Reports, up to maxInputReportsPerTick reports per sending tick.<br />
+     * Stops draining when the link refuses a notification, the rest will be sent on the next tick.
+     */
+    private final Runnable drainInputReportsTask = new Runnable() {
+        @Override
+        public void run() {
+            sendDispatchJitterHistogram.record(System.nanoTime() - drainRequestedAt);
+            drainScheduled.set(false);
+
+            if (scheduler == null) {
+                // closed
+                return;
+            }
+            remainingSendBudget = maxInputReportsPerTick;
+            drainInputReports();
+
+            if (sendMode == SEND_MODE_EVENT && hasPendingInputReport() && !notificationWindowFull) {
+                // reports arrived back to back: pace by the sending rate
+                scheduleEventDrain();
+            }
+        }
+    };
+
+    /**
+     * Resumes draining with the rest of the sending budget, after the notification window has been freed.
+     */
+    private final Runnable resumeInputReportsTask = new Runnable() {
+        @Override
+        public void run() {
+            resumeScheduled.set(false);
+
+            resumeDraining();
+        }
+    };
+
+    /**
+     * Resumes draining when onNotificationSent has not freed the notification window in time, as it may have been lost.
+     */
+    private final Runnable notificationTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            if (notificationWindowFull) {
+                resumeDraining();
+            }
+        }
+    };
+
+    /**
+     * Drains with the rest of the sending budget, on the scheduler thread
+     */
+    private void resumeDraining() {
+        if (scheduler == null) {
+            // closed
+            return;
+        }
+        drainInputReports();
+
+        if (sendMode == SEND_MODE_EVENT && hasPendingInputReport() && !notificationWindowFull) {
+            scheduleEventDrain();
+        }
+    }
+
+    /**
+     * Lets the Input Report source fill the queue
+     */
+    private final Runnable pullInputReportSourceTask = new Runnable() {
+        @Override
+        public void run() {
+            pullInputReportSource();
+        }
+    };
+
+    /**
+     * Reports the metrics, and reschedules itself
+     */
+    private final Runnable reportMetricsTask = new Runnable() {
+        @Override
+        public void run() {
+            final HidMetrics.Listener listener = metricsListener;
+            final Scheduler currentScheduler = scheduler;
+            if (listener == null || currentScheduler == null) {
+                return;
+            }
+
+            listener.onMetrics(getMetrics());
+            currentScheduler.postDelayed(this, metricsIntervalMillis);
+        }
+    };
+
+    /**
+     * Sends the reports to retry, the queued Input Reports, then the latest Input Report state.<br />
+     * A report is removed from the queue only after it has been notified to all connected devices.
+     * A report failed with a failure status on onNotificationSent is notified again to the device before any new report.
+     */
+    private void drainInputReports() {
+        final int mode = sendMode;
+        notificationWindowFull = false;
+        if (notifyRetryReports() == NOTIFY_WINDOW_FULL) {
+            // the devices with a free window still receive the queued reports
+            waitForNotificationWindow();
+        }
+        while (remainingSendBudget > 0) {
+            byte[] report = inputReportQueue.peek();
+            final boolean stateReport;
+            final long queuedAt;
+            final int reportId;
+            if (report != null) {
+                stateReport = false;
+                queuedAt = inputReportQueue.getPolledTimestamp();
+                reportId = inputReportQueue.getPolledReportId();
+                if (inputReportQueue.getPeekedSequence() != deliveringSequence) {
+                    // a new report: nothing delivered yet
+                    deliveringSequence = inputReportQueue.getPeekedSequence();
+                    startDelivery();
+                }
+            } else {
+                // queued reports first, then the latest state
+                report = pollInputReportState();
+                if (report == null) {
+                    break;
+                }
+                stateReport = true;
+                queuedAt = inputReportStateChangedAt;
+                reportId = notifiedInputReportStateId;
+            }
+
+            if (!inputReportIds[reportId]) {
+                // not declared as an Input Report characteristic
+                if (!stateReport) {
+                    inputReportQueue.removePeeked();
+                    deliveringSequence = -1;
+                }
+                continue;
+            }
+
+            final int result = notifyInputReport(reportId, report);
+            lastSentAt = uptimeMillis();
+            final HidTracer currentTracer = tracer;
+            if (currentTracer != null) {
+                currentTracer.record(HidTracer.EVENT_NOTIFY, reportId, result);
+            }
+            if (result == NOTIFY_UNDELIVERABLE) {
+                // no device connected, or all of them need a larger MTU: dropped, not sent
+                if (!stateReport) {
+                    inputReportQueue.removePeeked();
+                    deliveringSequence = -1;
+                }
+                startDelivery();
+                undeliverableInputReportCount.incrementAndGet();
+                continue;
+            }
+            if (result != NOTIFY_COMPLETED) {
+                // keep the report to retry, instead of losing it. A queued report stays peeked, it is never merged until removed.
+                if (stateReport) {
+                    restoreInputReportState();
+                    clearDelivered();
+                }
+                if (result == NOTIFY_WINDOW_FULL) {
+                    waitForNotificationWindow();
+                }
+                break;
+            }
+
+            if (!stateReport) {
+                inputReportQueue.removePeeked();
+                deliveringSequence = -1;
+            }
+            // a report given up by all devices has not been sent
+            final boolean sent = notified;
+            startDelivery();
+            if (sent) {
+                inputReportLatencyHistograms[mode].record(System.nanoTime() - queuedAt);
+                sentInputReportCount.incrementAndGet();
+            }
+            remainingSendBudget--;
+        }
+
+        updateInputReportThroughput();
+        pullInputReportSource();
+    }
+
+    /**
+     * Waits for the notification window: resumed by onNotificationSent, or by the timeout if it does not arrive
+     */
+    private void waitForNotificationWindow() {
+        notificationWindowFull = true;
+        final Scheduler currentScheduler = scheduler;
+        if (currentScheduler != null) {
+            currentScheduler.remove(notificationTimeoutTask);
+            currentScheduler.postDelayed(notificationTimeoutTask, NOTIFICATION_SENT_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Lets the Input Report source fill the free slots of the queue, on the scheduler thread
+     */
+    private void pullInputReportSource() {
+        final InputReportSource source = inputReportSource.get();
+        if (source == null || scheduler == null) {
+            return;
+        }
+
+        final int freeSlots = inputReportQueue.getCapacity() - inputReportQueue.size();
+        if (freeSlots > 0 && !source.onInputReportSlotsAvailable(this, freeSlots)) {
+            inputReportSource.compareAndSet(source, null);
+        }
+    }
+
+    /**
+     * Schedules draining on {@link #SEND_MODE_EVENT}: immediately if the link is idle, otherwise after the sending rate from the last sending.
+     */
+    private void scheduleEventDrain() {
+        final Scheduler currentScheduler = scheduler;
+        if (currentScheduler == null || drainScheduled.getAndSet(true)) {
+            return;
+        }
+
+        final long nextSendingAt = lastSentAt + dataSendingRate;
+        final long now = currentScheduler.uptimeMillis();
+        if (nextSendingAt <= now) {
+            drainRequestedAt = System.nanoTime();
+            currentScheduler.post(drainInputReportsTask);
+        } else {
+            drainRequestedAt = System.nanoTime() + (nextSendingAt - now) * 1000000L;
+            currentScheduler.postDelayed(drainInputReportsTask, nextSendingAt - now);
+        }
+    }
+
+    /**
+     * Notifies the Input Report to the connected devices which have not received it yet
+     *
+     * @param reportId the Report ID
+     * @param report the report
+     * @return {@link #NOTIFY_COMPLETED}, {@link #NOTIFY_BUSY}, {@link #NOTIFY_WINDOW_FULL},
+     * or {@link #NOTIFY_UNDELIVERABLE} if no device is connected, or all of them have been skipped as the report is too large for their MTU
+     */
+    private int notifyInputReport(final int reportId, @NonNull final byte[] report) {
+        int result = NOTIFY_COMPLETED;
+        final int window = notificationWindow;
+        final long now = uptimeMillis();
+        for (final ConnectedDevice connectedDevice : connectedDevices) {
+            if (connectedDevice.delivered) {
+                continue;
+            }
+
+            if (report.length > connectedDevice.mtu - ATT_NOTIFICATION_HEADER_SIZE) {
+                // the notification would be truncated: skip the device until it negotiates a larger MTU
+                connectedDevice.delivered = true;
+                oversizedInputReportCount.incrementAndGet();
+                continue;
+            }
+            deliverable = true;
+
+            // the reports to retry go first, the device keeps the report order
+            int deviceResult = notifyRetryReports(connectedDevice, window, now);
+            if (deviceResult == NOTIFY_COMPLETED) {
+                deviceResult = notify(connectedDevice, reportId, report, 1, window, now);
+            }
+
+            if (deviceResult == NOTIFY_WINDOW_FULL) {
+                result = NOTIFY_WINDOW_FULL;
+            } else if (deviceResult == NOTIFY_COMPLETED) {
+                connectedDevice.delivered = true;
+                notified = true;
+            } else if (++connectedDevice.refusedCount >= MAX_NOTIFICATION_ATTEMPTS) {
+                // give up the report for the device, not to block the other reports and devices
+                connectedDevice.delivered = true;
+                notificationFailureCount.incrementAndGet();
+                connectedDevice.notificationFailures.incrementAndGet();
+            } else if (result == NOTIFY_COMPLETED) {
+                result = NOTIFY_BUSY;
+            }
+        }
+        if (result == NOTIFY_COMPLETED && !deliverable) {
+            return NOTIFY_UNDELIVERABLE;
+        }
+        return result;
+    }
+
+    /**
+     * Notifies the reports to retry to all connected devices
+     *
+     * @return {@link #NOTIFY_COMPLETED} if no reports to retry are left, {@link #NOTIFY_BUSY} or {@link #NOTIFY_WINDOW_FULL}
+     */
+    private int notifyRetryReports() {
+        int result = NOTIFY_COMPLETED;
+        final int window = notificationWindow;
+        final long now = uptimeMillis();
+        for (final ConnectedDevice connectedDevice : connectedDevices) {
+            final int deviceResult = notifyRetryReports(connectedDevice, window, now);
+            if (deviceResult == NOTIFY_WINDOW_FULL) {
+                result = NOTIFY_WINDOW_FULL;
+            } else if (deviceResult == NOTIFY_BUSY && result == NOTIFY_COMPLETED) {
+                result = NOTIFY_BUSY;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Notifies the reports to retry to the device, in order.<br />
+     * A report refused {@link #MAX_NOTIFICATION_ATTEMPTS} times in all is given up.
+     *
+     * @param connectedDevice the device
+     * @param window the notification window
+     * @param now the current time
+     * @return {@link #NOTIFY_COMPLETED} if no reports to retry are left, {@link #NOTIFY_BUSY} or {@link #NOTIFY_WINDOW_FULL}
+     */
+    private int notifyRetryReports(@NonNull final ConnectedDevice connectedDevice, final int window, final long now) {
+        synchronized (connectedDevice) {
+            final NotificationLog retryReports = connectedDevice.retryReports;
+            while (retryReports.size() > 0) {
+                final int attempts = retryReports.getAttempts(0);
+                // allocates, only after a failure status
+                final int result = notify(connectedDevice, retryReports.getReportId(0), retryReports.copyReport(0), attempts + 1, window, now);
+                if (result == NOTIFY_COMPLETED) {
+                    retryReports.removeFirst();
+                    continue;
+                }
+                if (result == NOTIFY_BUSY) {
+                    if (attempts + 1 >= MAX_NOTIFICATION_ATTEMPTS) {
+                        retryReports.removeFirst();
+                        notificationFailureCount.incrementAndGet();
+                        connectedDevice.notificationFailures.incrementAndGet();
+                    } else {
+                        retryReports.setAttempts(0, attempts + 1);
+                    }
+                }
+                return result;
+            }
+        }
+        return NOTIFY_COMPLETED;
+    }
+
+    /**
+     * Notifies the report to the device within the notification window, and logs it until onNotificationSent
+     *
+     * @param connectedDevice the device
+     * @param reportId the Report ID
+     * @param report the report
+     * @param attempts the number of attempts including this one
+     * @param window the notification window
+     * @param now the current time
+     * @return {@link #NOTIFY_COMPLETED} if notified, {@link #NOTIFY_BUSY} if refused, or {@link #NOTIFY_WINDOW_FULL}
+     */
+    private int notify(@NonNull final ConnectedDevice connectedDevice, final int reportId, @NonNull final byte[] report, final int attempts, final int window, final long now) {
+        // onNotificationSent waits, so that it finds the report in the log
+        synchronized (connectedDevice) {
+            if (connectedDevice.inFlightNotifications.get() >= window) {
+                if (now - connectedDevice.lastNotifiedAt < NOTIFICATION_SENT_TIMEOUT_MILLIS) {
+                    return NOTIFY_WINDOW_FULL;
+                }
+                // onNotificationSent has not arrived in time: assume the notifications have been sent
+                connectedDevice.inFlightNotifications.set(0);
+                connectedDevice.inFlightReports.clear();
+            }
+
+            connectedDevice.inFlightReports.addLast(reportId, report, report.length, attempts);
+            boolean notified;
+            try {
+                notified = transport.notifyInputReport(connectedDevice.address, reportId, report);
+                if (!notified) {
+                    notificationBusyCount.incrementAndGet();
+                }
+            } catch (final Throwable t) {
+                notified = false;
+            }
+
+            if (!notified) {
+                connectedDevice.inFlightReports.removeLast();
+                return NOTIFY_BUSY;
+            }
+            connectedDevice.inFlightNotifications.incrementAndGet();
+            connectedDevice.lastNotifiedAt = now;
+            return NOTIFY_COMPLETED;
+        }
+    }
+
+    /**
+     * Clears the delivered flags of the connected devices, on the scheduler thread
+     */
+    private void clearDelivered() {
+        deliverable = false;
+        notified = false;
+        for (final ConnectedDevice connectedDevice : connectedDevices) {
+            connectedDevice.delivered = false;
+        }
+    }
+
+    /**
+     * Clears the delivered flags and the refused counts of the connected devices for the next report, on the scheduler thread
+     */
+    private void startDelivery() {
+        deliverable = false;
+        notified = false;
+        for (final ConnectedDevice connectedDevice : connectedDevices) {
+            connectedDevice.delivered = false;
+            connectedDevice.refusedCount = 0;
+        }
+    }
+
+    /**
+     * Recalculates the achieved throughput, once per THROUGHPUT_WINDOW_MILLIS
+     */
+    private void updateInputReportThroughput() {
+        final long now = uptimeMillis();
+        final long elapsed = now - throughputWindowStartedAt;
+        if (elapsed >= THROUGHPUT_WINDOW_MILLIS) {
+            final long count = sentInputReportCount.get();
+            inputReportThroughput = (count - throughputWindowStartCount) * 1000f / elapsed;
+            throughputWindowStartedAt = now;
+            throughputWindowStartCount = count;
+        }
+    }
+
+    /**
+     * Calculates the number of read requests to read the value
+     *
+     * @param length the value length
+     * @param mtu the ATT MTU
+     * @return the number of read requests
+     */
+    private static int countReadRoundTrips(final int length, final int mtu) {
+        final int payload = mtu - ATT_READ_RESPONSE_HEADER_SIZE;
+        // a value which fills the last response exactly needs one more empty read
+        return length / payload + 1;
+    }
+
+    @Override
+    public void onConnected(@NonNull final String deviceAddress) {
+        synchronized (connectedDevicesMap) {
+            final Integer mtu = deviceMtus.get(deviceAddress);
+            connectedDevicesMap.put(deviceAddress, new ConnectedDevice(deviceAddress, mtu == null ? DEFAULT_ATT_MTU : mtu, inputReportQueue.getMaxReportSize()));
+            connectedDevices = connectedDevicesMap.values().toArray(new ConnectedDevice[connectedDevicesMap.size()]);
+        }
+    }
+
+    @Override
+    public void onDisconnected(@NonNull final String deviceAddress) {
+        synchronized (connectedDevicesMap) {
+            connectedDevicesMap.remove(deviceAddress);
+            deviceMtus.remove(deviceAddress);
+            reportMapBytesServed.remove(deviceAddress);
+            connectedDevices = connectedDevicesMap.values().toArray(new ConnectedDevice[connectedDevicesMap.size()]);
+        }
+    }
+
+    @Override
+    public void onMtuChanged(@NonNull final String deviceAddress, final int mtu) {
+        final HidTracer currentTracer = tracer;
+        if (currentTracer != null) {
+            currentTracer.record(HidTracer.EVENT_MTU, 0, mtu);
+        }
+
+        synchronized (connectedDevicesMap) {
+            deviceMtus.put(deviceAddress, mtu);
+            final ConnectedDevice connectedDevice = connectedDevicesMap.get(deviceAddress);
+            if (connectedDevice != null) {
+                connectedDevice.mtu = mtu;
+            }
+        }
+    }
+
+    @Override
+    public void onNotificationSent(@NonNull final String deviceAddress, final int status) {
+        final HidTracer currentTracer = tracer;
+        if (currentTracer != null) {
+            currentTracer.record(HidTracer.EVENT_NOTIFICATION_SENT, status, 0);
+        }
+
+        final ConnectedDevice connectedDevice;
+        synchronized (connectedDevicesMap) {
+            connectedDevice = connectedDevicesMap.get(deviceAddress);
+        }
+        boolean retry = false;
+        if (connectedDevice != null) {
+            synchronized (connectedDevice) {
+                int inFlight = connectedDevice.inFlightNotifications.get();
+                while (inFlight > 0 && !connectedDevice.inFlightNotifications.compareAndSet(inFlight, inFlight - 1)) {
+                    inFlight = connectedDevice.inFlightNotifications.get();
+                }
+
+                // the notifications are sent in order: the oldest one in flight
+                final NotificationLog inFlightReports = connectedDevice.inFlightReports;
+                if (status != GattTransport.STATUS_SUCCESS && inFlightReports.size() > 0 && inFlightReports.getAttempts(0) < MAX_NOTIFICATION_ATTEMPTS) {
+                    // notified again before the next reports, followed by the reports notified after it,
+                    // so that the last report the device receives is still the latest one
+                    final NotificationLog retryReports = connectedDevice.retryReports;
+                    for (int i = inFlightReports.size() - 1; i >= 0; i--) {
+                        retryReports.addFirst(inFlightReports, i, inFlightReports.getAttempts(i));
+                    }
+                    retry = true;
+                }
+                inFlightReports.removeFirst();
+            }
+        }
+
+        if (status != GattTransport.STATUS_SUCCESS) {
+            notificationFailureCount.incrementAndGet();
+            if (connectedDevice != null) {
+                connectedDevice.notificationFailures.incrementAndGet();
+            }
+        }
+
+        if ((notificationWindowFull || retry) && !resumeScheduled.getAndSet(true)) {
+            post(resumeInputReportsTask);
+        }
+    }
+
+    @Override
+    public boolean onReadRequest(@NonNull final String deviceAddress, final int requestId, final int offset, final int characteristicUuid) {
+        final HidTracer currentTracer = tracer;
+        if (currentTracer != null) {
+            currentTracer.record(HidTracer.EVENT_READ, characteristicUuid, offset);
+        }
+
+        // answered on the transport thread, without allocation
+        if (characteristicUuid == CHARACTERISTIC_REPORT_MAP) {
+            sendReportMapResponse(deviceAddress, requestId, offset);
+            return true;
+        }
+
+        final byte[] response = readResponses.get(characteristicUuid);
+        if (response == null) {
+            return false;
+        }
+        transport.sendResponse(deviceAddress, requestId, GattTransport.STATUS_SUCCESS, 0, response);
+        return true;
+    }
+
+    @Override
+    public void onWriteRequest(@NonNull final String deviceAddress, final int requestId, final int characteristicUuid, final int reportType, final boolean responseNeeded, @NonNull final byte[] value) {
+        final HidTracer currentTracer = tracer;
+        if (currentTracer != null) {
+            currentTracer.record(HidTracer.EVENT_WRITE, characteristicUuid, value.length);
+        }
+
+        if (responseNeeded && characteristicUuid == CHARACTERISTIC_REPORT) {
+            if (reportType == ReportField.TYPE_OUTPUT) {
+                final OutputReportListener listener = outputReportListener;
+                if (listener != null) {
+                    listener.onOutputReport(value);
+                }
+            }
+
+            // send empty
+            transport.sendResponse(deviceAddress, requestId, GattTransport.STATUS_SUCCESS, 0, EMPTY_BYTES);
+        }
+    }
+
+    /**
+     * Sends a part of the Report Map, as much as the negotiated MTU allows. The central reads the rest with Read Blob.
+     *
+     * @param deviceAddress the device address
+     * @param requestId the request ID
+     * @param offset the offset
+     */
+    private void sendReportMapResponse(@NonNull final String deviceAddress, final int requestId, final int offset) {
+        if (offset < 0 || offset > reportMap.length) {
+            transport.sendResponse(deviceAddress, requestId, GattTransport.STATUS_INVALID_OFFSET, offset, null);
+            return;
+        }
+
+        final int mtu = Math.min(getMtu(deviceAddress), MAX_ATT_MTU);
+        final int payload = mtu - ATT_READ_RESPONSE_HEADER_SIZE;
+        if (offset == 0) {
+            reportMapReadCount.incrementAndGet();
+            savedRoundTripCount.addAndGet(countReadRoundTrips(reportMap.length, DEFAULT_ATT_MTU) - countReadRoundTrips(reportMap.length, mtu));
+        }
+
+        final byte[] slice;
+        if (offset % payload == 0) {
+            slice = getReportMapSlices(mtu)[offset / payload];
+        } else {
+            // the central does not follow the MTU sized chunks
+            slice = Arrays.copyOfRange(reportMap, offset, Math.min(reportMap.length, offset + payload));
+        }
+
+        transport.sendResponse(deviceAddress, requestId, GattTransport.STATUS_SUCCESS, offset, slice);
+
+        reportMapBytesServedCount.addAndGet(slice.length);
+        synchronized (connectedDevicesMap) {
+            if (!connectedDevicesMap.containsKey(deviceAddress)) {
+                // not counted for the device, its entry would never be removed
+                return;
+            }
+            final AtomicLong served = reportMapBytesServed.get(deviceAddress);
+            if (served != null) {
+                served.addAndGet(slice.length);
+            } else {
+                reportMapBytesServed.put(deviceAddress, new AtomicLong(slice.length));
+            }
+        }
+    }
+
+    /**
+     * Obtains the Report Map sliced into the read responses for the MTU, slices are created once for each MTU
+     *
+     * @param mtu the ATT MTU
+     * @return the slices, the last one may be empty
+     */
+    @NonNull
+    private byte[][] getReportMapSlices(final int mtu) {
+        synchronized (reportMapSlices) {
+            byte[][] slices = reportMapSlices[mtu];
+            if (slices == null) {
+                final int payload = mtu - ATT_READ_RESPONSE_HEADER_SIZE;
+                slices = new byte[reportMap.length / payload + 1][];
+                for (int i = 0; i < slices.length; i++) {
+                    final int offset = i * payload;
+                    slices[i] = Arrays.copyOfRange(reportMap, offset, Math.min(reportMap.length, offset + payload));
+                }
+                reportMapSlices[mtu] = slices;
+            }
+            return slices;
+        }
+    }
+
+    /**
+     * Set the Input Report sending mode
+     *
+     * @param newSendMode {@link #SEND_MODE_TIMER} or {@link #SEND_MODE_EVENT}
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    public void setSendMode(final int newSendMode) throws IllegalArgumentException {
+        if (newSendMode != SEND_MODE_TIMER && newSendMode != SEND_MODE_EVENT) {
+            throw new IllegalArgumentException("Unknown send mode: " + newSendMode);
+        }
+        sendMode = newSendMode;
+
+        if (newSendMode == SEND_MODE_TIMER) {
+            startSendTick();
+        } else if (hasPendingInputReport()) {
+            scheduleEventDrain();
+        }
+    }
+
+    /**
+     * Obtains the Input Report sending mode
+     *
+     * @return {@link #SEND_MODE_TIMER} or {@link #SEND_MODE_EVENT}
+     */
+    public int getSendMode() {
+        return sendMode;
+    }
+
+    /**
+     * Obtains the latency histogram from queueing an Input Report to notifying it, recorded while the specified mode is active.
+     *
+     * @param mode {@link #SEND_MODE_TIMER} or {@link #SEND_MODE_EVENT}
+     * @return the histogram
+     */
+    @NonNull
+    public LatencyHistogram getInputReportLatencyHistogram(final int mode) {
+        return inputReportLatencyHistograms[mode];
+    }
+
+    /**
+     * Obtains the histogram of the delay from the time a sending is due to the time the scheduler thread starts notifying.
+     *
+     * @return the histogram
+     */
+    @NonNull
+    public LatencyHistogram getSendDispatchJitterHistogram() {
+        return sendDispatchJitterHistogram;
+    }
+
+    /**
+     * Set the number of notifications which may be outstanding for each device, until onNotificationSent is called.<br />
+     * While the window is full, reports stay queued and are sent as soon as the device frees the window.
+     *
+     * @param window the number of notifications, must be positive
+     * @throws IllegalArgumentException if window is not positive
+     */
+    public void setNotificationWindow(final int window) throws IllegalArgumentException {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        notificationWindow = window;
+    }
+
+    /**
+     * Obtains the number of notifications which may be outstanding for each device
+     *
+     * @return the number of notifications
+     */
+    public int getNotificationWindow() {
+        return notificationWindow;
+    }
+
+    /**
+     * Obtains the number of notifications refused because the link was busy. The refused reports have been retried, up to {@link #MAX_NOTIFICATION_ATTEMPTS} times.
+     *
+     * @return the number of notifications
+     */
+    public long getNotificationBusyCount() {
+        return notificationBusyCount.get();
+    }
+
+    /**
+     * Obtains the number of notifications failed with a failure status on onNotificationSent, the failed reports have been retried up to {@link #MAX_NOTIFICATION_ATTEMPTS} times,
+     * and the reports given up after being refused or failed with an exception {@link #MAX_NOTIFICATION_ATTEMPTS} times
+     *
+     * @return the number of notifications
+     */
+    public long getNotificationFailureCount() {
+        return notificationFailureCount.get();
+    }
+
+    /**
+     * Obtains the number of notifications failed for the device in the current connection
+     *
+     * @param deviceAddress the device address
+     * @return the number of notifications, 0 if the device is not connected
+     */
+    public long getNotificationFailureCount(@NonNull final String deviceAddress) {
+        final ConnectedDevice connectedDevice;
+        synchronized (connectedDevicesMap) {
+            connectedDevice = connectedDevicesMap.get(deviceAddress);
+        }
+        return connectedDevice == null ? 0 : connectedDevice.notificationFailures.get();
+    }
+
+    /**
+     * Obtains the number of times an Input Report was skipped for a device, because the report is larger than the device's MTU allows
+     *
+     * @return the number of reports
+     */
+    public long getOversizedInputReportCount() {
+        return oversizedInputReportCount.get();
+    }
+
+    /**
+     * Obtains the max size of an Input Report
+     *
+     * @return the size in bytes
+     */
+    public int getMaxInputReportSize() {
+        return inputReportQueue.getMaxReportSize();
+    }
+
+    /**
+     * Obtains the ATT MTU negotiated with the device
+     *
+     * @param deviceAddress the device address
+     * @return the MTU, 23 if not negotiated
+     */
+    public int getMtu(@NonNull final String deviceAddress) {
+        synchronized (connectedDevicesMap) {
+            final Integer mtu = deviceMtus.get(deviceAddress);
+            return mtu == null ? DEFAULT_ATT_MTU : mtu;
+        }
+    }
+
+    /**
+     * Obtains the largest report size which can be notified to all connected devices
+     *
+     * @return the size in bytes, limited by the smallest MTU of the connected devices
+     */
+    public int getNotifiableReportSize() {
+        int mtu = Integer.MAX_VALUE;
+        for (final ConnectedDevice connectedDevice : connectedDevices) {
+            mtu = Math.min(mtu, connectedDevice.mtu);
+        }
+        if (mtu == Integer.MAX_VALUE) {
+            mtu = DEFAULT_ATT_MTU;
+        }
+        return Math.min(MAX_REPORT_SIZE, mtu - ATT_NOTIFICATION_HEADER_SIZE);
+    }
+
+    /**
+     * Obtains the addresses of the connected devices
+     *
+     * @return the addresses
+     */
+    @NonNull
+    public String[] getConnectedDeviceAddresses() {
+        final ConnectedDevice[] devices = connectedDevices;
+        final String[] addresses = new String[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            addresses[i] = devices[i].address;
+        }
+        return addresses;
+    }
+
+    /**
+     * Obtains the number of times the Report Map has been read from the start
+     *
+     * @return the number of reads
+     */
+    public long getReportMapReadCount() {
+        return reportMapReadCount.get();
+    }
+
+    /**
+     * Obtains the number of Report Map bytes served to all devices
+     *
+     * @return the number of bytes
+     */
+    public long getReportMapBytesServedCount() {
+        return reportMapBytesServedCount.get();
+    }
+
+    /**
+     * Obtains the number of Report Map bytes served to the device in the current connection, counted while the device is connected
+     *
+     * @param deviceAddress the device address
+     * @return the number of bytes
+     */
+    public long getReportMapBytesServed(@NonNull final String deviceAddress) {
+        synchronized (connectedDevicesMap) {
+            final AtomicLong served = reportMapBytesServed.get(deviceAddress);
+            return served == null ? 0 : served.get();
+        }
+    }
+
+    /**
+     * Obtains the number of Report Map read requests saved by the negotiated MTU, compared to the default MTU
+     *
+     * @return the number of read requests
+     */
+    public long getSavedRoundTripCount() {
+        return savedRoundTripCount.get();
+    }
+
+    /**
+     * Set the tracer to record the GATT events into
+     *
+     * @param newTracer the tracer, null to disable tracing
+     */
+    public void setTracer(@Nullable final HidTracer newTracer) {
+        tracer = newTracer;
+    }
+
+    /**
+     * Obtains the tracer
+     *
+     * @return the tracer, null if tracing is disabled
+     */
+    @Nullable
+    public HidTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Obtains the number of Input Reports queued
+     *
+     * @return the number of reports
+     */
+    public long getEnqueuedInputReportCount() {
+        return enqueuedInputReportCount.get();
+    }
+
+    /**
+     * Takes a snapshot of the Input Report pipeline metrics.<br />
+     * The counters are recorded without allocation, only taking the snapshot allocates.
+     *
+     * @return the snapshot
+     */
+    @NonNull
+    public HidMetrics getMetrics() {
+        final LatencyHistogram latencyHistogram = new LatencyHistogram();
+        for (final LatencyHistogram histogram : inputReportLatencyHistograms) {
+            latencyHistogram.add(histogram);
+        }
+
+        final Map<String, Long> deviceNotificationFailureCounts = new HashMap<>();
+        for (final ConnectedDevice connectedDevice : connectedDevices) {
+            deviceNotificationFailureCounts.put(connectedDevice.address, connectedDevice.notificationFailures.get());
+        }
+
+        return new HidMetrics(uptimeMillis(), inputReportQueue.size(), inputReportQueue.getCapacity(),
+                enqueuedInputReportCount.get(), sentInputReportCount.get(), getDroppedInputReportCount(), inputReportQueue.getCoalescedCount(),
+                notificationBusyCount.get(), notificationFailureCount.get(), oversizedInputReportCount.get(), inputReportThroughput,
+                latencyHistogram, deviceNotificationFailureCounts);
+    }
+
+    /**
+     * Set the listener to report the metrics periodically, while the pipeline is started
+     *
+     * @param listener the listener, null to stop reporting
+     * @param intervalMillis the interval in milliseconds
+     * @throws IllegalArgumentException if intervalMillis is not positive
+     */
+    public void setMetricsListener(@Nullable final HidMetrics.Listener listener, final long intervalMillis) throws IllegalArgumentException {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid interval: " + intervalMillis);
+        }
+
+        synchronized (lifecycleLock) {
+            metricsListener = listener;
+            metricsIntervalMillis = intervalMillis;
+            final Scheduler currentScheduler = scheduler;
+            if (currentScheduler != null) {
+                currentScheduler.remove(reportMetricsTask);
+                if (listener != null) {
+                    currentScheduler.postDelayed(reportMetricsTask, intervalMillis);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the maximum number of Input Reports sent on each sending tick.<br />
+     * The default value is 1. Larger value drains the queue faster, if the connection interval is shorter than the sending rate.
+     *
+     * @param maxReportsPerTick the number of reports, must be positive
+     * @throws IllegalArgumentException if maxReportsPerTick is not positive
+     */
+    public void setMaxInputReportsPerTick(final int maxReportsPerTick) throws IllegalArgumentException {
+        if (maxReportsPerTick < 1) {
+            throw new IllegalArgumentException("maxReportsPerTick must be positive: " + maxReportsPerTick);
+        }
+        maxInputReportsPerTick = maxReportsPerTick;
+    }
+
+    /**
+     * Obtains the maximum number of Input Reports sent on each sending tick.
+     *
+     * @return the number of reports
+     */
+    public int getMaxInputReportsPerTick() {
+        return maxInputReportsPerTick;
+    }
+
+    /**
+     * Obtains the number of Input Reports notified to at least one device since the instance has been created.
+     *
+     * @return the number of reports
+     */
+    public long getSentInputReportCount() {
+        return sentInputReportCount.get();
+    }
+
+    /**
+     * Obtains the achieved Input Report throughput, measured over the last second.
+     *
+     * @return reports per second
+     */
+    public float getInputReportThroughput() {
+        return inputReportThroughput;
+    }
+}
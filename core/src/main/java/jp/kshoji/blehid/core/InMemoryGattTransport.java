@@ -0,0 +1,264 @@
+package jp.kshoji.blehid.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link GattTransport} without a radio, to run {@link HidPipeline} on the JVM<br />
+ * The central side is driven by the methods of this class: connect, negotiate the MTU, read, write and acknowledge the notifications.
+ *
+ * @author K.Shoji
+ */
+public final class InMemoryGattTransport implements GattTransport {
+    /**
+     * Listener for the notified Input Reports
+     */
+    public interface NotificationListener {
+        /**
+         * Called on the sending thread for each accepted notification
+         *
+         * @param deviceAddress the device address
+         * @param reportId the Report ID
+         * @param report the report, valid only while this call
+         */
+        void onNotification(@NonNull String deviceAddress, int reportId, @NonNull byte[] report);
+    }
+
+    private volatile Callback callback;
+    private volatile NotificationListener notificationListener;
+    private volatile boolean accepting = true;
+    private final AtomicLong notificationCount = new AtomicLong();
+    // notifications not acknowledged yet for each device address, guarded by itself
+    private final Map<String, Integer> pendingNotifications = new HashMap<>();
+
+    // response of the last request, guarded by requestLock
+    private final Object requestLock = new Object();
+    private int requestCount;
+    private int responseStatus;
+    private byte[] responseValue;
+
+    @Override
+    public void setCallback(@Nullable final Callback newCallback) {
+        callback = newCallback;
+    }
+
+    /**
+     * Set the listener for the notified Input Reports
+     *
+     * @param listener the listener, null to stop listening
+     */
+    public void setNotificationListener(@Nullable final NotificationListener listener) {
+        notificationListener = listener;
+    }
+
+    /**
+     * Simulates a busy link, notifications are refused while not accepting.
+     *
+     * @param newAccepting false to refuse notifications
+     */
+    public void setAccepting(final boolean newAccepting) {
+        accepting = newAccepting;
+    }
+
+    /**
+     * Connects a device
+     *
+     * @param deviceAddress the device address
+     */
+    public void connect(@NonNull final String deviceAddress) {
+        final Callback currentCallback = callback;
+        if (currentCallback != null) {
+            currentCallback.onConnected(deviceAddress);
+        }
+    }
+
+    /**
+     * Disconnects a device, the notifications not acknowledged are forgotten.
+     *
+     * @param deviceAddress the device address
+     */
+    public void disconnect(@NonNull final String deviceAddress) {
+        synchronized (pendingNotifications) {
+            pendingNotifications.remove(deviceAddress);
+        }
+
+        final Callback currentCallback = callback;
+        if (currentCallback != null) {
+            currentCallback.onDisconnected(deviceAddress);
+        }
+    }
+
+    /**
+     * Negotiates the ATT MTU
+     *
+     * @param deviceAddress the device address
+     * @param mtu the ATT MTU
+     */
+    public void changeMtu(@NonNull final String deviceAddress, final int mtu) {
+        final Callback currentCallback = callback;
+        if (currentCallback != null) {
+            currentCallback.onMtuChanged(deviceAddress, mtu);
+        }
+    }
+
+    /**
+     * Acknowledges the notifications sent to the device
+     *
+     * @param deviceAddress the device address
+     * @return the number of notifications acknowledged
+     */
+    public int acknowledge(@NonNull final String deviceAddress) {
+        final Integer pending;
+        synchronized (pendingNotifications) {
+            pending = pendingNotifications.remove(deviceAddress);
+        }
+        if (pending == null) {
+            return 0;
+        }
+
+        final Callback currentCallback = callback;
+        if (currentCallback != null) {
+            for (int i = 0; i < pending; i++) {
+                currentCallback.onNotificationSent(deviceAddress, STATUS_SUCCESS);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Fails the oldest notification sent to the device, as if the stack called onNotificationSent with a failure status
+     *
+     * @param deviceAddress the device address
+     * @return true if a notification was waiting to be acknowledged
+     */
+    public boolean fail(@NonNull final String deviceAddress) {
+        synchronized (pendingNotifications) {
+            final Integer pending = pendingNotifications.get(deviceAddress);
+            if (pending == null) {
+                return false;
+            }
+            if (pending == 1) {
+                pendingNotifications.remove(deviceAddress);
+            } else {
+                pendingNotifications.put(deviceAddress, pending - 1);
+            }
+        }
+
+        final Callback currentCallback = callback;
+        if (currentCallback != null) {
+            currentCallback.onNotificationSent(deviceAddress, STATUS_FAILURE);
+        }
+        return true;
+    }
+
+    /**
+     * Obtains the number of notifications sent to the device and not acknowledged yet
+     *
+     * @param deviceAddress the device address
+     * @return the number of notifications
+     */
+    public int getPendingNotificationCount(@NonNull final String deviceAddress) {
+        synchronized (pendingNotifications) {
+            final Integer pending = pendingNotifications.get(deviceAddress);
+            return pending == null ? 0 : pending;
+        }
+    }
+
+    /**
+     * Obtains the number of notifications accepted
+     *
+     * @return the number of notifications
+     */
+    public long getNotificationCount() {
+        return notificationCount.get();
+    }
+
+    /**
+     * Reads the characteristic
+     *
+     * @param deviceAddress the device address
+     * @param characteristicUuid the 16-bit UUID of the characteristic
+     * @param offset the offset
+     * @return the value, null if the read has not been answered or failed
+     */
+    @Nullable
+    public byte[] read(@NonNull final String deviceAddress, final int characteristicUuid, final int offset) {
+        final Callback currentCallback = callback;
+        if (currentCallback == null) {
+            return null;
+        }
+
+        synchronized (requestLock) {
+            responseStatus = STATUS_FAILURE;
+            responseValue = null;
+            if (!currentCallback.onReadRequest(deviceAddress, requestCount++, offset, characteristicUuid)) {
+                return null;
+            }
+            return responseStatus == STATUS_SUCCESS ? responseValue : null;
+        }
+    }
+
+    /**
+     * Writes the characteristic, with response
+     *
+     * @param deviceAddress the device address
+     * @param characteristicUuid the 16-bit UUID of the characteristic
+     * @param reportType the report type of the Report characteristic, 0 for the other characteristics
+     * @param value the value
+     * @return the response status, {@link #STATUS_FAILURE} if not answered
+     */
+    public int write(@NonNull final String deviceAddress, final int characteristicUuid, final int reportType, @NonNull final byte[] value) {
+        final Callback currentCallback = callback;
+        if (currentCallback == null) {
+            return STATUS_FAILURE;
+        }
+
+        synchronized (requestLock) {
+            responseStatus = STATUS_FAILURE;
+            currentCallback.onWriteRequest(deviceAddress, requestCount++, characteristicUuid, reportType, true, value);
+            return responseStatus;
+        }
+    }
+
+    /**
+     * Obtains the status of the last response
+     *
+     * @return the status
+     */
+    public int getLastResponseStatus() {
+        synchronized (requestLock) {
+            return responseStatus;
+        }
+    }
+
+    @Override
+    public boolean notifyInputReport(@NonNull final String deviceAddress, final int reportId, @NonNull final byte[] report) {
+        if (!accepting) {
+            return false;
+        }
+
+        synchronized (pendingNotifications) {
+            final Integer pending = pendingNotifications.get(deviceAddress);
+            pendingNotifications.put(deviceAddress, pending == null ? 1 : pending + 1);
+        }
+        notificationCount.incrementAndGet();
+
+        final NotificationListener listener = notificationListener;
+        if (listener != null) {
+            listener.onNotification(deviceAddress, reportId, report);
+        }
+        return true;
+    }
+
+    @Override
+    public void sendResponse(@NonNull final String deviceAddress, final int requestId, final int status, final int offset, @Nullable final byte[] value) {
+        synchronized (requestLock) {
+            responseStatus = status;
+            responseValue = value;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package jp.kshoji.blehid.core;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Task posted to a {@link Scheduler} with its due time, ordered by the due time and then the posted order
+ *
+ * @author K.Shoji
+ */
+final class ScheduledTask implements Comparable<ScheduledTask> {
+    final Runnable task;
+    final long dueAt;
+    final long sequence;
+
+    ScheduledTask(@NonNull final Runnable task, final long dueAt, final long sequence) {
+        this.task = task;
+        this.dueAt = dueAt;
+        this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(@NonNull final ScheduledTask another) {
+        if (dueAt != another.dueAt) {
+            return dueAt < another.dueAt ? -1 : 1;
+        }
+        // posted order for the same due time
+        return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+    }
+}
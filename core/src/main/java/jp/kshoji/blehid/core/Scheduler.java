@@ -0,0 +1,46 @@
+package jp.kshoji.blehid.core;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Runs the tasks of {@link HidPipeline} on a single thread, in the posted order
+ *
+ * @author K.Shoji
+ */
+public interface Scheduler {
+    /**
+     * Obtains the current time of the scheduler clock
+     *
+     * @return the time in milliseconds, monotonic
+     */
+    long uptimeMillis();
+
+    /**
+     * Posts the task
+     *
+     * @param task the task
+     */
+    void post(@NonNull Runnable task);
+
+    /**
+     * Posts the task to run after the delay
+     *
+     * @param task the task
+     * @param delayMillis the delay in milliseconds
+     */
+    void postDelayed(@NonNull Runnable task, long delayMillis);
+
+    /**
+     * Removes the pending posts of the task
+     *
+     * @param task the task
+     */
+    void remove(@NonNull Runnable task);
+
+    /**
+     * Check if the caller runs on the scheduler thread
+     *
+     * @return true if on the scheduler thread
+     */
+    boolean isSchedulerThread();
+}
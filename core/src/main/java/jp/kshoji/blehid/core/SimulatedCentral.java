@@ -0,0 +1,476 @@
+package jp.kshoji.blehid.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import jp.kshoji.blehid.util.LatencyHistogram;
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapParser;
+
+/**
+ * Simulated BLE central, connected to {@link HidPipeline} as its {@link GattTransport}<br />
+ * Models the connection interval, the notifications sent on each connection event, the ATT MTU and the packet loss.
+ * Run it on a {@link VirtualScheduler} with a fixed seed, the results are deterministic.<br />
+ * On connection, the central negotiates the MTU, reads the Report Map with Read Blob and subscribes to the Input Reports, one request per connection event.
+ * The notifications are decoded with the Report Map read from the peripheral, and the delay from each input event to the host is measured.
+ *
+ * @author K.Shoji
+ */
+public final class SimulatedCentral implements GattTransport {
+    /**
+     * The address of the simulated device
+     */
+    public static final String DEVICE_ADDRESS = "00:00:00:00:00:01";
+
+    /**
+     * Connection states
+     */
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_EXCHANGING_MTU = 1;
+    public static final int STATE_READING_REPORT_MAP = 2;
+    public static final int STATE_SUBSCRIBING = 3;
+    public static final int STATE_SUBSCRIBED = 4;
+
+    private static final int ATT_READ_RESPONSE_HEADER_SIZE = 1;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * Listener for the notified Input Reports
+     */
+    public interface InputReportListener {
+        /**
+         * Called when an Input Report has arrived at the host
+         *
+         * @param reportId the Report ID
+         * @param report the report, decode it with {@link #getReportLayout()}
+         */
+        void onInputReport(int reportId, @NonNull byte[] report);
+    }
+
+    /**
+     * Notification waiting in the link layer
+     */
+    private static final class Packet {
+        final int reportId;
+        final byte[] report;
+
+        Packet(final int reportId, @NonNull final byte[] report) {
+            this.reportId = reportId;
+            this.report = report;
+        }
+    }
+
+    private final Scheduler scheduler;
+    private final int connectionIntervalMillis;
+    private final int notificationsPerInterval;
+    private final int mtu;
+    private final float packetLossRate;
+    private final Random random;
+    private volatile Callback callback;
+    private InputReportListener inputReportListener;
+
+    private int state = STATE_DISCONNECTED;
+    private int bufferCapacity;
+    private final ArrayDeque<Packet> linkBuffer = new ArrayDeque<>();
+    private final ByteArrayOutputStream reportMapBuffer = new ByteArrayOutputStream();
+    private ReportLayout reportLayout;
+    private int requestCount;
+    private int responseStatus;
+    private byte[] responseValue;
+    private long connectedAt;
+    private long subscribedAt;
+
+    /**
+     * Input events
+     */
+    // time of the events reported one by one, delivered in order
+    private final ArrayDeque<Long> inputEvents = new ArrayDeque<>();
+    // time and cumulative amount of the motion events, delivered when the decoded motion reaches the amount
+    private final ArrayDeque<long[]> motionEvents = new ArrayDeque<>();
+    private int motionUsagePage;
+    private int motionUsage;
+    private long markedMotion;
+    private long deliveredMotion;
+
+    /**
+     * Statistics
+     */
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+    private long deliveredReportCount;
+    private long firstDeliveredAt = -1;
+    private long lastDeliveredAt;
+    private long lostPacketCount;
+    private long busyCount;
+
+    /**
+     * Constructor
+     *
+     * @param scheduler the scheduler to run the connection events, same as the pipeline
+     * @param connectionIntervalMillis the connection interval in milliseconds
+     * @param notificationsPerInterval the number of notifications sent on each connection event
+     * @param mtu the ATT MTU requested by the central
+     * @param packetLossRate the rate of packets lost on the air (0.0 .. 1.0), a lost packet is retransmitted on the next connection event
+     * @param seed the seed of the packet loss
+     * @throws IllegalArgumentException if a parameter is out of range
+     */
+    public SimulatedCentral(@NonNull final Scheduler scheduler, final int connectionIntervalMillis, final int notificationsPerInterval, final int mtu, final float packetLossRate, final long seed) throws IllegalArgumentException {
+        if (connectionIntervalMillis < 1) {
+            throw new IllegalArgumentException("connectionIntervalMillis must be positive: " + connectionIntervalMillis);
+        }
+        if (notificationsPerInterval < 1) {
+            throw new IllegalArgumentException("notificationsPerInterval must be positive: " + notificationsPerInterval);
+        }
+        if (mtu < HidPipeline.DEFAULT_ATT_MTU) {
+            throw new IllegalArgumentException("mtu must be " + HidPipeline.DEFAULT_ATT_MTU + " or larger: " + mtu);
+        }
+        if (packetLossRate < 0f || packetLossRate >= 1f) {
+            throw new IllegalArgumentException("packetLossRate must be 0.0 .. 1.0: " + packetLossRate);
+        }
+
+        this.scheduler = scheduler;
+        this.connectionIntervalMillis = connectionIntervalMillis;
+        this.notificationsPerInterval = notificationsPerInterval;
+        this.mtu = mtu;
+        this.packetLossRate = packetLossRate;
+        random = new Random(seed);
+        bufferCapacity = notificationsPerInterval;
+    }
+
+    @Override
+    public void setCallback(@Nullable final Callback newCallback) {
+        callback = newCallback;
+    }
+
+    /**
+     * Set the listener for the Input Reports arrived at the host
+     *
+     * @param listener the listener, null to stop listening
+     */
+    public void setInputReportListener(@Nullable final InputReportListener listener) {
+        inputReportListener = listener;
+    }
+
+    /**
+     * Set the number of notifications the link layer buffers, more notifications are refused as busy
+     *
+     * @param capacity the number of notifications, must be positive
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public void setBufferCapacity(final int capacity) throws IllegalArgumentException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        bufferCapacity = capacity;
+    }
+
+    /**
+     * Connects to the peripheral, the connection events start immediately.
+     */
+    public void connect() {
+        if (state != STATE_DISCONNECTED) {
+            return;
+        }
+
+        state = STATE_EXCHANGING_MTU;
+        connectedAt = scheduler.uptimeMillis();
+        reportMapBuffer.reset();
+        reportLayout = null;
+        scheduler.post(connectionEventTask);
+    }
+
+    /**
+     * Disconnects from the peripheral, the buffered notifications are lost.
+     */
+    public void disconnect() {
+        if (state == STATE_DISCONNECTED) {
+            return;
+        }
+
+        final boolean subscribed = state == STATE_SUBSCRIBED;
+        state = STATE_DISCONNECTED;
+        scheduler.remove(connectionEventTask);
+        linkBuffer.clear();
+
+        final Callback currentCallback = callback;
+        if (subscribed && currentCallback != null) {
+            currentCallback.onDisconnected(DEVICE_ADDRESS);
+        }
+    }
+
+    /**
+     * Runs a connection event: an ATT request while connecting, or the notifications after subscribed
+     */
+    private final Runnable connectionEventTask = new Runnable() {
+        @Override
+        public void run() {
+            final Callback currentCallback = callback;
+            if (state == STATE_DISCONNECTED || currentCallback == null) {
+                return;
+            }
+
+            switch (state) {
+                case STATE_EXCHANGING_MTU:
+                    currentCallback.onMtuChanged(DEVICE_ADDRESS, mtu);
+                    state = STATE_READING_REPORT_MAP;
+                    break;
+
+                case STATE_READING_REPORT_MAP:
+                    readReportMap(currentCallback);
+                    break;
+
+                case STATE_SUBSCRIBING:
+                    // enabling the notifications on the Client Characteristic Configuration descriptor
+                    currentCallback.onConnected(DEVICE_ADDRESS);
+                    subscribedAt = scheduler.uptimeMillis();
+                    state = STATE_SUBSCRIBED;
+                    break;
+
+                default:
+                    sendNotifications(currentCallback);
+                    break;
+            }
+
+            scheduler.postDelayed(this, connectionIntervalMillis);
+        }
+    };
+
+    /**
+     * Reads the next part of the Report Map, and parses it when completed
+     *
+     * @param currentCallback the callback
+     */
+    private void readReportMap(@NonNull final Callback currentCallback) {
+        responseStatus = STATUS_FAILURE;
+        responseValue = null;
+        if (!currentCallback.onReadRequest(DEVICE_ADDRESS, requestCount++, reportMapBuffer.size(), HidPipeline.CHARACTERISTIC_REPORT_MAP)
+                || responseStatus != STATUS_SUCCESS || responseValue == null) {
+            // the Report Map is not available: subscribe without decoding
+            state = STATE_SUBSCRIBING;
+            return;
+        }
+
+        reportMapBuffer.write(responseValue, 0, responseValue.length);
+        if (responseValue.length < mtu - ATT_READ_RESPONSE_HEADER_SIZE) {
+            // a short response is the last part
+            try {
+                reportLayout = ReportMapParser.parse(reportMapBuffer.toByteArray());
+            } catch (final IllegalArgumentException ignored) {
+                // malformed: subscribe without decoding
+            }
+            state = STATE_SUBSCRIBING;
+        }
+    }
+
+    /**
+     * Sends the buffered notifications, as many as a connection event allows.
+     *
+     * @param currentCallback the callback
+     */
+    private void sendNotifications(@NonNull final Callback currentCallback) {
+        for (int i = 0; i < notificationsPerInterval && !linkBuffer.isEmpty(); i++) {
+            if (random.nextFloat() < packetLossRate) {
+                // not acknowledged: retransmitted on the next connection event, the following packets wait
+                lostPacketCount++;
+                break;
+            }
+
+            final Packet packet = linkBuffer.poll();
+            onInputReportArrived(packet.reportId, packet.report);
+            currentCallback.onNotificationSent(DEVICE_ADDRESS, STATUS_SUCCESS);
+        }
+    }
+
+    /**
+     * Decodes the arrived Input Report, and completes the input events delivered by it
+     *
+     * @param reportId the Report ID
+     * @param report the report
+     */
+    private void onInputReportArrived(final int reportId, @NonNull final byte[] report) {
+        final long now = scheduler.uptimeMillis();
+        deliveredReportCount++;
+        if (firstDeliveredAt < 0) {
+            firstDeliveredAt = now;
+        }
+        lastDeliveredAt = now;
+
+        final Long eventAt = inputEvents.poll();
+        if (eventAt != null) {
+            latencyHistogram.record((now - eventAt) * NANOS_PER_MILLI);
+        }
+
+        if (!motionEvents.isEmpty()) {
+            deliveredMotion += Math.abs(decodeMotion(reportId, report));
+            while (!motionEvents.isEmpty() && motionEvents.peek()[1] <= deliveredMotion) {
+                latencyHistogram.record((now - motionEvents.poll()[0]) * NANOS_PER_MILLI);
+            }
+        }
+
+        if (inputReportListener != null) {
+            inputReportListener.onInputReport(reportId, report);
+        }
+    }
+
+    /**
+     * Decodes the motion of the tracked usage from the report
+     *
+     * @param reportId the Report ID
+     * @param report the report
+     * @return the motion, 0 if the report does not have the usage
+     */
+    private int decodeMotion(final int reportId, @NonNull final byte[] report) {
+        if (reportLayout == null) {
+            return 0;
+        }
+
+        for (final ReportField field : reportLayout.getFields()) {
+            if (field.getReportType() != ReportField.TYPE_INPUT || field.getReportId() != reportId || field.getUsagePage() != motionUsagePage || field.isArray()) {
+                continue;
+            }
+            for (int i = 0; i < field.getCount(); i++) {
+                if (field.getUsage(i) == motionUsage) {
+                    return field.get(report, i);
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Marks an input event which produces one Input Report, the delay is measured when the next report arrives at the host.
+     */
+    public void markInputEvent() {
+        inputEvents.add(scheduler.uptimeMillis());
+    }
+
+    /**
+     * Set the usage decoded to measure the motion events
+     *
+     * @param usagePage the usage page
+     * @param usage the usage
+     */
+    public void setMotionUsage(final int usagePage, final int usage) {
+        motionUsagePage = usagePage;
+        motionUsage = usage;
+    }
+
+    /**
+     * Marks a relative motion event, which may be merged into other reports or split into several reports.<br />
+     * The delay is measured when the decoded motion of the usage set by {@link #setMotionUsage(int, int)} reaches the motion marked until this event.
+     *
+     * @param amount the amount of the motion
+     */
+    public void markMotionEvent(final int amount) {
+        markedMotion += Math.abs(amount);
+        motionEvents.add(new long[] {scheduler.uptimeMillis(), markedMotion});
+    }
+
+    @Override
+    public boolean notifyInputReport(@NonNull final String deviceAddress, final int reportId, @NonNull final byte[] report) {
+        if (state != STATE_SUBSCRIBED || linkBuffer.size() >= bufferCapacity) {
+            busyCount++;
+            return false;
+        }
+
+        linkBuffer.add(new Packet(reportId, report.clone()));
+        return true;
+    }
+
+    @Override
+    public void sendResponse(@NonNull final String deviceAddress, final int requestId, final int status, final int offset, @Nullable final byte[] value) {
+        responseStatus = status;
+        responseValue = value;
+    }
+
+    /**
+     * Obtains the connection state
+     *
+     * @return the state
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * Obtains the layout of the Report Map read from the peripheral
+     *
+     * @return the layout, null if not read yet or malformed
+     */
+    @Nullable
+    public ReportLayout getReportLayout() {
+        return reportLayout;
+    }
+
+    /**
+     * Obtains the time from the connection to the subscription
+     *
+     * @return the time in milliseconds, including the MTU exchange and the Report Map reading
+     */
+    public long getSetupMillis() {
+        return subscribedAt - connectedAt;
+    }
+
+    /**
+     * Obtains the latency histogram from the input events to the host
+     *
+     * @return the histogram
+     */
+    @NonNull
+    public LatencyHistogram getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    /**
+     * Obtains the number of Input Reports arrived at the host
+     *
+     * @return the number of reports
+     */
+    public long getDeliveredReportCount() {
+        return deliveredReportCount;
+    }
+
+    /**
+     * Obtains the sustained Input Report rate, from the first arrival to the last
+     *
+     * @return reports per second, 0 if less than two reports arrived
+     */
+    public float getReportsPerSecond() {
+        final long elapsed = lastDeliveredAt - firstDeliveredAt;
+        if (deliveredReportCount < 2 || elapsed <= 0) {
+            return 0f;
+        }
+        return (deliveredReportCount - 1) * 1000f / elapsed;
+    }
+
+    /**
+     * Obtains the number of packets lost and retransmitted
+     *
+     * @return the number of packets
+     */
+    public long getLostPacketCount() {
+        return lostPacketCount;
+    }
+
+    /**
+     * Obtains the number of notifications refused because the link layer buffer was full
+     *
+     * @return the number of notifications
+     */
+    public long getBusyCount() {
+        return busyCount;
+    }
+
+    /**
+     * Obtains the number of input events not arrived at the host yet
+     *
+     * @return the number of events
+     */
+    public int getPendingEventCount() {
+        return inputEvents.size() + motionEvents.size();
+    }
+}
@@ -0,0 +1,135 @@
+package jp.kshoji.blehid.core;
+
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * {@link Scheduler} running the tasks on a dedicated thread, for use outside Android
+ *
+ * @author K.Shoji
+ */
+public final class ThreadScheduler implements Scheduler {
+    private final PriorityQueue<ScheduledTask> tasks = new PriorityQueue<>();
+    private final Thread thread;
+    private long postedCount;
+    private boolean quit;
+
+    /**
+     * Constructor, starts the thread
+     *
+     * @param name the thread name
+     */
+    public ThreadScheduler(@NonNull final String name) {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs the due tasks until {@link #quit()} is called
+     */
+    private void loop() {
+        while (true) {
+            final Runnable task;
+            synchronized (tasks) {
+                ScheduledTask next = tasks.peek();
+                while (!quit && (next == null || next.dueAt > uptimeMillis())) {
+                    try {
+                        if (next == null) {
+                            tasks.wait();
+                        } else {
+                            tasks.wait(next.dueAt - uptimeMillis());
+                        }
+                    } catch (final InterruptedException ignored) {
+                        // check again
+                    }
+                    next = tasks.peek();
+                }
+                if (quit) {
+                    return;
+                }
+                task = tasks.poll().task;
+            }
+
+            task.run();
+        }
+    }
+
+    /**
+     * Stops the thread after the running task, the pending tasks are discarded.
+     */
+    public void quit() {
+        synchronized (tasks) {
+            quit = true;
+            tasks.clear();
+            tasks.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the thread to stop, after {@link #quit()}
+     *
+     * @param timeoutMillis the timeout in milliseconds
+     * @return true if the thread has stopped
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean join(final long timeoutMillis) throws InterruptedException {
+        thread.join(timeoutMillis);
+        return !thread.isAlive();
+    }
+
+    /**
+     * Obtains the number of the pending tasks
+     *
+     * @return the number of tasks
+     */
+    public int getPendingTaskCount() {
+        synchronized (tasks) {
+            return tasks.size();
+        }
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    @Override
+    public void post(@NonNull final Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(@NonNull final Runnable task, final long delayMillis) {
+        synchronized (tasks) {
+            if (quit) {
+                return;
+            }
+            tasks.add(new ScheduledTask(task, uptimeMillis() + Math.max(0, delayMillis), postedCount++));
+            tasks.notifyAll();
+        }
+    }
+
+    @Override
+    public void remove(@NonNull final Runnable task) {
+        synchronized (tasks) {
+            for (final Iterator<ScheduledTask> iterator = tasks.iterator(); iterator.hasNext(); ) {
+                if (iterator.next().task == task) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean isSchedulerThread() {
+        return Thread.currentThread() == thread;
+    }
+}
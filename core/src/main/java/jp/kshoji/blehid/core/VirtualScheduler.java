@@ -0,0 +1,89 @@
+package jp.kshoji.blehid.core;
+
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * {@link Scheduler} on a virtual clock, for deterministic simulations<br />
+ * Tasks run on the caller thread of {@link #advanceBy(long)}, the clock jumps to the due time of each task.
+ * Not thread safe: post tasks and advance the clock on a single thread.
+ *
+ * @author K.Shoji
+ */
+public final class VirtualScheduler implements Scheduler {
+    private final PriorityQueue<ScheduledTask> tasks = new PriorityQueue<>();
+    private long postedCount;
+    private long now;
+
+    /**
+     * Runs the tasks due until the time, then sets the clock to the time
+     *
+     * @param time the time in milliseconds
+     * @throws IllegalArgumentException if the time is in the past
+     */
+    public void advanceTo(final long time) throws IllegalArgumentException {
+        if (time < now) {
+            throw new IllegalArgumentException("time is in the past: " + time);
+        }
+
+        ScheduledTask next = tasks.peek();
+        while (next != null && next.dueAt <= time) {
+            tasks.poll();
+            now = Math.max(now, next.dueAt);
+            next.task.run();
+            next = tasks.peek();
+        }
+        now = time;
+    }
+
+    /**
+     * Runs the tasks due within the duration, then advances the clock by the duration
+     *
+     * @param durationMillis the duration in milliseconds
+     * @throws IllegalArgumentException if the duration is negative
+     */
+    public void advanceBy(final long durationMillis) throws IllegalArgumentException {
+        advanceTo(now + durationMillis);
+    }
+
+    /**
+     * Obtains the number of the pending tasks
+     *
+     * @return the number of tasks
+     */
+    public int getPendingTaskCount() {
+        return tasks.size();
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void post(@NonNull final Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public void postDelayed(@NonNull final Runnable task, final long delayMillis) {
+        tasks.add(new ScheduledTask(task, now + Math.max(0, delayMillis), postedCount++));
+    }
+
+    @Override
+    public void remove(@NonNull final Runnable task) {
+        for (final Iterator<ScheduledTask> iterator = tasks.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().task == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public boolean isSchedulerThread() {
+        // all tasks run on the caller thread, blocking would never return
+        return true;
+    }
+}
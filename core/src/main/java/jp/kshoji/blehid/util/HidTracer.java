@@ -0,0 +1,249 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Structured tracing into a preallocated ring buffer<br />
+ * Each event is a fixed-size binary record with a nanosecond timestamp. Recording is lock-free and allocates nothing,
+ * the oldest events are overwritten when the buffer is full. Dump the events with {@link #dump()} and decode them offline with {@link #decode(byte[], EventVisitor)}.
+ *
+ * @author K.Shoji
+ */
+public final class HidTracer {
+    /**
+     * Event types
+     */
+    public static final int EVENT_ENQUEUE = 1;
+    public static final int EVENT_NOTIFY = 2;
+    public static final int EVENT_NOTIFICATION_SENT = 3;
+    public static final int EVENT_READ = 4;
+    public static final int EVENT_WRITE = 5;
+    public static final int EVENT_DESCRIPTOR_READ = 6;
+    public static final int EVENT_DESCRIPTOR_WRITE = 7;
+    public static final int EVENT_CONNECT = 8;
+    public static final int EVENT_DISCONNECT = 9;
+    public static final int EVENT_BOND = 10;
+    public static final int EVENT_MTU = 11;
+
+    private static final String[] EVENT_NAMES = {"UNKNOWN", "ENQUEUE", "NOTIFY", "NOTIFICATION_SENT", "READ", "WRITE", "DESCRIPTOR_READ", "DESCRIPTOR_WRITE", "CONNECT", "DISCONNECT", "BOND", "MTU"};
+
+    /**
+     * Dump format: magic, version, event count, then the events
+     */
+    private static final int DUMP_MAGIC = 0x48494454; // "HIDT"
+    private static final int DUMP_VERSION = 1;
+    private static final int DUMP_HEADER_SIZE = 12;
+    /**
+     * Size of an event in the dump: timestamp(8), type(2), argument(2), value(4)
+     */
+    public static final int DUMP_EVENT_SIZE = 16;
+
+    // sequence, timestamp and packed data for each event
+    private static final int SLOT_LONGS = 3;
+
+    /**
+     * Visitor for the decoded events
+     */
+    public interface EventVisitor {
+        /**
+         * Called for each event, in the recorded order
+         *
+         * @param timestampNanos the timestamp from {@link System#nanoTime()}
+         * @param type the event type
+         * @param argument the 16-bit argument: a Report ID, a 16-bit UUID or a status
+         * @param value the 32-bit value: a length, an offset, a result, a state or an MTU
+         */
+        void onEvent(long timestampNanos, int type, int argument, int value);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray slots;
+    private final AtomicLong cursor = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param capacity the number of events to keep, rounded up to a power of two
+     * @throws IllegalArgumentException if the capacity is not positive or too large
+     */
+    public HidTracer(final int capacity) throws IllegalArgumentException {
+        if (capacity < 1 || capacity > (1 << 24)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int rounded = 1;
+        while (rounded < capacity) {
+            rounded <<= 1;
+        }
+        this.capacity = rounded;
+        mask = rounded - 1;
+        slots = new AtomicLongArray(rounded * SLOT_LONGS);
+        clear();
+    }
+
+    /**
+     * Records an event
+     *
+     * @param type the event type
+     * @param argument the 16-bit argument
+     * @param value the 32-bit value
+     */
+    public void record(final int type, final int argument, final int value) {
+        final long timestamp = System.nanoTime();
+        final long sequence = cursor.getAndIncrement();
+        final int base = (int) (sequence & mask) * SLOT_LONGS;
+
+        // readers discard the event while its sequence is being written
+        slots.set(base, ~sequence);
+        slots.lazySet(base + 1, timestamp);
+        slots.lazySet(base + 2, ((long) (type & 0xffff) << 48) | ((long) (argument & 0xffff) << 32) | (value & 0xffffffffL));
+        slots.set(base, sequence);
+    }
+
+    /**
+     * Obtains the number of events which can be kept
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Obtains the number of events recorded since the creation or the last {@link #clear()}, including overwritten events
+     *
+     * @return the number of events
+     */
+    public long getRecordedCount() {
+        return cursor.get();
+    }
+
+    /**
+     * Discards all events, must not be called while recording
+     */
+    public void clear() {
+        for (int i = 0; i < capacity; i++) {
+            slots.set(i * SLOT_LONGS, -1);
+        }
+        cursor.set(0);
+    }
+
+    /**
+     * Dumps the kept events, oldest first. Events being overwritten while dumping are skipped.
+     *
+     * @return the binary dump, for {@link #decode(byte[], EventVisitor)}
+     */
+    @NonNull
+    public byte[] dump() {
+        final long end = cursor.get();
+        final long start = Math.max(0, end - capacity);
+        final ByteBuffer buffer = ByteBuffer.allocate(DUMP_HEADER_SIZE + (int) (end - start) * DUMP_EVENT_SIZE);
+        buffer.putInt(DUMP_MAGIC);
+        buffer.putInt(DUMP_VERSION);
+        buffer.putInt(0);
+
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            final int base = (int) (sequence & mask) * SLOT_LONGS;
+            if (slots.get(base) != sequence) {
+                continue;
+            }
+            final long timestamp = slots.get(base + 1);
+            final long data = slots.get(base + 2);
+            if (slots.get(base) != sequence) {
+                // overwritten while reading
+                continue;
+            }
+
+            buffer.putLong(timestamp);
+            buffer.putShort((short) (data >>> 48));
+            buffer.putShort((short) (data >>> 32));
+            buffer.putInt((int) data);
+            count++;
+        }
+
+        buffer.putInt(8, count);
+        final byte[] result = new byte[DUMP_HEADER_SIZE + count * DUMP_EVENT_SIZE];
+        System.arraycopy(buffer.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Decodes the dump
+     *
+     * @param dump the dump from {@link #dump()}
+     * @param visitor the visitor
+     * @return the number of events
+     * @throws IllegalArgumentException if the dump is malformed
+     */
+    public static int decode(@NonNull final byte[] dump, @NonNull final EventVisitor visitor) throws IllegalArgumentException {
+        final ByteBuffer buffer = ByteBuffer.wrap(dump);
+        if (dump.length < DUMP_HEADER_SIZE || buffer.getInt() != DUMP_MAGIC) {
+            throw new IllegalArgumentException("Not a trace dump.");
+        }
+        final int version = buffer.getInt();
+        if (version != DUMP_VERSION) {
+            throw new IllegalArgumentException("Unsupported trace dump version: " + version);
+        }
+        final int count = buffer.getInt();
+        if (count < 0 || (long) count * DUMP_EVENT_SIZE != dump.length - DUMP_HEADER_SIZE) {
+            throw new IllegalArgumentException("Truncated trace dump, events: " + count);
+        }
+
+        for (int i = 0; i < count; i++) {
+            final long timestamp = buffer.getLong();
+            final int type = buffer.getShort() & 0xffff;
+            final int argument = buffer.getShort() & 0xffff;
+            visitor.onEvent(timestamp, type, argument, buffer.getInt());
+        }
+        return count;
+    }
+
+    /**
+     * Decodes the dump into text, one event per line with the time relative to the first event
+     *
+     * @param dump the dump from {@link #dump()}
+     * @return the text
+     * @throws IllegalArgumentException if the dump is malformed
+     */
+    @NonNull
+    public static String toString(@NonNull final byte[] dump) throws IllegalArgumentException {
+        final StringBuilder builder = new StringBuilder();
+        decode(dump, new EventVisitor() {
+            private long firstTimestamp;
+            private boolean first = true;
+
+            @Override
+            public void onEvent(final long timestampNanos, final int type, final int argument, final int value) {
+                if (first) {
+                    firstTimestamp = timestampNanos;
+                    first = false;
+                }
+                builder.append((timestampNanos - firstTimestamp) / 1000).append("us ")
+                        .append(getEventName(type))
+                        .append(" argument: 0x").append(Integer.toHexString(argument))
+                        .append(", value: ").append(value)
+                        .append('\n');
+            }
+        });
+        return builder.toString();
+    }
+
+    /**
+     * Obtains the name of the event type
+     *
+     * @param type the event type
+     * @return the name
+     */
+    @NonNull
+    public static String getEventName(final int type) {
+        if (type < 0 || type >= EVENT_NAMES.length) {
+            return EVENT_NAMES[0] + "(" + type + ")";
+        }
+        return EVENT_NAMES[type];
+    }
+}
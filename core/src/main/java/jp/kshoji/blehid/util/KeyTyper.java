@@ -0,0 +1,262 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Translates text into keyboard key reports with a keyboard layout, a step at a time<br />
+ * Keeps the keys pressed by the last report, so that the text can be typed in chunks.
+ * A step whose report could not be queued is typed again by the next call, skipping the reports already queued.
+ *
+ * @author K.Shoji
+ */
+public final class KeyTyper {
+    /**
+     * The max number of reports queued by a step: a dead key and a key report, each after a release
+     */
+    public static final int MAX_REPORTS_PER_STEP = 4;
+
+    /**
+     * Receives the key reports
+     */
+    public interface KeyReportSink {
+        /**
+         * Queues a key report, the host presses the keys not in the last report in the array order
+         *
+         * @param modifier the modifier bitmap
+         * @param keys the usages of the keys
+         * @param keyCount the number of keys, 0 to release all keys
+         * @return true if queued, false if the report could not be queued
+         */
+        boolean sendKeys(int modifier, @NonNull int[] keys, int keyCount);
+    }
+
+    private final KeyReportSink sink;
+    private final KeyboardLayout layout;
+    private final boolean packed;
+    private final int[] keys;
+    private final int[] lastKeys;
+    private int lastKeyCount;
+    private long reportCount;
+    // the keys pressed before the current step, restored when the step fails
+    private final int[] stepKeys;
+    private int stepKeyCount;
+    // the reports of the current step so far, and the reports queued by the failed attempt of the step
+    private int stepReportCount;
+    private int queuedStepReportCount;
+    private boolean stepFailed;
+
+    /**
+     * Constructor
+     *
+     * @param layout the keyboard layout
+     * @param maxKeyCount the max number of keys in a report
+     * @param packed true: packs a run of distinct keys with the same modifier into a report, false: a character per report
+     * @param sink the sink of the key reports
+     * @throws IllegalArgumentException if maxKeyCount is not positive
+     */
+    public KeyTyper(@NonNull final KeyboardLayout layout, final int maxKeyCount, final boolean packed, @NonNull final KeyReportSink sink) throws IllegalArgumentException {
+        if (maxKeyCount < 1) {
+            throw new IllegalArgumentException("maxKeyCount must be positive: " + maxKeyCount);
+        }
+        this.layout = layout;
+        this.packed = packed;
+        this.sink = sink;
+        keys = new int[maxKeyCount];
+        lastKeys = new int[maxKeyCount];
+        stepKeys = new int[maxKeyCount];
+    }
+
+    /**
+     * Types a character, or a run of characters if packed
+     *
+     * @param text the text
+     * @param start the index to start from
+     * @param end the index to stop at
+     * @return the index to continue from, start if a report could not be queued: call again with the same range to resume
+     */
+    public int type(@NonNull final CharSequence text, final int start, final int end) {
+        beginStep();
+        final int next;
+        if (packed) {
+            next = typePacked(text, start, end);
+        } else {
+            final int codePoint = Character.codePointAt(text, start);
+            pressCodePoint(codePoint);
+            next = start + Character.charCount(codePoint);
+        }
+        return endStep() ? next : start;
+    }
+
+    /**
+     * Types a character, after its dead key if any
+     *
+     * @param codePoint the character, or the Unicode code point
+     * @return true if typed, false if a report could not be queued: call again with the same character to resume
+     */
+    public boolean typeCodePoint(final int codePoint) {
+        beginStep();
+        pressCodePoint(codePoint);
+        return endStep();
+    }
+
+    /**
+     * Presses the keys of a character, after its dead key if any
+     *
+     * @param codePoint the character, or the Unicode code point
+     */
+    private void pressCodePoint(final int codePoint) {
+        final int deadKeyStroke = layout.getDeadKeyStroke(codePoint);
+        if (deadKeyStroke != 0) {
+            press(deadKeyStroke);
+        }
+        // a character not on the layout releases the keys, as an empty stroke
+        press(layout.getKeyStroke(codePoint));
+    }
+
+    /**
+     * Releases all keys, at the end of the text. The failed step, if any, is abandoned.
+     *
+     * @return true if released, false if the report could not be queued: call again to retry
+     */
+    public boolean finish() {
+        queuedStepReportCount = 0;
+        beginStep();
+        release();
+        return endStep();
+    }
+
+    /**
+     * Obtains the number of reports queued
+     *
+     * @return the number of reports
+     */
+    public long getReportCount() {
+        return reportCount;
+    }
+
+    private void release() {
+        queue(0, 0);
+    }
+
+    private void beginStep() {
+        System.arraycopy(lastKeys, 0, stepKeys, 0, lastKeyCount);
+        stepKeyCount = lastKeyCount;
+        stepReportCount = 0;
+        stepFailed = false;
+    }
+
+    /**
+     * Ends the step, or rolls back the keys to retry the step
+     *
+     * @return true if all reports of the step have been queued
+     */
+    private boolean endStep() {
+        if (!stepFailed) {
+            queuedStepReportCount = 0;
+            return true;
+        }
+
+        // the next attempt skips the reports queued so far
+        queuedStepReportCount = stepReportCount;
+        System.arraycopy(stepKeys, 0, lastKeys, 0, stepKeyCount);
+        lastKeyCount = stepKeyCount;
+        return false;
+    }
+
+    /**
+     * Queues the keys, unless queued by the failed attempt of the step. Does nothing after a report of the step failed.
+     *
+     * @param modifier the modifier
+     * @param keyCount the number of keys
+     */
+    private void queue(final int modifier, final int keyCount) {
+        if (stepFailed) {
+            return;
+        }
+        if (stepReportCount >= queuedStepReportCount) {
+            if (!sink.sendKeys(modifier, keys, keyCount)) {
+                stepFailed = true;
+                return;
+            }
+            reportCount++;
+        }
+        stepReportCount++;
+        System.arraycopy(keys, 0, lastKeys, 0, keyCount);
+        lastKeyCount = keyCount;
+    }
+
+    /**
+     * Presses the key of the stroke alone
+     *
+     * @param keyStroke the key stroke
+     */
+    private void press(final int keyStroke) {
+        final int usage = KeyboardLayout.getUsage(keyStroke);
+        keys[0] = usage;
+        send(KeyboardLayout.getModifier(keyStroke), usage == 0 ? 0 : 1);
+    }
+
+    /**
+     * Sends the keys, after a release if the last report has one of them.<br />
+     * Otherwise the host releases the keys of the last report and presses the new ones in order.
+     *
+     * @param modifier the modifier
+     * @param keyCount the number of keys
+     */
+    private void send(final int modifier, final int keyCount) {
+        for (int i = 0; i < keyCount; i++) {
+            if (indexOf(lastKeys, lastKeyCount, keys[i]) >= 0) {
+                release();
+                break;
+            }
+        }
+        queue(modifier, keyCount);
+    }
+
+    /**
+     * Types a run of distinct keys with the same modifier in one report, characters not on the layout are skipped.<br />
+     * A character with a dead key starts a run, after the dead key report.
+     *
+     * @param text the text
+     * @param start the index to start from
+     * @param end the index to stop at
+     * @return the index to continue from
+     */
+    private int typePacked(@NonNull final CharSequence text, final int start, final int end) {
+        int keyCount = 0;
+        int modifier = 0;
+        int index = start;
+        while (index < end && keyCount < keys.length) {
+            final int codePoint = Character.codePointAt(text, index);
+            final int keyStroke = layout.getKeyStroke(codePoint);
+            if (keyStroke != 0) {
+                final int deadKeyStroke = layout.getDeadKeyStroke(codePoint);
+                final int keyModifier = KeyboardLayout.getModifier(keyStroke);
+                final int usage = KeyboardLayout.getUsage(keyStroke);
+                if (keyCount > 0 && (deadKeyStroke != 0 || keyModifier != modifier || indexOf(keys, keyCount, usage) >= 0)) {
+                    break;
+                }
+                if (deadKeyStroke != 0) {
+                    press(deadKeyStroke);
+                }
+                modifier = keyModifier;
+                keys[keyCount++] = usage;
+            }
+            index += Character.charCount(codePoint);
+        }
+
+        if (keyCount > 0) {
+            send(modifier, keyCount);
+        }
+        return index;
+    }
+
+    private static int indexOf(@NonNull final int[] keys, final int keyCount, final int usage) {
+        for (int i = 0; i < keyCount; i++) {
+            if (keys[i] == usage) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
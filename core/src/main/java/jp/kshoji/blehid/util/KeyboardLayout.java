@@ -0,0 +1,314 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.NonNull;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keyboard layout, compiled once into a table from the code point to the key strokes typing it<br />
+ * A key stroke is (modifier &lt;&lt; 8 | usage) of the Keyboard/Keypad usage page.
+ * A character may need a dead key stroke before its key stroke, such as '&#x00ea;' on the French layout.
+ *
+ * @author K.Shoji
+ */
+public final class KeyboardLayout {
+    private static final int MODIFIER_SHIFT = 0x02;
+    private static final int MODIFIER_ALT_GR = 0x40;
+
+    private static final int USAGE_ENTER = 0x28;
+    private static final int USAGE_BACKSPACE = 0x2a;
+    private static final int USAGE_TAB = 0x2b;
+    private static final int USAGE_SPACE = 0x2c;
+
+    /**
+     * Usages of the keys in the order of the layout strings:
+     * the letter keys, the digit keys, then the symbol keys named by the US layout
+     */
+    private static final int[] USAGES = {
+            0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f, 0x10, // a to m
+            0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, // n to z
+            0x1e, 0x1f, 0x20, 0x21, 0x22, 0x23, 0x24, 0x25, 0x26, 0x27,                   // 1 to 0
+            0x2d, 0x2e, 0x2f, 0x30, 0x31,                                                 // - = [ ] \
+            0x32,                                                                         // Non-US # and ~
+            0x33, 0x34, 0x35, 0x36, 0x37, 0x38,                                           // ; ' ` , . /
+            0x64,                                                                         // Non-US \ and |
+            0x87, 0x89,                                                                   // International1 (Ro), International3 (Yen)
+    };
+    // placeholder of the layout strings, for the keys which type nothing
+    private static final char NONE = ' ';
+
+    /**
+     * Dead key characters, the combining characters, and the base characters composed by the hosts
+     */
+    private static final String DEAD_KEYS = "\u00b4`^\u00a8~";
+    private static final String COMBINING_CHARACTERS = "\u0301\u0300\u0302\u0308\u0303";
+    private static final String[] DEAD_KEY_BASES = {"aeiouyAEIOUY", "aeiouAEIOU", "aeiouAEIOU", "aeiouyAEIOU", "anoANO"};
+
+    /**
+     * US layout (ANSI)
+     */
+    public static final KeyboardLayout US = new Builder("US")
+            .keys("abcdefghijklmnopqrstuvwxyz1234567890-=[]\\ ;'`,./   ",
+                  "ABCDEFGHIJKLMNOPQRSTUVWXYZ!@#$%^&*()_+{}| :\"~<>?   ")
+            .build();
+
+    /**
+     * UK layout (ISO)
+     */
+    public static final KeyboardLayout UK = new Builder("UK")
+            .keys("abcdefghijklmnopqrstuvwxyz1234567890-=[] #;'`,./\\  ",
+                  "ABCDEFGHIJKLMNOPQRSTUVWXYZ!\"\u00a3$%^&*()_+{} ~:@\u00ac<>?|  ")
+            .altGr(0x21, '\u20ac')
+            .altGr(0x35, '\u00a6')
+            .build();
+
+    /**
+     * German layout (QWERTZ)
+     */
+    public static final KeyboardLayout DE = new Builder("DE")
+            .keys("abcdefghijklmnopqrstuvwxzy1234567890\u00df \u00fc+ #\u00f6\u00e4 ,.-<  ",
+                  "ABCDEFGHIJKLMNOPQRSTUVWXZY!\"\u00a7$%&/()=? \u00dc* '\u00d6\u00c4\u00b0;:_>  ")
+            .altGr(0x14, '@')
+            .altGr(0x08, '\u20ac')
+            .altGr(0x10, '\u00b5')
+            .altGr(0x1f, '\u00b2')
+            .altGr(0x20, '\u00b3')
+            .altGr(0x24, '{')
+            .altGr(0x25, '[')
+            .altGr(0x26, ']')
+            .altGr(0x27, '}')
+            .altGr(0x2d, '\\')
+            .altGr(0x30, '~')
+            .altGr(0x64, '|')
+            .deadKey(0x2e, 0, '\u00b4')
+            .deadKey(0x2e, MODIFIER_SHIFT, '`')
+            .deadKey(0x35, 0, '^')
+            .build();
+
+    /**
+     * French layout (AZERTY)
+     */
+    public static final KeyboardLayout FR = new Builder("FR")
+            .keys("qbcdefghijkl,noparstuvzxyw&\u00e9\"'(-\u00e8_\u00e7\u00e0)= $ *m\u00f9\u00b2;:!<  ",
+                  "QBCDEFGHIJKL?NOPARSTUVZXYW1234567890\u00b0+ \u00a3 \u00b5M% ./\u00a7>  ")
+            .altGr(0x08, '\u20ac')
+            .altGr(0x20, '#')
+            .altGr(0x21, '{')
+            .altGr(0x22, '[')
+            .altGr(0x23, '|')
+            .altGr(0x25, '\\')
+            .altGr(0x26, '^')
+            .altGr(0x27, '@')
+            .altGr(0x2d, ']')
+            .altGr(0x2e, '}')
+            .altGr(0x30, '\u00a4')
+            .deadKey(0x2f, 0, '^')
+            .deadKey(0x2f, MODIFIER_SHIFT, '\u00a8')
+            .deadKey(0x1f, MODIFIER_ALT_GR, '~')
+            .deadKey(0x24, MODIFIER_ALT_GR, '`')
+            .build();
+
+    /**
+     * Japanese layout (JIS)
+     */
+    public static final KeyboardLayout JIS = new Builder("JIS")
+            .keys("abcdefghijklmnopqrstuvwxyz1234567890-^@[ ];: ,./ \\\u00a5",
+                  "ABCDEFGHIJKLMNOPQRSTUVWXYZ!\"#$%&'() =~`{ }+* <>? _|")
+            .build();
+
+    private final String name;
+    // (dead key stroke << 16 | key stroke) indexed by the code point, 256 code points per page
+    private final int[][] pages;
+
+    /**
+     * Constructor
+     *
+     * @param name the layout name
+     * @param pages the compiled table
+     */
+    private KeyboardLayout(@NonNull final String name, @NonNull final int[][] pages) {
+        this.name = name;
+        this.pages = pages;
+    }
+
+    /**
+     * Obtains the layout name
+     *
+     * @return the name
+     */
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Obtains the key stroke typing the character, after {@link #getDeadKeyStroke(int)} if any
+     *
+     * @param codePoint the character, or the Unicode code point
+     * @return the key stroke, 0 if the character is not on the layout
+     */
+    public int getKeyStroke(final int codePoint) {
+        return lookup(codePoint) & 0xffff;
+    }
+
+    /**
+     * Obtains the dead key stroke to type before the key stroke of the character
+     *
+     * @param codePoint the character, or the Unicode code point
+     * @return the key stroke, 0 if no dead key is needed
+     */
+    public int getDeadKeyStroke(final int codePoint) {
+        return lookup(codePoint) >>> 16;
+    }
+
+    /**
+     * Obtains the modifier keys of the key stroke
+     *
+     * @param keyStroke the key stroke
+     * @return the modifier bitmap
+     */
+    public static int getModifier(final int keyStroke) {
+        return (keyStroke >> 8) & 0xff;
+    }
+
+    /**
+     * Obtains the usage of the key stroke
+     *
+     * @param keyStroke the key stroke
+     * @return the usage, 0 for no key
+     */
+    public static int getUsage(final int keyStroke) {
+        return keyStroke & 0xff;
+    }
+
+    private int lookup(final int codePoint) {
+        if (codePoint < 0 || codePoint > 0xffff) {
+            return 0;
+        }
+        final int[] page = pages[codePoint >> 8];
+        return page == null ? 0 : page[codePoint & 0xff];
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Compiles a layout
+     */
+    private static final class Builder {
+        private final String name;
+        private final int[][] pages = new int[0x100][];
+        private final List<int[]> deadKeys = new ArrayList<>();
+
+        Builder(@NonNull final String name) {
+            this.name = name;
+            put('\n', 0, USAGE_ENTER);
+            put('\b', 0, USAGE_BACKSPACE);
+            put('\t', 0, USAGE_TAB);
+            put(' ', 0, USAGE_SPACE);
+        }
+
+        /**
+         * Maps the characters of the keys without and with Shift, in the order of {@link #USAGES}
+         *
+         * @param normal the characters without modifier
+         * @param shifted the characters with Shift
+         * @return this
+         */
+        @NonNull
+        Builder keys(@NonNull final String normal, @NonNull final String shifted) {
+            if (normal.length() != USAGES.length || shifted.length() != USAGES.length) {
+                throw new IllegalArgumentException("Layout strings must have " + USAGES.length + " characters: " + name);
+            }
+            for (int i = 0; i < USAGES.length; i++) {
+                put(normal.charAt(i), 0, USAGES[i]);
+            }
+            for (int i = 0; i < USAGES.length; i++) {
+                put(shifted.charAt(i), MODIFIER_SHIFT, USAGES[i]);
+            }
+            return this;
+        }
+
+        /**
+         * Maps the character of the key with AltGr
+         *
+         * @param usage the usage of the key
+         * @param character the character
+         * @return this
+         */
+        @NonNull
+        Builder altGr(final int usage, final char character) {
+            put(character, MODIFIER_ALT_GR, usage);
+            return this;
+        }
+
+        /**
+         * Maps the dead key, which composes the next character
+         *
+         * @param usage the usage of the key
+         * @param modifier the modifier
+         * @param character the dead key character, one of {@link #DEAD_KEYS}
+         * @return this
+         */
+        @NonNull
+        Builder deadKey(final int usage, final int modifier, final char character) {
+            deadKeys.add(new int[] {character, modifier << 8 | usage});
+            return this;
+        }
+
+        @NonNull
+        KeyboardLayout build() {
+            final int spaceStroke = get(' ');
+            for (final int[] deadKey : deadKeys) {
+                final int deadKeyIndex = DEAD_KEYS.indexOf(deadKey[0]);
+                final String bases = DEAD_KEY_BASES[deadKeyIndex];
+                for (int i = 0; i < bases.length(); i++) {
+                    final char base = bases.charAt(i);
+                    final int baseStroke = get(base);
+                    if (baseStroke == 0) {
+                        continue;
+                    }
+                    final String composed = Normalizer.normalize(String.valueOf(base) + COMBINING_CHARACTERS.charAt(deadKeyIndex), Normalizer.Form.NFC);
+                    if (composed.length() == 1 && get(composed.charAt(0)) == 0) {
+                        set(composed.charAt(0), deadKey[1] << 16 | baseStroke);
+                    }
+                }
+
+                // the dead key character itself, if no key types it directly
+                if (get((char) deadKey[0]) == 0) {
+                    set((char) deadKey[0], deadKey[1] << 16 | spaceStroke);
+                }
+            }
+            return new KeyboardLayout(name, pages);
+        }
+
+        /**
+         * Maps the character, if not mapped yet: the simplest stroke wins.<br />
+         * The {@link #NONE} placeholders are skipped, as the space is mapped first.
+         */
+        private void put(final char character, final int modifier, final int usage) {
+            if (get(character) != 0) {
+                return;
+            }
+            set(character, modifier << 8 | usage);
+        }
+
+        private int get(final char character) {
+            final int[] page = pages[character >> 8];
+            return page == null ? 0 : page[character & 0xff];
+        }
+
+        private void set(final char character, final int strokes) {
+            int[] page = pages[character >> 8];
+            if (page == null) {
+                page = new int[0x100];
+                pages[character >> 8] = page;
+            }
+            page[character & 0xff] = strokes;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Pressed keys of a keyboard, kept as a bitset of the Keyboard/Keypad usages<br />
+ * Encodes the keys into an array report (boot keyboard) or a bitmap report (N-key rollover).
+ * Not thread safe.
+ *
+ * @author K.Shoji
+ */
+public final class KeyboardState {
+    /**
+     * The usage reported by all array elements, when more keys are pressed than the array holds
+     */
+    public static final int USAGE_ERROR_ROLL_OVER = 0x01;
+
+    /**
+     * The usages of the modifier keys: Left Control to Right GUI
+     */
+    public static final int USAGE_MODIFIER_MINIMUM = 0xe0;
+    public static final int USAGE_MODIFIER_MAXIMUM = 0xe7;
+
+    private static final int USAGE_COUNT = 0x100;
+
+    private final long[] pressed = new long[USAGE_COUNT / 64];
+    private int keyCount;
+
+    /**
+     * Presses the key
+     *
+     * @param usage the usage, 1 to 255
+     * @return true if the state has changed
+     * @throws IllegalArgumentException if the usage is out of range
+     */
+    public boolean press(final int usage) throws IllegalArgumentException {
+        checkUsage(usage);
+        final long bit = 1L << (usage & 63);
+        if ((pressed[usage >> 6] & bit) != 0) {
+            return false;
+        }
+        pressed[usage >> 6] |= bit;
+        if (!isModifier(usage)) {
+            keyCount++;
+        }
+        return true;
+    }
+
+    /**
+     * Releases the key
+     *
+     * @param usage the usage, 1 to 255
+     * @return true if the state has changed
+     * @throws IllegalArgumentException if the usage is out of range
+     */
+    public boolean release(final int usage) throws IllegalArgumentException {
+        checkUsage(usage);
+        final long bit = 1L << (usage & 63);
+        if ((pressed[usage >> 6] & bit) == 0) {
+            return false;
+        }
+        pressed[usage >> 6] &= ~bit;
+        if (!isModifier(usage)) {
+            keyCount--;
+        }
+        return true;
+    }
+
+    /**
+     * Releases all keys
+     *
+     * @return true if the state has changed
+     */
+    public boolean releaseAll() {
+        boolean changed = false;
+        for (int i = 0; i < pressed.length; i++) {
+            changed |= pressed[i] != 0;
+            pressed[i] = 0;
+        }
+        keyCount = 0;
+        return changed;
+    }
+
+    /**
+     * Check if the key is pressed
+     *
+     * @param usage the usage
+     * @return true if pressed
+     */
+    public boolean isPressed(final int usage) {
+        return usage > 0 && usage < USAGE_COUNT && (pressed[usage >> 6] & 1L << (usage & 63)) != 0;
+    }
+
+    /**
+     * Obtains the pressed modifier keys
+     *
+     * @return the bitmap, bit #0 is Left Control
+     */
+    public int getModifiers() {
+        return (int) (pressed[USAGE_MODIFIER_MINIMUM >> 6] >>> (USAGE_MODIFIER_MINIMUM & 63)) & 0xff;
+    }
+
+    /**
+     * Obtains the number of the pressed keys, excluding the modifier keys
+     *
+     * @return the number of keys
+     */
+    public int getKeyCount() {
+        return keyCount;
+    }
+
+    /**
+     * Encodes the keys into an array report, in the usage order.<br />
+     * If more keys are pressed than the array holds, all elements report {@link #USAGE_ERROR_ROLL_OVER}.
+     *
+     * @param report the zero-filled report, excluding the Report ID
+     * @param modifiers the 8-bit modifier field
+     * @param keys the array field
+     */
+    public void encodeArray(@NonNull final byte[] report, @NonNull final ReportField modifiers, @NonNull final ReportField keys) {
+        modifiers.setBitmap(report, getModifiers());
+        if (keyCount > keys.getCount()) {
+            for (int i = 0; i < keys.getCount(); i++) {
+                keys.set(report, i, USAGE_ERROR_ROLL_OVER);
+            }
+            return;
+        }
+
+        int index = 0;
+        for (int word = 0; word < pressed.length && index < keyCount; word++) {
+            long bits = pressed[word];
+            while (bits != 0) {
+                final int usage = word << 6 | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (!isModifier(usage)) {
+                    keys.set(report, index++, usage);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes the keys into a bitmap report: the element #i is the key of usageMinimum + i.<br />
+     * The keys out of the bitmap range are not reported.
+     *
+     * @param report the zero-filled report, excluding the Report ID
+     * @param modifiers the 8-bit modifier field
+     * @param keys the 1-bit variable field
+     */
+    public void encodeBitmap(@NonNull final byte[] report, @NonNull final ReportField modifiers, @NonNull final ReportField keys) {
+        modifiers.setBitmap(report, getModifiers());
+        final int usageMinimum = keys.getUsageMinimum();
+        final int count = Math.min(keys.getCount(), USAGE_COUNT - usageMinimum);
+        if (keys.getBitOffset() % 8 == 0 && usageMinimum % 8 == 0) {
+            // byte by byte
+            int byteIndex = keys.getBitOffset() >> 3;
+            for (int usage = usageMinimum; usage < usageMinimum + count; usage += 8) {
+                byte bits = (byte) (pressed[usage >> 6] >>> (usage & 63));
+                if (usage + 8 > usageMinimum + count) {
+                    bits &= (1 << (usageMinimum + count - usage)) - 1;
+                }
+                report[byteIndex++] = bits;
+            }
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (isPressed(usageMinimum + i)) {
+                keys.set(report, i, 1);
+            }
+        }
+    }
+
+    private static boolean isModifier(final int usage) {
+        return usage >= USAGE_MODIFIER_MINIMUM && usage <= USAGE_MODIFIER_MAXIMUM;
+    }
+
+    private static void checkUsage(final int usage) throws IllegalArgumentException {
+        if (usage < 1 || usage >= USAGE_COUNT) {
+            throw new IllegalArgumentException("Invalid usage: " + usage);
+        }
+    }
+}
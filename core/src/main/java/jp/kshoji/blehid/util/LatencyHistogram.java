@@ -0,0 +1,150 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Low-overhead latency histogram<br />
+ * Buckets are powers of two in microseconds, recording allocates nothing.
+ *
+ * @author K.Shoji
+ */
+public final class LatencyHistogram {
+    /**
+     * Number of buckets: bucket #i holds latencies in [2^(i-1), 2^i) microseconds, bucket #0 holds less than 1 microsecond.
+     */
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Record a latency
+     *
+     * @param latencyNanos the latency in nanoseconds
+     */
+    public void record(final long latencyNanos) {
+        final long micros = latencyNanos < 0 ? 0 : latencyNanos / 1000;
+        final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Clear all recorded values
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    /**
+     * Obtains the number of recorded values
+     *
+     * @return the count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Obtains the number of recorded values in the bucket
+     *
+     * @param bucket the bucket index (0 .. BUCKET_COUNT - 1)
+     * @return the count
+     */
+    public long getBucketCount(final int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * Obtains the exclusive upper bound of the bucket
+     *
+     * @param bucket the bucket index (0 .. BUCKET_COUNT - 1)
+     * @return the upper bound in microseconds
+     */
+    public static long getBucketUpperBoundMicros(final int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Obtains the mean latency
+     *
+     * @return the mean in microseconds, 0 if nothing recorded
+     */
+    public long getMeanMicros() {
+        final long recorded = count.get();
+        return recorded == 0 ? 0 : totalMicros.get() / recorded;
+    }
+
+    /**
+     * Obtains the max latency
+     *
+     * @return the max in microseconds
+     */
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Obtains the approximated percentile, as the upper bound of the bucket which contains the percentile
+     *
+     * @param percentile the percentile (0.0 .. 100.0)
+     * @return the latency in microseconds, 0 if nothing recorded
+     */
+    public long getPercentileMicros(final double percentile) {
+        final long recorded = count.get();
+        if (recorded == 0) {
+            return 0;
+        }
+
+        final long threshold = (long) Math.ceil(recorded * percentile / 100.0);
+        long accumulated = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            accumulated += buckets.get(i);
+            if (accumulated >= threshold) {
+                return Math.min(getBucketUpperBoundMicros(i), getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * Adds the values recorded in the other histogram
+     *
+     * @param other the histogram
+     */
+    public void add(@NonNull final LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.addAndGet(i, other.buckets.get(i));
+        }
+        count.addAndGet(other.count.get());
+        totalMicros.addAndGet(other.totalMicros.get());
+
+        final long otherMax = other.maxMicros.get();
+        long max = maxMicros.get();
+        while (otherMax > max && !maxMicros.compareAndSet(max, otherMax)) {
+            max = maxMicros.get();
+        }
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "count: " + getCount() + ", mean: " + getMeanMicros() + "us, p50: " + getPercentileMicros(50) + "us, p99: " + getPercentileMicros(99) + "us, max: " + getMaxMicros() + "us";
+    }
+}
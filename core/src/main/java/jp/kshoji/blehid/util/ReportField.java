@@ -0,0 +1,348 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A field of a HID report, located by the Report Map<br />
+ * Bit offsets are precomputed, so encoding and decoding allocate nothing.
+ *
+ * @author K.Shoji
+ */
+public final class ReportField {
+    /**
+     * Report types, same as the Report Reference descriptor
+     */
+    public static final int TYPE_INPUT = 1;
+    public static final int TYPE_OUTPUT = 2;
+    public static final int TYPE_FEATURE = 3;
+
+    /**
+     * Main item flags
+     */
+    public static final int FLAG_CONSTANT = 0x01;
+    public static final int FLAG_VARIABLE = 0x02;
+    public static final int FLAG_RELATIVE = 0x04;
+
+    private final int reportType;
+    private final int reportId;
+    private final int usagePage;
+    private final int usageMinimum;
+    private final int usageMaximum;
+    private final int flags;
+    private final int bitOffset;
+    private final int bitSize;
+    private final int count;
+    private final int logicalMinimum;
+    private final int logicalMaximum;
+    private final boolean signed;
+    private final boolean byteAligned;
+    private final int mask;
+
+    /**
+     * Constructor
+     *
+     * @param reportType the report type
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param usagePage the usage page
+     * @param usageMinimum the usage of the first element
+     * @param usageMaximum the usage of the last element, same as usageMinimum if all elements have the same usage
+     * @param flags the main item flags
+     * @param bitOffset the offset from the start of the report, excluding the Report ID
+     * @param bitSize the size of an element (1 .. 32)
+     * @param count the number of elements
+     * @param logicalMinimum the logical minimum
+     * @param logicalMaximum the logical maximum
+     */
+    ReportField(final int reportType, final int reportId, final int usagePage, final int usageMinimum, final int usageMaximum, final int flags, final int bitOffset, final int bitSize, final int count, final int logicalMinimum, final int logicalMaximum) {
+        this.reportType = reportType;
+        this.reportId = reportId;
+        this.usagePage = usagePage;
+        this.usageMinimum = usageMinimum;
+        this.usageMaximum = usageMaximum;
+        this.flags = flags;
+        this.bitOffset = bitOffset;
+        this.bitSize = bitSize;
+        this.count = count;
+        this.logicalMinimum = logicalMinimum;
+        this.logicalMaximum = logicalMaximum;
+        signed = logicalMinimum < 0;
+        byteAligned = bitOffset % 8 == 0 && bitSize % 8 == 0;
+        mask = bitSize >= 32 ? -1 : (1 << bitSize) - 1;
+    }
+
+    /**
+     * Obtains the report type
+     *
+     * @return {@link #TYPE_INPUT}, {@link #TYPE_OUTPUT} or {@link #TYPE_FEATURE}
+     */
+    public int getReportType() {
+        return reportType;
+    }
+
+    /**
+     * Obtains the Report ID
+     *
+     * @return the Report ID, 0 if the Report Map has no Report ID
+     */
+    public int getReportId() {
+        return reportId;
+    }
+
+    /**
+     * Obtains the usage page
+     *
+     * @return the usage page
+     */
+    public int getUsagePage() {
+        return usagePage;
+    }
+
+    /**
+     * Obtains the usage of the element
+     *
+     * @param index the element index
+     * @return the usage
+     */
+    public int getUsage(final int index) {
+        if (usageMinimum == usageMaximum) {
+            return usageMinimum;
+        }
+        return usageMinimum + index;
+    }
+
+    /**
+     * Obtains the usage of the first element
+     *
+     * @return the usage
+     */
+    public int getUsageMinimum() {
+        return usageMinimum;
+    }
+
+    /**
+     * Obtains the usage of the last element
+     *
+     * @return the usage
+     */
+    public int getUsageMaximum() {
+        return usageMaximum;
+    }
+
+    /**
+     * Check if the field contains the usage
+     *
+     * @param page the usage page
+     * @param usage the usage
+     * @return true if contains
+     */
+    public boolean hasUsage(final int page, final int usage) {
+        return usagePage == page && usage >= usageMinimum && usage <= usageMaximum;
+    }
+
+    /**
+     * Obtains the main item flags
+     *
+     * @return the flags
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Check if the field is an array of usage indices
+     *
+     * @return true if array
+     */
+    public boolean isArray() {
+        return (flags & FLAG_VARIABLE) == 0;
+    }
+
+    /**
+     * Check if the field holds relative values
+     *
+     * @return true if relative
+     */
+    public boolean isRelative() {
+        return (flags & FLAG_RELATIVE) != 0;
+    }
+
+    /**
+     * Obtains the offset from the start of the report, excluding the Report ID
+     *
+     * @return the offset in bits
+     */
+    public int getBitOffset() {
+        return bitOffset;
+    }
+
+    /**
+     * Obtains the size of an element
+     *
+     * @return the size in bits
+     */
+    public int getBitSize() {
+        return bitSize;
+    }
+
+    /**
+     * Obtains the number of elements
+     *
+     * @return the number of elements
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Obtains the logical minimum
+     *
+     * @return the value
+     */
+    public int getLogicalMinimum() {
+        return logicalMinimum;
+    }
+
+    /**
+     * Obtains the logical maximum
+     *
+     * @return the value
+     */
+    public int getLogicalMaximum() {
+        return logicalMaximum;
+    }
+
+    /**
+     * Writes the value to the first element, clamped to the logical range
+     *
+     * @param report the report, excluding the Report ID
+     * @param value the value
+     */
+    public void set(@NonNull final byte[] report, final int value) {
+        set(report, 0, value);
+    }
+
+    /**
+     * Writes the value to the element, clamped to the logical range
+     *
+     * @param report the report, excluding the Report ID
+     * @param index the element index
+     * @param value the value
+     */
+    public void set(@NonNull final byte[] report, final int index, final int value) {
+        int clamped = value;
+        if (logicalMinimum <= logicalMaximum) {
+            if (clamped < logicalMinimum) {
+                clamped = logicalMinimum;
+            } else if (clamped > logicalMaximum) {
+                clamped = logicalMaximum;
+            }
+        }
+
+        final int offset = bitOffset + index * bitSize;
+        if (byteAligned) {
+            // little endian, byte by byte
+            int byteIndex = offset >> 3;
+            for (int shift = 0; shift < bitSize; shift += 8) {
+                report[byteIndex++] = (byte) (clamped >> shift);
+            }
+            return;
+        }
+
+        final int bits = clamped & mask;
+        for (int written = 0; written < bitSize; ) {
+            final int position = offset + written;
+            final int byteIndex = position >> 3;
+            final int bitInByte = position & 7;
+            final int chunk = Math.min(8 - bitInByte, bitSize - written);
+            final int chunkMask = ((1 << chunk) - 1) << bitInByte;
+            report[byteIndex] = (byte) ((report[byteIndex] & ~chunkMask) | (((bits >>> written) << bitInByte) & chunkMask));
+            written += chunk;
+        }
+    }
+
+    /**
+     * Writes the bitmap to the 1-bit elements: bit #i to the element #i
+     *
+     * @param report the report, excluding the Report ID
+     * @param bitmap the bitmap
+     */
+    public void setBitmap(@NonNull final byte[] report, final int bitmap) {
+        if (bitSize == 1 && count == 8 && bitOffset % 8 == 0) {
+            report[bitOffset >> 3] = (byte) bitmap;
+            return;
+        }
+
+        for (int i = 0; i < count && i < 32; i++) {
+            set(report, i, (bitmap >> i) & 1);
+        }
+    }
+
+    /**
+     * Reads the 1-bit elements as a bitmap: the element #i to bit #i
+     *
+     * @param report the report, excluding the Report ID
+     * @return the bitmap
+     */
+    public int getBitmap(@NonNull final byte[] report) {
+        if (bitSize == 1 && count == 8 && bitOffset % 8 == 0 && (bitOffset >> 3) < report.length) {
+            return report[bitOffset >> 3] & 0xff;
+        }
+
+        int bitmap = 0;
+        for (int i = 0; i < count && i < 32; i++) {
+            bitmap |= (get(report, i) & 1) << i;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Reads the value of the first element
+     *
+     * @param report the report, excluding the Report ID
+     * @return the value, sign-extended if the logical minimum is negative
+     */
+    public int get(@NonNull final byte[] report) {
+        return get(report, 0);
+    }
+
+    /**
+     * Reads the value of the element
+     *
+     * @param report the report, excluding the Report ID
+     * @param index the element index
+     * @return the value, sign-extended if the logical minimum is negative, 0 if the report is too short
+     */
+    public int get(@NonNull final byte[] report, final int index) {
+        final int offset = bitOffset + index * bitSize;
+        if (offset + bitSize > report.length * 8) {
+            return 0;
+        }
+
+        int bits = 0;
+        if (byteAligned) {
+            int byteIndex = offset >> 3;
+            for (int shift = 0; shift < bitSize; shift += 8) {
+                bits |= (report[byteIndex++] & 0xff) << shift;
+            }
+        } else {
+            for (int read = 0; read < bitSize; ) {
+                final int position = offset + read;
+                final int bitInByte = position & 7;
+                final int chunk = Math.min(8 - bitInByte, bitSize - read);
+                bits |= ((report[position >> 3] & 0xff) >> bitInByte & ((1 << chunk) - 1)) << read;
+                read += chunk;
+            }
+        }
+
+        if (signed && bitSize < 32 && (bits & (1 << (bitSize - 1))) != 0) {
+            bits |= ~mask;
+        }
+        return bits;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "type: " + reportType + ", id: " + reportId + ", usage: " + usagePage + ":" + usageMinimum + ".." + usageMaximum + ", offset: " + bitOffset + ", size: " + bitSize + ", count: " + count + ", logical: " + logicalMinimum + ".." + logicalMaximum;
+    }
+}
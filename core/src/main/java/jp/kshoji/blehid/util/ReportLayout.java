@@ -0,0 +1,113 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Report Map with the precomputed layout of its reports
+ *
+ * @author K.Shoji
+ */
+public final class ReportLayout {
+    private final byte[] reportMap;
+    private final List<ReportField> fields;
+    private final int[] reportBits;
+
+    /**
+     * Constructor
+     *
+     * @param reportMap the Report Map
+     * @param fields the fields, in the Report Map order
+     * @param reportBits the report sizes in bits, indexed by reportType * 256 + reportId
+     */
+    ReportLayout(@NonNull final byte[] reportMap, @NonNull final ReportField[] fields, @NonNull final int[] reportBits) {
+        this.reportMap = reportMap;
+        this.fields = Collections.unmodifiableList(Arrays.asList(fields));
+        this.reportBits = reportBits;
+    }
+
+    /**
+     * Obtains the Report Map
+     *
+     * @return a copy of the Report Map
+     */
+    @NonNull
+    public byte[] getReportMap() {
+        return reportMap.clone();
+    }
+
+    /**
+     * Obtains the fields, excluding constant (padding) fields
+     *
+     * @return the fields, in the Report Map order
+     */
+    @NonNull
+    public List<ReportField> getFields() {
+        return fields;
+    }
+
+    /**
+     * Obtains the first field which contains the usage
+     *
+     * @param reportType {@link ReportField#TYPE_INPUT}, {@link ReportField#TYPE_OUTPUT} or {@link ReportField#TYPE_FEATURE}
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param usagePage the usage page
+     * @param usage the usage
+     * @return the field
+     * @throws IllegalArgumentException if the report has no such field
+     */
+    @NonNull
+    public ReportField getField(final int reportType, final int reportId, final int usagePage, final int usage) throws IllegalArgumentException {
+        for (final ReportField field : fields) {
+            if (field.getReportType() == reportType && field.getReportId() == reportId && field.hasUsage(usagePage, usage)) {
+                return field;
+            }
+        }
+        throw new IllegalArgumentException("No field for usage " + usagePage + ":" + usage + " in report type: " + reportType + ", id: " + reportId);
+    }
+
+    /**
+     * Obtains the Report IDs of the reports declared with the report type
+     *
+     * @param reportType {@link ReportField#TYPE_INPUT}, {@link ReportField#TYPE_OUTPUT} or {@link ReportField#TYPE_FEATURE}
+     * @return the Report IDs in ascending order, 0 for the reports without Report ID. Empty if no reports are declared with the type.
+     */
+    @NonNull
+    public int[] getReportIds(final int reportType) {
+        if (reportType < ReportField.TYPE_INPUT || reportType > ReportField.TYPE_FEATURE) {
+            return new int[0];
+        }
+
+        int count = 0;
+        for (int reportId = 0; reportId < 256; reportId++) {
+            if (reportBits[reportType * 256 + reportId] > 0) {
+                count++;
+            }
+        }
+        final int[] reportIds = new int[count];
+        int index = 0;
+        for (int reportId = 0; reportId < 256; reportId++) {
+            if (reportBits[reportType * 256 + reportId] > 0) {
+                reportIds[index++] = reportId;
+            }
+        }
+        return reportIds;
+    }
+
+    /**
+     * Obtains the size of the report
+     *
+     * @param reportType {@link ReportField#TYPE_INPUT}, {@link ReportField#TYPE_OUTPUT} or {@link ReportField#TYPE_FEATURE}
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @return the size in bytes, excluding the Report ID. 0 if the report is not declared.
+     */
+    public int getReportSize(final int reportType, final int reportId) {
+        if (reportType < ReportField.TYPE_INPUT || reportType > ReportField.TYPE_FEATURE || reportId < 0 || reportId > 255) {
+            return 0;
+        }
+        return (reportBits[reportType * 256 + reportId] + 7) / 8;
+    }
+}
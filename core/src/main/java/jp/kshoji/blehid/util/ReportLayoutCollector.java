@@ -0,0 +1,167 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tracks the HID item state of a Report Map, and lays out the fields of each main item
+ *
+ * @author K.Shoji
+ */
+final class ReportLayoutCollector {
+    private static final int MAX_REPORT_ID = 255;
+    private static final long MAX_REPORT_BITS = 0xffff * 8;
+
+    // global items
+    private int usagePage;
+    private int logicalMinimum;
+    private int logicalMaximum;
+    private int reportSize;
+    private int reportCount;
+    private int reportId;
+    private boolean reportIdDeclared;
+
+    // local items
+    private int[] usages = new int[8];
+    private int usageCount;
+    private int usageMinimum = -1;
+    private int usageMaximum = -1;
+
+    private int collectionDepth;
+    private final int[] reportBits = new int[(ReportField.TYPE_FEATURE + 1) * (MAX_REPORT_ID + 1)];
+    private final List<ReportField> fields = new ArrayList<>();
+
+    void usagePage(final int value) {
+        usagePage = value;
+    }
+
+    void logicalMinimum(final int value) {
+        logicalMinimum = value;
+    }
+
+    void logicalMaximum(final int value) {
+        logicalMaximum = value;
+    }
+
+    void reportSize(final int value) throws IllegalArgumentException {
+        if (value < 1 || value > 32) {
+            throw new IllegalArgumentException("Report Size must be 1 to 32: " + value);
+        }
+        reportSize = value;
+    }
+
+    void reportCount(final int value) throws IllegalArgumentException {
+        if (value < 1) {
+            throw new IllegalArgumentException("Report Count must be positive: " + value);
+        }
+        reportCount = value;
+    }
+
+    void reportId(final int value) throws IllegalArgumentException, IllegalStateException {
+        if (value < 1 || value > MAX_REPORT_ID) {
+            throw new IllegalArgumentException("Report ID must be 1 to " + MAX_REPORT_ID + ": " + value);
+        }
+        if (!reportIdDeclared && hasReportWithoutId()) {
+            throw new IllegalStateException("Report ID declared after reports without Report ID.");
+        }
+        reportId = value;
+        reportIdDeclared = true;
+    }
+
+    void usage(final int value) {
+        if (usageCount == usages.length) {
+            usages = Arrays.copyOf(usages, usages.length * 2);
+        }
+        usages[usageCount++] = value;
+    }
+
+    void usageMinimum(final int value) {
+        usageMinimum = value;
+    }
+
+    void usageMaximum(final int value) {
+        usageMaximum = value;
+    }
+
+    void collection() {
+        collectionDepth++;
+        clearLocals();
+    }
+
+    void endCollection() throws IllegalStateException {
+        if (collectionDepth == 0) {
+            throw new IllegalStateException("End Collection without Collection.");
+        }
+        collectionDepth--;
+        clearLocals();
+    }
+
+    /**
+     * Lays out the main item, and clears the local items
+     *
+     * @param reportType the report type
+     * @param flags the main item flags
+     * @throws IllegalStateException if Report Size or Report Count has not been declared, or the report gets too large
+     */
+    void main(final int reportType, final int flags) throws IllegalStateException {
+        if (reportSize == 0 || reportCount == 0) {
+            throw new IllegalStateException("Report Size and Report Count must be declared before a main item.");
+        }
+
+        final int index = reportType * (MAX_REPORT_ID + 1) + reportId;
+        final int bitOffset = reportBits[index];
+        if (bitOffset + (long) reportSize * reportCount > MAX_REPORT_BITS) {
+            throw new IllegalStateException("Report too large, type: " + reportType + ", id: " + reportId);
+        }
+
+        if ((flags & ReportField.FLAG_CONSTANT) == 0) {
+            if ((flags & ReportField.FLAG_VARIABLE) != 0 && usageCount > 0) {
+                // a field for each usage, the last usage applies to the rest
+                for (int i = 0; i < reportCount; i++) {
+                    final int usage = usages[Math.min(i, usageCount - 1)];
+                    fields.add(new ReportField(reportType, reportId, usagePage, usage, usage, flags, bitOffset + i * reportSize, reportSize, 1, logicalMinimum, logicalMaximum));
+                }
+            } else {
+                final int minimum = usageMinimum >= 0 ? usageMinimum : (usageCount > 0 ? usages[0] : 0);
+                final int maximum = usageMaximum >= 0 ? usageMaximum : (usageCount > 0 ? usages[usageCount - 1] : minimum);
+                fields.add(new ReportField(reportType, reportId, usagePage, minimum, maximum, flags, bitOffset, reportSize, reportCount, logicalMinimum, logicalMaximum));
+            }
+        }
+
+        reportBits[index] = bitOffset + reportSize * reportCount;
+        clearLocals();
+    }
+
+    /**
+     * Finishes the layout
+     *
+     * @param reportMap the Report Map
+     * @return the layout
+     * @throws IllegalStateException if collections are not closed
+     */
+    @NonNull
+    ReportLayout finish(@NonNull final byte[] reportMap) throws IllegalStateException {
+        if (collectionDepth != 0) {
+            throw new IllegalStateException("Collection not closed: " + collectionDepth);
+        }
+        return new ReportLayout(reportMap, fields.toArray(new ReportField[fields.size()]), reportBits.clone());
+    }
+
+    private boolean hasReportWithoutId() {
+        for (int type = ReportField.TYPE_INPUT; type <= ReportField.TYPE_FEATURE; type++) {
+            if (reportBits[type * (MAX_REPORT_ID + 1)] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clearLocals() {
+        usageCount = 0;
+        usageMinimum = -1;
+        usageMaximum = -1;
+    }
+}
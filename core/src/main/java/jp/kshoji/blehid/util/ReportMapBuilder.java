@@ -0,0 +1,326 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Builds a HID Report Map, together with the layout of its reports<br />
+ * Each item is encoded with the shortest data size which holds the value.
+ *
+ * @author K.Shoji
+ */
+public final class ReportMapBuilder {
+    /**
+     * Collection types
+     */
+    public static final int COLLECTION_PHYSICAL = 0x00;
+    public static final int COLLECTION_APPLICATION = 0x01;
+    public static final int COLLECTION_LOGICAL = 0x02;
+
+    /**
+     * Item prefixes, without the data size
+     */
+    static final int ITEM_INPUT = 0x80;
+    static final int ITEM_OUTPUT = 0x90;
+    static final int ITEM_COLLECTION = 0xa0;
+    static final int ITEM_FEATURE = 0xb0;
+    static final int ITEM_END_COLLECTION = 0xc0;
+    static final int ITEM_USAGE_PAGE = 0x04;
+    static final int ITEM_LOGICAL_MINIMUM = 0x14;
+    static final int ITEM_LOGICAL_MAXIMUM = 0x24;
+    static final int ITEM_PHYSICAL_MINIMUM = 0x34;
+    static final int ITEM_PHYSICAL_MAXIMUM = 0x44;
+    static final int ITEM_UNIT_EXPONENT = 0x54;
+    static final int ITEM_UNIT = 0x64;
+    static final int ITEM_REPORT_SIZE = 0x74;
+    static final int ITEM_REPORT_ID = 0x84;
+    static final int ITEM_REPORT_COUNT = 0x94;
+    static final int ITEM_USAGE = 0x08;
+    static final int ITEM_USAGE_MINIMUM = 0x18;
+    static final int ITEM_USAGE_MAXIMUM = 0x28;
+
+    private final ByteArrayOutputStream reportMap = new ByteArrayOutputStream();
+    private final ReportLayoutCollector collector = new ReportLayoutCollector();
+
+    /**
+     * Usage Page
+     *
+     * @param usagePage the usage page
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder usagePage(final int usagePage) {
+        collector.usagePage(usagePage);
+        return unsignedItem(ITEM_USAGE_PAGE, usagePage);
+    }
+
+    /**
+     * Usage
+     *
+     * @param usage the usage
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder usage(final int usage) {
+        collector.usage(usage);
+        return unsignedItem(ITEM_USAGE, usage);
+    }
+
+    /**
+     * Usage Minimum
+     *
+     * @param usage the usage
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder usageMinimum(final int usage) {
+        collector.usageMinimum(usage);
+        return unsignedItem(ITEM_USAGE_MINIMUM, usage);
+    }
+
+    /**
+     * Usage Maximum
+     *
+     * @param usage the usage
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder usageMaximum(final int usage) {
+        collector.usageMaximum(usage);
+        return unsignedItem(ITEM_USAGE_MAXIMUM, usage);
+    }
+
+    /**
+     * Logical Minimum
+     *
+     * @param value the value
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder logicalMinimum(final int value) {
+        collector.logicalMinimum(value);
+        return signedItem(ITEM_LOGICAL_MINIMUM, value);
+    }
+
+    /**
+     * Logical Maximum
+     *
+     * @param value the value
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder logicalMaximum(final int value) {
+        collector.logicalMaximum(value);
+        return signedItem(ITEM_LOGICAL_MAXIMUM, value);
+    }
+
+    /**
+     * Physical Minimum
+     *
+     * @param value the value
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder physicalMinimum(final int value) {
+        return signedItem(ITEM_PHYSICAL_MINIMUM, value);
+    }
+
+    /**
+     * Physical Maximum
+     *
+     * @param value the value
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder physicalMaximum(final int value) {
+        return signedItem(ITEM_PHYSICAL_MAXIMUM, value);
+    }
+
+    /**
+     * Unit Exponent
+     *
+     * @param value the value
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder unitExponent(final int value) {
+        return signedItem(ITEM_UNIT_EXPONENT, value);
+    }
+
+    /**
+     * Unit
+     *
+     * @param value the value
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder unit(final int value) {
+        return unsignedItem(ITEM_UNIT, value);
+    }
+
+    /**
+     * Report Size
+     *
+     * @param bits the size of an element in bits (1 .. 32)
+     * @return this instance
+     * @throws IllegalArgumentException if the size is out of range
+     */
+    @NonNull
+    public ReportMapBuilder reportSize(final int bits) throws IllegalArgumentException {
+        collector.reportSize(bits);
+        return unsignedItem(ITEM_REPORT_SIZE, bits);
+    }
+
+    /**
+     * Report Count
+     *
+     * @param count the number of elements
+     * @return this instance
+     * @throws IllegalArgumentException if the count is not positive
+     */
+    @NonNull
+    public ReportMapBuilder reportCount(final int count) throws IllegalArgumentException {
+        collector.reportCount(count);
+        return unsignedItem(ITEM_REPORT_COUNT, count);
+    }
+
+    /**
+     * Report ID
+     *
+     * @param reportId the Report ID (1 .. 255)
+     * @return this instance
+     * @throws IllegalArgumentException if the Report ID is out of range
+     * @throws IllegalStateException if reports without Report ID have been declared
+     */
+    @NonNull
+    public ReportMapBuilder reportId(final int reportId) throws IllegalArgumentException, IllegalStateException {
+        collector.reportId(reportId);
+        return unsignedItem(ITEM_REPORT_ID, reportId);
+    }
+
+    /**
+     * Collection
+     *
+     * @param type {@link #COLLECTION_PHYSICAL}, {@link #COLLECTION_APPLICATION} or {@link #COLLECTION_LOGICAL}
+     * @return this instance
+     */
+    @NonNull
+    public ReportMapBuilder collection(final int type) {
+        collector.collection();
+        return unsignedItem(ITEM_COLLECTION, type);
+    }
+
+    /**
+     * End Collection
+     *
+     * @return this instance
+     * @throws IllegalStateException if no collection is open
+     */
+    @NonNull
+    public ReportMapBuilder endCollection() throws IllegalStateException {
+        collector.endCollection();
+        reportMap.write(ITEM_END_COLLECTION);
+        return this;
+    }
+
+    /**
+     * Input item, lays out the Input Report fields
+     *
+     * @param flags the combination of {@link ReportField#FLAG_CONSTANT}, {@link ReportField#FLAG_VARIABLE} and {@link ReportField#FLAG_RELATIVE}
+     * @return this instance
+     * @throws IllegalStateException if Report Size or Report Count has not been declared
+     */
+    @NonNull
+    public ReportMapBuilder input(final int flags) throws IllegalStateException {
+        collector.main(ReportField.TYPE_INPUT, flags);
+        return unsignedItem(ITEM_INPUT, flags);
+    }
+
+    /**
+     * Output item, lays out the Output Report fields
+     *
+     * @param flags the combination of {@link ReportField#FLAG_CONSTANT}, {@link ReportField#FLAG_VARIABLE} and {@link ReportField#FLAG_RELATIVE}
+     * @return this instance
+     * @throws IllegalStateException if Report Size or Report Count has not been declared
+     */
+    @NonNull
+    public ReportMapBuilder output(final int flags) throws IllegalStateException {
+        collector.main(ReportField.TYPE_OUTPUT, flags);
+        return unsignedItem(ITEM_OUTPUT, flags);
+    }
+
+    /**
+     * Feature item, lays out the Feature Report fields
+     *
+     * @param flags the combination of {@link ReportField#FLAG_CONSTANT}, {@link ReportField#FLAG_VARIABLE} and {@link ReportField#FLAG_RELATIVE}
+     * @return this instance
+     * @throws IllegalStateException if Report Size or Report Count has not been declared
+     */
+    @NonNull
+    public ReportMapBuilder feature(final int flags) throws IllegalStateException {
+        collector.main(ReportField.TYPE_FEATURE, flags);
+        return unsignedItem(ITEM_FEATURE, flags);
+    }
+
+    /**
+     * Builds the Report Map and its layout
+     *
+     * @return the layout
+     * @throws IllegalStateException if collections are not closed
+     */
+    @NonNull
+    public ReportLayout build() throws IllegalStateException {
+        return collector.finish(reportMap.toByteArray());
+    }
+
+    /**
+     * Writes the item with the value interpreted as unsigned
+     *
+     * @param prefix the item prefix
+     * @param value the value
+     * @return this instance
+     */
+    private ReportMapBuilder unsignedItem(final int prefix, final int value) {
+        if ((value & ~0xff) == 0) {
+            return item(prefix, value, 1);
+        }
+        if ((value & ~0xffff) == 0) {
+            return item(prefix, value, 2);
+        }
+        return item(prefix, value, 4);
+    }
+
+    /**
+     * Writes the item with the value interpreted as signed
+     *
+     * @param prefix the item prefix
+     * @param value the value
+     * @return this instance
+     */
+    private ReportMapBuilder signedItem(final int prefix, final int value) {
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return item(prefix, value, 1);
+        }
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return item(prefix, value, 2);
+        }
+        return item(prefix, value, 4);
+    }
+
+    /**
+     * Writes the item, little endian
+     *
+     * @param prefix the item prefix
+     * @param value the value
+     * @param size the data size: 1, 2 or 4
+     * @return this instance
+     */
+    private ReportMapBuilder item(final int prefix, final int value, final int size) {
+        reportMap.write(prefix | (size == 4 ? 3 : size));
+        for (int i = 0; i < size; i++) {
+            reportMap.write(value >> (i * 8));
+        }
+        return this;
+    }
+}
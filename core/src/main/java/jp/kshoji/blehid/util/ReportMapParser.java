@@ -0,0 +1,193 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Parses a HID Report Map into the layout of its reports<br />
+ * The result is the same as {@link ReportMapBuilder} produces, so hand-written Report Maps can use {@link ReportField} to encode and decode reports.
+ *
+ * @author K.Shoji
+ */
+public final class ReportMapParser {
+    private static final int ITEM_LONG = 0xfe;
+    private static final int ITEM_PUSH = 0xa4;
+    private static final int ITEM_POP = 0xb4;
+
+    /**
+     * Global item state, saved by Push
+     */
+    private static final class GlobalState implements Cloneable {
+        int usagePage;
+        int logicalMinimum;
+        int logicalMinimumSize;
+        int logicalMaximum;
+        int logicalMaximumSize;
+        int reportSize;
+        int reportCount;
+        int reportId;
+
+        @Override
+        protected GlobalState clone() {
+            try {
+                return (GlobalState) super.clone();
+            } catch (final CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private ReportMapParser() {
+    }
+
+    /**
+     * Parses the Report Map
+     *
+     * @param reportMap the Report Map
+     * @return the layout, holding the Report Map
+     * @throws IllegalArgumentException if the Report Map is malformed
+     */
+    @NonNull
+    public static ReportLayout parse(@NonNull final byte[] reportMap) throws IllegalArgumentException {
+        final ReportLayoutCollector collector = new ReportLayoutCollector();
+        final Deque<GlobalState> stack = new ArrayDeque<>();
+        GlobalState global = new GlobalState();
+
+        try {
+            int position = 0;
+            while (position < reportMap.length) {
+                final int prefix = reportMap[position] & 0xff;
+                if (prefix == ITEM_LONG) {
+                    // long items are reserved, skip the data
+                    if (position + 2 >= reportMap.length) {
+                        throw new IllegalArgumentException("Truncated long item at " + position);
+                    }
+                    position += 3 + (reportMap[position + 1] & 0xff);
+                    continue;
+                }
+
+                final int size = (prefix & 0x03) == 3 ? 4 : prefix & 0x03;
+                if (position + size >= reportMap.length) {
+                    throw new IllegalArgumentException("Truncated item at " + position);
+                }
+                int value = 0;
+                for (int i = 0; i < size; i++) {
+                    value |= (reportMap[position + 1 + i] & 0xff) << (i * 8);
+                }
+
+                switch (prefix & 0xfc) {
+                    case ReportMapBuilder.ITEM_INPUT:
+                        applyGlobals(collector, global);
+                        collector.main(ReportField.TYPE_INPUT, value);
+                        break;
+                    case ReportMapBuilder.ITEM_OUTPUT:
+                        applyGlobals(collector, global);
+                        collector.main(ReportField.TYPE_OUTPUT, value);
+                        break;
+                    case ReportMapBuilder.ITEM_FEATURE:
+                        applyGlobals(collector, global);
+                        collector.main(ReportField.TYPE_FEATURE, value);
+                        break;
+                    case ReportMapBuilder.ITEM_COLLECTION:
+                        collector.collection();
+                        break;
+                    case ReportMapBuilder.ITEM_END_COLLECTION:
+                        collector.endCollection();
+                        break;
+
+                    case ReportMapBuilder.ITEM_USAGE_PAGE:
+                        global.usagePage = value;
+                        break;
+                    case ReportMapBuilder.ITEM_LOGICAL_MINIMUM:
+                        global.logicalMinimum = value;
+                        global.logicalMinimumSize = size;
+                        break;
+                    case ReportMapBuilder.ITEM_LOGICAL_MAXIMUM:
+                        global.logicalMaximum = value;
+                        global.logicalMaximumSize = size;
+                        break;
+                    case ReportMapBuilder.ITEM_REPORT_SIZE:
+                        global.reportSize = value;
+                        break;
+                    case ReportMapBuilder.ITEM_REPORT_COUNT:
+                        global.reportCount = value;
+                        break;
+                    case ReportMapBuilder.ITEM_REPORT_ID:
+                        global.reportId = value;
+                        collector.reportId(value);
+                        break;
+                    case ITEM_PUSH:
+                        stack.push(global.clone());
+                        break;
+                    case ITEM_POP:
+                        if (stack.isEmpty()) {
+                            throw new IllegalArgumentException("Pop without Push at " + position);
+                        }
+                        global = stack.pop();
+                        break;
+
+                    case ReportMapBuilder.ITEM_USAGE:
+                        // extended usages are truncated to the current usage page
+                        collector.usage(value & 0xffff);
+                        break;
+                    case ReportMapBuilder.ITEM_USAGE_MINIMUM:
+                        collector.usageMinimum(value & 0xffff);
+                        break;
+                    case ReportMapBuilder.ITEM_USAGE_MAXIMUM:
+                        collector.usageMaximum(value & 0xffff);
+                        break;
+
+                    default:
+                        // physical range, units, designators, strings and delimiters do not affect the layout
+                        break;
+                }
+
+                position += 1 + size;
+            }
+
+            return collector.finish(reportMap.clone());
+        } catch (final IllegalStateException e) {
+            throw new IllegalArgumentException("Invalid Report Map: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Applies the global items for the main item
+     *
+     * @param collector the collector
+     * @param global the global items
+     */
+    private static void applyGlobals(@NonNull final ReportLayoutCollector collector, @NonNull final GlobalState global) {
+        collector.usagePage(global.usagePage);
+        if (global.reportId != 0) {
+            collector.reportId(global.reportId);
+        }
+        collector.reportSize(global.reportSize);
+        collector.reportCount(global.reportCount);
+
+        // the logical maximum is signed only if the logical minimum is negative
+        final int logicalMinimum = signExtend(global.logicalMinimum, global.logicalMinimumSize);
+        collector.logicalMinimum(logicalMinimum);
+        collector.logicalMaximum(logicalMinimum < 0 ? signExtend(global.logicalMaximum, global.logicalMaximumSize) : global.logicalMaximum);
+    }
+
+    /**
+     * Sign-extends the item data
+     *
+     * @param value the data
+     * @param size the data size in bytes
+     * @return the signed value
+     */
+    private static int signExtend(final int value, final int size) {
+        switch (size) {
+            case 1:
+                return (byte) value;
+            case 2:
+                return (short) value;
+            default:
+                return value;
+        }
+    }
+}
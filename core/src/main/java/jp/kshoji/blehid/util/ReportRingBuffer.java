@@ -0,0 +1,474 @@
+package jp.kshoji.blehid.util;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring of preallocated fixed-size report slots<br />
+ * Producers encode a report directly into a claimed slot, the single consumer polls reports in order.
+ * After the buffers for each report length have been allocated, neither producing nor consuming allocates.
+ *
+ * @author K.Shoji
+ */
+public final class ReportRingBuffer {
+    /**
+     * Waits until the consumer frees a slot
+     */
+    public static final int OVERFLOW_BLOCK = 0;
+    /**
+     * Discards the oldest queued report
+     */
+    public static final int OVERFLOW_DROP_OLDEST = 1;
+    /**
+     * Discards the new report
+     */
+    public static final int OVERFLOW_DROP_NEWEST = 2;
+    /**
+     * Overwrites the newest queued report with the new report
+     */
+    public static final int OVERFLOW_COALESCE = 3;
+
+    /**
+     * Claim modes
+     */
+    private static final int CLAIM_APPEND = 0;
+    private static final int CLAIM_OVERWRITE = 1;
+    private static final int CLAIM_NEWEST = 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    private final int maxReportSize;
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final long[] timestamps;
+    private final int[] reportIds;
+    private final byte[][] polledBuffers;
+    private int head;
+    private int count;
+    private int claimedSlot = -1;
+    private int claimMode;
+    private volatile int overflowPolicy = OVERFLOW_BLOCK;
+    private long polledTimestamp;
+    private int polledReportId;
+    // true from peeking the head until it is removed, the head may have been partially delivered
+    private boolean headPeeked;
+    private final long[] sequences;
+    private long nextSequence;
+    private long peekedSequence;
+
+    private long droppedCount;
+    private long coalescedCount;
+
+    /**
+     * Constructor
+     *
+     * @param capacity the number of slots
+     * @param maxReportSize the size of each slot in bytes
+     * @throws IllegalArgumentException if capacity or maxReportSize is not positive
+     */
+    public ReportRingBuffer(final int capacity, final int maxReportSize) throws IllegalArgumentException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (maxReportSize < 1) {
+            throw new IllegalArgumentException("maxReportSize must be positive: " + maxReportSize);
+        }
+        this.maxReportSize = maxReportSize;
+        slots = new byte[capacity][maxReportSize];
+        lengths = new int[capacity];
+        timestamps = new long[capacity];
+        reportIds = new int[capacity];
+        sequences = new long[capacity];
+        polledBuffers = new byte[maxReportSize + 1][];
+    }
+
+    /**
+     * Set the policy applied when a report is claimed while all slots are in use
+     *
+     * @param policy {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_DROP_OLDEST}, {@link #OVERFLOW_DROP_NEWEST} or {@link #OVERFLOW_COALESCE}
+     * @throws IllegalArgumentException if the policy is unknown
+     */
+    public void setOverflowPolicy(final int policy) throws IllegalArgumentException {
+        if (policy < OVERFLOW_BLOCK || policy > OVERFLOW_COALESCE) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + policy);
+        }
+        overflowPolicy = policy;
+    }
+
+    /**
+     * Obtains the overflow policy
+     *
+     * @return the policy
+     */
+    public int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Obtains the size of each slot
+     *
+     * @return the size in bytes
+     */
+    public int getMaxReportSize() {
+        return maxReportSize;
+    }
+
+    /**
+     * Obtains the number of slots
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Claims a zero-filled slot to encode a report into.<br />
+     * When a slot is returned, the caller must call {@link #commit(int)} on the same thread, even if encoding failed.
+     *
+     * @param mayBlock false: {@link #OVERFLOW_BLOCK} policy behaves like {@link #OVERFLOW_DROP_NEWEST}
+     * @return the slot, null if the report should be dropped
+     */
+    @Nullable
+    public byte[] claim(final boolean mayBlock) {
+        return claim(mayBlock, true);
+    }
+
+    /**
+     * Claims a zero-filled slot to encode a report into.<br />
+     * When a slot is returned, the caller must call {@link #commit(int)} on the same thread, even if encoding failed.
+     *
+     * @param mayBlock false: {@link #OVERFLOW_BLOCK} policy behaves like {@link #OVERFLOW_DROP_NEWEST}
+     * @param mayCoalesce false: the report must not replace the newest one, {@link #OVERFLOW_COALESCE} policy behaves like {@link #OVERFLOW_BLOCK}
+     * @return the slot, null if the report should be dropped
+     */
+    @Nullable
+    public byte[] claim(final boolean mayBlock, final boolean mayCoalesce) {
+        final int policy = overflowPolicy;
+        lock.lock();
+
+        if (count == slots.length) {
+            switch (policy == OVERFLOW_COALESCE && !mayCoalesce ? OVERFLOW_BLOCK : policy) {
+                case OVERFLOW_BLOCK:
+                    if (!mayBlock) {
+                        // the caller can not wait: the new report is dropped
+                        droppedCount++;
+                        lock.unlock();
+                        return null;
+                    }
+                    while (count == slots.length) {
+                        notFull.awaitUninterruptibly();
+                    }
+                    break;
+
+                case OVERFLOW_DROP_NEWEST:
+                    droppedCount++;
+                    lock.unlock();
+                    return null;
+
+                case OVERFLOW_DROP_OLDEST:
+                    head = (head + 1) % slots.length;
+                    count--;
+                    droppedCount++;
+                    headPeeked = false;
+                    break;
+
+                case OVERFLOW_COALESCE:
+                default:
+                    if (count == 1 && headPeeked) {
+                        // the only queued report has been peeked
+                        droppedCount++;
+                        lock.unlock();
+                        return null;
+                    }
+                    claimedSlot = (head + count - 1) % slots.length;
+                    claimMode = CLAIM_OVERWRITE;
+                    Arrays.fill(slots[claimedSlot], (byte) 0);
+                    return slots[claimedSlot];
+            }
+        }
+
+        claimedSlot = (head + count) % slots.length;
+        claimMode = CLAIM_APPEND;
+        Arrays.fill(slots[claimedSlot], (byte) 0);
+        return slots[claimedSlot];
+    }
+
+    /**
+     * Claims the newest queued report to merge a new report into it, the slot keeps the queued contents.<br />
+     * When a slot is returned, the caller must call {@link #commit(int)} on the same thread: the length to update the report, or 0 to leave it unchanged.
+     *
+     * @return the slot, null if no reports are queued
+     */
+    @Nullable
+    public byte[] claimNewest() {
+        return claimNewest(0);
+    }
+
+    /**
+     * Claims the newest queued report with the Report ID, to merge a new report into it, the slot keeps the queued contents.<br />
+     * When a slot is returned, the caller must call {@link #commit(int, int)} on the same thread: the length to update the report, or 0 to leave it unchanged.
+     *
+     * @param reportId the Report ID
+     * @return the slot, null if no reports are queued, or the newest report has another Report ID
+     */
+    @Nullable
+    public byte[] claimNewest(final int reportId) {
+        lock.lock();
+
+        if (count == 0 || (count == 1 && headPeeked) || reportIds[(head + count - 1) % slots.length] != reportId) {
+            // nothing queued, the only queued report has been peeked, or another report is the newest
+            lock.unlock();
+            return null;
+        }
+
+        claimedSlot = (head + count - 1) % slots.length;
+        claimMode = CLAIM_NEWEST;
+        return slots[claimedSlot];
+    }
+
+    /**
+     * Commits the claimed slot
+     *
+     * @param length the report length, 0 to cancel the claimed report (or leave the report claimed by {@link #claimNewest()} unchanged)
+     * @throws IllegalStateException if no slot is claimed on the current thread
+     * @throws IllegalArgumentException if length exceeds the slot size
+     */
+    public void commit(final int length) throws IllegalStateException, IllegalArgumentException {
+        commit(0, length);
+    }
+
+    /**
+     * Commits the claimed slot as a report with the Report ID
+     *
+     * @param reportId the Report ID, 0 if the report has no Report ID
+     * @param length the report length, 0 to cancel the claimed report (or leave the report claimed by {@link #claimNewest(int)} unchanged)
+     * @throws IllegalStateException if no slot is claimed on the current thread
+     * @throws IllegalArgumentException if length exceeds the slot size
+     */
+    public void commit(final int reportId, final int length) throws IllegalStateException, IllegalArgumentException {
+        if (!lock.isHeldByCurrentThread() || claimedSlot < 0) {
+            throw new IllegalStateException("No slot claimed.");
+        }
+        try {
+            if (length < 0 || length > maxReportSize) {
+                throw new IllegalArgumentException("Invalid report length: " + length);
+            }
+
+            switch (claimMode) {
+                case CLAIM_OVERWRITE:
+                    if (length > 0) {
+                        lengths[claimedSlot] = length;
+                        reportIds[claimedSlot] = reportId;
+                        coalescedCount++;
+                    } else {
+                        // the queued report has been cleared: discard it
+                        count--;
+                        droppedCount++;
+                    }
+                    break;
+
+                case CLAIM_NEWEST:
+                    if (length > 0) {
+                        lengths[claimedSlot] = length;
+                        coalescedCount++;
+                    }
+                    break;
+
+                case CLAIM_APPEND:
+                default:
+                    if (length > 0) {
+                        lengths[claimedSlot] = length;
+                        reportIds[claimedSlot] = reportId;
+                        timestamps[claimedSlot] = System.nanoTime();
+                        sequences[claimedSlot] = nextSequence++;
+                        count++;
+                    }
+                    break;
+            }
+        } finally {
+            claimedSlot = -1;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Polls the oldest report
+     *
+     * @return the report, the buffer is owned by this instance and valid until the next call. null if empty.
+     */
+    @Nullable
+    public byte[] poll() {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return null;
+            }
+
+            final int length = lengths[head];
+            byte[] polled = polledBuffers[length];
+            if (polled == null) {
+                polled = new byte[length];
+                polledBuffers[length] = polled;
+            }
+            System.arraycopy(slots[head], 0, polled, 0, length);
+            polledTimestamp = timestamps[head];
+            polledReportId = reportIds[head];
+
+            head = (head + 1) % slots.length;
+            count--;
+            headPeeked = false;
+            notFull.signal();
+            return polled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Peeks the oldest report, and keeps it queued until {@link #removePeeked()} is called.<br />
+     * Once peeked, the report is never merged by {@link #claimNewest()} or {@link #OVERFLOW_COALESCE} until it is removed,
+     * as it may have been delivered to some of the devices already: the new report is queued into a fresh slot instead.
+     * To retry the report later, just peek it again.
+     *
+     * @return the report, the buffer is owned by this instance and valid until the next call. null if empty.
+     */
+    @Nullable
+    public byte[] peek() {
+        lock.lock();
+        try {
+            if (count == 0) {
+                return null;
+            }
+
+            final int length = lengths[head];
+            byte[] peeked = polledBuffers[length];
+            if (peeked == null) {
+                peeked = new byte[length];
+                polledBuffers[length] = peeked;
+            }
+            System.arraycopy(slots[head], 0, peeked, 0, length);
+            polledTimestamp = timestamps[head];
+            polledReportId = reportIds[head];
+            peekedSequence = sequences[head];
+            headPeeked = true;
+            return peeked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Obtains the sequence number of the report obtained by {@link #peek()}, unique for each queued report
+     *
+     * @return the sequence number
+     */
+    public long getPeekedSequence() {
+        return peekedSequence;
+    }
+
+    /**
+     * Removes the report obtained by {@link #peek()}, if it has not been dropped by the overflow policy meanwhile.
+     */
+    public void removePeeked() {
+        lock.lock();
+        try {
+            if (headPeeked && count > 0 && sequences[head] == peekedSequence) {
+                head = (head + 1) % slots.length;
+                count--;
+                notFull.signal();
+            }
+            headPeeked = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Obtains the time the last polled report has been queued
+     *
+     * @return the time in {@link System#nanoTime()}
+     */
+    public long getPolledTimestamp() {
+        return polledTimestamp;
+    }
+
+    /**
+     * Obtains the Report ID of the last polled report
+     *
+     * @return the Report ID, 0 if the report has no Report ID
+     */
+    public int getPolledReportId() {
+        return polledReportId;
+    }
+
+    /**
+     * Discards all queued reports
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            head = 0;
+            count = 0;
+            headPeeked = false;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Obtains the number of queued reports
+     *
+     * @return the number of reports
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check if no reports are queued
+     *
+     * @return true if empty
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Obtains the number of reports discarded by the overflow policy
+     *
+     * @return the number of reports
+     */
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Obtains the number of reports merged into the queued report, by {@link #OVERFLOW_COALESCE} or {@link #claimNewest()}
+     *
+     * @return the number of reports
+     */
+    public long getCoalescedCount() {
+        lock.lock();
+        try {
+            return coalescedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package jp.kshoji.blehid.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.kshoji.blehid.HidMetrics;
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapBuilder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Start and close cycles of {@link HidPipeline}, leaving no threads, tasks or state behind
+ *
+ * @author K.Shoji
+ */
+public class HidPipelineLifecycleTest {
+    private static final int CYCLES = 20;
+    private static final String DEVICE_ADDRESS = "00:00:00:00:00:01";
+    private static final String THREAD_NAME = "HidPipelineLifecycleTest-";
+
+    private static final ReportLayout REPORT_LAYOUT = new ReportMapBuilder()
+            .usagePage(0x01)                  // Generic Desktop
+            .usage(0x02)                      // Mouse
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .usage(0x30)                      //  X
+            .logicalMinimum(-127)
+            .logicalMaximum(127)
+            .reportSize(8)
+            .reportCount(1)
+            .input(ReportField.FLAG_VARIABLE | ReportField.FLAG_RELATIVE)
+            .endCollection()
+            .build();
+
+    private InMemoryGattTransport transport;
+    private HidPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        transport = new InMemoryGattTransport();
+        pipeline = new HidPipeline(REPORT_LAYOUT, new int[] {0}, 16, 1, 10, transport);
+    }
+
+    @Test
+    public void startCloseOnThreadSchedulerLeavesNoThread() throws InterruptedException {
+        for (int i = 0; i < CYCLES; i++) {
+            final ThreadScheduler scheduler = new ThreadScheduler(THREAD_NAME + i);
+            pipeline.start(scheduler);
+            transport.connect(DEVICE_ADDRESS);
+            pipeline.addInputReport(0, new byte[] {(byte) i});
+            waitForNotifications(i + 1);
+            transport.acknowledge(DEVICE_ADDRESS);
+
+            // quits the thread as HidPeripheral does, after the closing has run on it
+            pipeline.close(new Runnable() {
+                @Override
+                public void run() {
+                    scheduler.quit();
+                }
+            });
+            assertTrue("thread still alive", scheduler.join(1000));
+            assertEquals(0, scheduler.getPendingTaskCount());
+            assertFalse(pipeline.isStarted());
+            assertEquals(0, pipeline.getConnectedDeviceAddresses().length);
+        }
+
+        assertEquals(CYCLES, transport.getNotificationCount());
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse("leaked thread: " + thread.getName(), thread.getName().startsWith(THREAD_NAME));
+        }
+    }
+
+    @Test
+    public void startCloseOnVirtualSchedulerLeavesNoTask() {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        final AtomicInteger metricsCount = new AtomicInteger();
+        pipeline.setMetricsListener(new HidMetrics.Listener() {
+            @Override
+            public void onMetrics(final HidMetrics metrics) {
+                metricsCount.incrementAndGet();
+            }
+        }, 100);
+
+        for (int i = 0; i < CYCLES; i++) {
+            pipeline.start(scheduler);
+            transport.connect(DEVICE_ADDRESS);
+            pipeline.setInputReportSource(new HidPipeline.InputReportSource() {
+                @Override
+                public boolean onInputReportSlotsAvailable(final HidPipeline sourcePipeline, final int freeSlots) {
+                    // never finishes, removed by close
+                    return true;
+                }
+            });
+            pipeline.addInputReport(0, new byte[] {(byte) i});
+            scheduler.advanceBy(200);
+
+            pipeline.close(null);
+            scheduler.advanceBy(0);
+            assertEquals(0, scheduler.getPendingTaskCount());
+            assertNull(pipeline.getInputReportSource());
+            assertFalse(pipeline.hasPendingInputReport());
+
+            // no wakeups while closed
+            final int closedMetricsCount = metricsCount.get();
+            scheduler.advanceBy(1000);
+            assertEquals(0, scheduler.getPendingTaskCount());
+            assertEquals(closedMetricsCount, metricsCount.get());
+        }
+
+        assertEquals(CYCLES, transport.getNotificationCount());
+    }
+
+    @Test
+    public void quickCloseStartKeepsQueueAndDevices() {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        pipeline.start(scheduler);
+        transport.connect(DEVICE_ADDRESS);
+        scheduler.advanceBy(10);
+
+        final HidPipeline.InputReportSource source = new HidPipeline.InputReportSource() {
+            @Override
+            public boolean onInputReportSlotsAvailable(final HidPipeline sourcePipeline, final int freeSlots) {
+                return true;
+            }
+        };
+        final AtomicInteger closedCount = new AtomicInteger();
+        pipeline.close(new Runnable() {
+            @Override
+            public void run() {
+                closedCount.incrementAndGet();
+            }
+        });
+
+        // restarted before the closing runs on the scheduler
+        pipeline.start(scheduler);
+        pipeline.setInputReportSource(source);
+        final byte[][] notified = new byte[1][];
+        transport.setNotificationListener(new InMemoryGattTransport.NotificationListener() {
+            @Override
+            public void onNotification(final String deviceAddress, final int reportId, final byte[] report) {
+                notified[0] = report.clone();
+            }
+        });
+        pipeline.setSendMode(HidPipeline.SEND_MODE_EVENT);
+        pipeline.addInputReport(0, new byte[] {42});
+        scheduler.advanceBy(100);
+
+        assertEquals(1, closedCount.get());
+        assertTrue(pipeline.isStarted());
+        assertArrayEquals(new String[] {DEVICE_ADDRESS}, pipeline.getConnectedDeviceAddresses());
+        assertSame(source, pipeline.getInputReportSource());
+        assertArrayEquals(new byte[] {42}, notified[0]);
+        assertFalse(pipeline.hasPendingInputReport());
+
+        // sending goes on in the new session
+        transport.acknowledge(DEVICE_ADDRESS);
+        pipeline.addInputReport(0, new byte[] {43});
+        scheduler.advanceBy(100);
+        assertArrayEquals(new byte[] {43}, notified[0]);
+        assertEquals(2, transport.getNotificationCount());
+    }
+
+    @Test
+    public void eventModeIdlesWithoutTask() {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        pipeline.setSendMode(HidPipeline.SEND_MODE_EVENT);
+        pipeline.start(scheduler);
+        transport.connect(DEVICE_ADDRESS);
+        scheduler.advanceBy(100);
+        assertEquals(0, scheduler.getPendingTaskCount());
+
+        // woken up by the report only
+        pipeline.addInputReport(0, new byte[] {1});
+        scheduler.advanceBy(100);
+        transport.acknowledge(DEVICE_ADDRESS);
+        scheduler.advanceBy(100);
+        assertEquals(1, transport.getNotificationCount());
+        assertEquals(0, scheduler.getPendingTaskCount());
+
+        // the tick runs again on the timer mode
+        pipeline.setSendMode(HidPipeline.SEND_MODE_TIMER);
+        pipeline.addInputReport(0, new byte[] {2});
+        scheduler.advanceBy(100);
+        assertEquals(2, transport.getNotificationCount());
+        assertEquals(1, scheduler.getPendingTaskCount());
+
+        pipeline.setSendMode(HidPipeline.SEND_MODE_EVENT);
+        scheduler.advanceBy(100);
+        assertEquals(0, scheduler.getPendingTaskCount());
+    }
+
+    @Test
+    public void closeDrainsByPolicy() {
+        final VirtualScheduler scheduler = new VirtualScheduler();
+        pipeline.start(scheduler);
+        transport.connect(DEVICE_ADDRESS);
+        pipeline.setNotificationWindow(8);
+        pipeline.setClosePolicy(HidPipeline.CLOSE_POLICY_DRAIN);
+        for (int i = 0; i < 5; i++) {
+            pipeline.addInputReport(0, new byte[] {(byte) i});
+        }
+
+        pipeline.close(null);
+        scheduler.advanceBy(0);
+        assertEquals(5, transport.getNotificationCount());
+        assertEquals(0, scheduler.getPendingTaskCount());
+    }
+
+    /**
+     * Waits until the transport has accepted the notifications
+     *
+     * @param count the number of notifications
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void waitForNotifications(final long count) throws InterruptedException {
+        final long deadline = System.nanoTime() + 1000 * 1000000L;
+        while (transport.getNotificationCount() < count) {
+            assertTrue("notification not sent", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package jp.kshoji.blehid.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapBuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Notifications of {@link HidPipeline} failing or reaching no device
+ *
+ * @author K.Shoji
+ */
+public class HidPipelineNotificationTest {
+    private static final String DEVICE_ADDRESS = "00:00:00:00:00:01";
+
+    private static final ReportLayout REPORT_LAYOUT = new ReportMapBuilder()
+            .usagePage(0x01)                  // Generic Desktop
+            .usage(0x02)                      // Mouse
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .usage(0x30)                      //  X
+            .logicalMinimum(-127)
+            .logicalMaximum(127)
+            .reportSize(8)
+            .reportCount(1)
+            .input(ReportField.FLAG_VARIABLE | ReportField.FLAG_RELATIVE)
+            .endCollection()
+            .build();
+
+    private VirtualScheduler scheduler;
+    private InMemoryGattTransport transport;
+    private HidPipeline pipeline;
+    // the reports received by the device, in order
+    private final List<Integer> notified = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        transport = new InMemoryGattTransport();
+        pipeline = new HidPipeline(REPORT_LAYOUT, new int[] {0}, 16, 1, 10, transport);
+        pipeline.start(scheduler);
+        transport.setNotificationListener(new InMemoryGattTransport.NotificationListener() {
+            @Override
+            public void onNotification(final String deviceAddress, final int reportId, final byte[] report) {
+                notified.add((int) report[0]);
+            }
+        });
+    }
+
+    @Test
+    public void failedNotificationIsRetriedInOrder() {
+        transport.connect(DEVICE_ADDRESS);
+        for (int i = 1; i <= 3; i++) {
+            pipeline.addInputReport(0, new byte[] {(byte) i});
+        }
+        scheduler.advanceBy(50);
+        assertEquals(3, transport.getPendingNotificationCount(DEVICE_ADDRESS));
+
+        // the first one fails: sent again, followed by the ones sent after it
+        assertTrue(transport.fail(DEVICE_ADDRESS));
+        transport.acknowledge(DEVICE_ADDRESS);
+        scheduler.advanceBy(50);
+        transport.acknowledge(DEVICE_ADDRESS);
+        scheduler.advanceBy(50);
+
+        assertEquals(1, pipeline.getNotificationFailureCount());
+        assertEquals(3, pipeline.getSentInputReportCount());
+        assertEquals(6, notified.size());
+        assertEquals(Integer.valueOf(1), notified.get(3));
+        assertEquals(Integer.valueOf(3), notified.get(notified.size() - 1));
+        assertFalse(pipeline.hasPendingInputReport());
+    }
+
+    @Test
+    public void failingNotificationIsGivenUp() {
+        transport.connect(DEVICE_ADDRESS);
+        pipeline.addInputReport(0, new byte[] {1});
+        // every notification fails
+        for (int i = 0; i < HidPipeline.MAX_NOTIFICATION_ATTEMPTS * 2; i++) {
+            scheduler.advanceBy(10);
+            transport.fail(DEVICE_ADDRESS);
+        }
+
+        assertEquals(HidPipeline.MAX_NOTIFICATION_ATTEMPTS, notified.size());
+        assertEquals(HidPipeline.MAX_NOTIFICATION_ATTEMPTS, pipeline.getNotificationFailureCount());
+        assertFalse(pipeline.hasPendingInputReport());
+    }
+
+    @Test
+    public void refusedReportIsNotCountedSent() {
+        transport.connect(DEVICE_ADDRESS);
+        // every notification is refused by the stack
+        transport.setAccepting(false);
+        pipeline.addInputReport(0, new byte[] {1});
+        scheduler.advanceBy(10 * (HidPipeline.MAX_NOTIFICATION_ATTEMPTS + 2));
+
+        assertTrue(notified.isEmpty());
+        assertFalse(pipeline.hasPendingInputReport());
+        assertEquals(0, pipeline.getSentInputReportCount());
+    }
+
+    @Test
+    public void flushedStateIsNotReplaced() {
+        transport.connect(DEVICE_ADDRESS);
+        pipeline.setNotificationWindow(8);
+        pipeline.setInputReportState(0, new byte[] {1}, 1);
+        pipeline.setInputReportState(0, new byte[] {2}, 1);
+        assertTrue(pipeline.flushInputReportState());
+        pipeline.setInputReportState(0, new byte[] {3}, 1);
+        // back to the flushed state
+        assertTrue(pipeline.flushInputReportState());
+        pipeline.setInputReportState(0, new byte[] {2}, 1);
+        scheduler.advanceBy(50);
+
+        assertEquals(3, notified.size());
+        assertEquals(Integer.valueOf(2), notified.get(0));
+        assertEquals(Integer.valueOf(3), notified.get(1));
+        assertEquals(Integer.valueOf(2), notified.get(2));
+    }
+
+    @Test
+    public void reportWithoutDeviceIsDropped() {
+        pipeline.addInputReport(0, new byte[] {1});
+        scheduler.advanceBy(50);
+
+        assertFalse(pipeline.hasPendingInputReport());
+        assertEquals(0, pipeline.getSentInputReportCount());
+        assertEquals(1, pipeline.getDroppedInputReportCount());
+    }
+
+    @Test
+    public void reportTooLargeForAllDevicesIsDropped() {
+        transport.connect(DEVICE_ADDRESS);
+        // an MTU leaving no room for the report
+        transport.changeMtu(DEVICE_ADDRESS, 3);
+        pipeline.addInputReport(0, new byte[] {1});
+        scheduler.advanceBy(50);
+
+        assertTrue(notified.isEmpty());
+        assertEquals(0, pipeline.getSentInputReportCount());
+        assertEquals(1, pipeline.getDroppedInputReportCount());
+        assertEquals(1, pipeline.getOversizedInputReportCount());
+    }
+}
@@ -0,0 +1,239 @@
+package jp.kshoji.blehid.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import jp.kshoji.blehid.core.HidPipeline;
+import jp.kshoji.blehid.core.InMemoryGattTransport;
+import jp.kshoji.blehid.core.VirtualScheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The text typed by {@link KeyTyper} through {@link HidPipeline}, decoded by a host pressing the new keys of a report in the array order
+ *
+ * @author K.Shoji
+ */
+public class KeyTyperConformanceTest {
+    private static final String DEVICE_ADDRESS = "00:00:00:00:00:01";
+
+    private static final String US_TEXT = "Hello, World! aabbcc 1234567890 " +
+            "The quick brown fox jumps over the lazy dog; THE QUICK BROWN FOX. " +
+            "~!@#$%^&*()_+{}|:\"<>? `-=[]\\;',./ moon  bookkeeper\tabcdefAbCdEf\n";
+    private static final String DE_TEXT = "Grüße aus München: été, à la crème, " +
+            "âêîôû ÉÈÂ zyZY @€{[]}\\|~ äöüÄÖÜ eeee\n";
+
+    private static final ReportLayout REPORT_LAYOUT = new ReportMapBuilder()
+            .usagePage(0x01)                  // Generic Desktop
+            .usage(0x06)                      // Keyboard
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .usagePage(0x07)                  //  Keyboard/Keypad
+            .usageMinimum(0xE0)
+            .usageMaximum(0xE7)
+            .logicalMinimum(0)
+            .logicalMaximum(1)
+            .reportSize(1)                    //  Modifiers
+            .reportCount(8)
+            .input(ReportField.FLAG_VARIABLE)
+            .reportCount(1)                   //  Reserved
+            .reportSize(8)
+            .input(ReportField.FLAG_CONSTANT)
+            .reportCount(6)                   //  Keys
+            .reportSize(8)
+            .logicalMaximum(0xff)
+            .usageMinimum(0x00)
+            .usageMaximum(0xff)
+            .input(0)
+            .endCollection()
+            .build();
+
+    private static final ReportField MODIFIERS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x07, 0xE0);
+    private static final ReportField KEYS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x07, 0x00);
+    private static final int REPORT_SIZE = REPORT_LAYOUT.getReportSize(ReportField.TYPE_INPUT, 0);
+
+    private VirtualScheduler scheduler;
+    private InMemoryGattTransport transport;
+    private HidPipeline pipeline;
+    private StringBuilder decoded;
+    private Host host;
+    // refuses every n-th report, as if another sender filled the queue, 0: never
+    private int refusalInterval;
+    private int sinkCallCount;
+
+    private final KeyTyper.KeyReportSink sink = new KeyTyper.KeyReportSink() {
+        @Override
+        public boolean sendKeys(final int modifier, final int[] keys, final int keyCount) {
+            sinkCallCount++;
+            if (refusalInterval > 0 && sinkCallCount % refusalInterval == 0) {
+                return false;
+            }
+            final byte[] report = pipeline.claimInputReport();
+            assertNotNull("report dropped", report);
+            MODIFIERS.setBitmap(report, modifier);
+            for (int i = 0; i < keyCount; i++) {
+                KEYS.set(report, i, keys[i]);
+            }
+            pipeline.commitInputReport(0, REPORT_SIZE);
+            return true;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        scheduler = new VirtualScheduler();
+        transport = new InMemoryGattTransport();
+        pipeline = new HidPipeline(REPORT_LAYOUT, new int[] {0}, 1024, REPORT_SIZE, 10, transport);
+        pipeline.start(scheduler);
+        transport.connect(DEVICE_ADDRESS);
+        decoded = new StringBuilder();
+        transport.setNotificationListener(new InMemoryGattTransport.NotificationListener() {
+            @Override
+            public void onNotification(final String deviceAddress, final int reportId, final byte[] report) {
+                host.onReport(report);
+            }
+        });
+    }
+
+    @Test
+    public void singleTypingKeepsOrder() {
+        assertEquals(US_TEXT, typeAndDecode(KeyboardLayout.US, US_TEXT, false));
+        assertEquals(DE_TEXT, typeAndDecode(KeyboardLayout.DE, DE_TEXT, false));
+    }
+
+    @Test
+    public void packedTypingKeepsOrder() {
+        assertEquals(US_TEXT, typeAndDecode(KeyboardLayout.US, US_TEXT, true));
+        assertEquals(DE_TEXT, typeAndDecode(KeyboardLayout.DE, DE_TEXT, true));
+    }
+
+    @Test
+    public void refusedReportsAreRetried() {
+        for (refusalInterval = 2; refusalInterval <= 5; refusalInterval++) {
+            assertEquals(US_TEXT, typeAndDecode(KeyboardLayout.US, US_TEXT, false));
+            assertEquals(DE_TEXT, typeAndDecode(KeyboardLayout.DE, DE_TEXT, false));
+            assertEquals(US_TEXT, typeAndDecode(KeyboardLayout.US, US_TEXT, true));
+            assertEquals(DE_TEXT, typeAndDecode(KeyboardLayout.DE, DE_TEXT, true));
+        }
+    }
+
+    @Test
+    public void packedTypingSavesReports() {
+        final String text = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+        final long singleCount = transport.getNotificationCount();
+        assertEquals(text, typeAndDecode(KeyboardLayout.US, text, false));
+        final long singleReports = transport.getNotificationCount() - singleCount;
+
+        final long packedCount = transport.getNotificationCount();
+        assertEquals(text, typeAndDecode(KeyboardLayout.US, text, true));
+        final long packedReports = transport.getNotificationCount() - packedCount;
+
+        assertTrue(singleReports + " / " + packedReports, packedReports * 4 <= singleReports);
+    }
+
+    /**
+     * Types the text in chunks, retrying the refused steps, sends the reports and decodes them
+     *
+     * @param layout the keyboard layout
+     * @param text the text
+     * @param packed true: packed typing
+     * @return the decoded text
+     */
+    private String typeAndDecode(final KeyboardLayout layout, final String text, final boolean packed) {
+        decoded.setLength(0);
+        host = new Host(layout);
+        final KeyTyper typer = new KeyTyper(layout, KEYS.getCount(), packed, sink);
+        for (int i = 0; i < text.length(); ) {
+            i = typer.type(text, i, text.length());
+        }
+        while (!typer.finish()) {
+            // retried
+        }
+
+        while (pipeline.hasPendingInputReport() || transport.getPendingNotificationCount(DEVICE_ADDRESS) > 0) {
+            scheduler.advanceBy(10);
+            transport.acknowledge(DEVICE_ADDRESS);
+        }
+        return decoded.toString();
+    }
+
+    /**
+     * A host composing the characters from the keys newly pressed, with the dead keys of the layout
+     */
+    private final class Host {
+        // key stroke to character
+        private final Map<Integer, Character> characters = new HashMap<>();
+        // (dead key stroke << 16 | key stroke) to character
+        private final Map<Integer, Character> composedCharacters = new HashMap<>();
+        private final int[] lastKeys = new int[KEYS.getCount()];
+        private int deadKeyStroke;
+
+        Host(final KeyboardLayout layout) {
+            for (int codePoint = 0xffff; codePoint > 0; codePoint--) {
+                final int keyStroke = layout.getKeyStroke(codePoint);
+                if (keyStroke == 0) {
+                    continue;
+                }
+                final int deadKey = layout.getDeadKeyStroke(codePoint);
+                if (deadKey == 0) {
+                    // the lowest code point wins, '\n' over '\r'
+                    characters.put(keyStroke, (char) codePoint);
+                } else {
+                    composedCharacters.put(deadKey << 16 | keyStroke, (char) codePoint);
+                }
+            }
+        }
+
+        void onReport(final byte[] report) {
+            final int modifier = MODIFIERS.getBitmap(report);
+            final int[] keys = new int[lastKeys.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = KEYS.get(report, i);
+                if (keys[i] != 0 && !contains(lastKeys, keys[i])) {
+                    press(modifier << 8 | keys[i]);
+                }
+            }
+            System.arraycopy(keys, 0, lastKeys, 0, keys.length);
+        }
+
+        private void press(final int keyStroke) {
+            if (deadKeyStroke != 0) {
+                final Character composed = composedCharacters.get(deadKeyStroke << 16 | keyStroke);
+                assertNotNull("not composed: " + Integer.toHexString(keyStroke), composed);
+                decoded.append(composed.charValue());
+                deadKeyStroke = 0;
+                return;
+            }
+            if (isDeadKey(keyStroke)) {
+                deadKeyStroke = keyStroke;
+                return;
+            }
+            final Character character = characters.get(keyStroke);
+            assertNotNull("unknown key: " + Integer.toHexString(keyStroke), character);
+            decoded.append(character.charValue());
+        }
+
+        private boolean isDeadKey(final int keyStroke) {
+            for (final int key : composedCharacters.keySet()) {
+                if (key >>> 16 == keyStroke) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean contains(final int[] keys, final int usage) {
+            for (final int key : keys) {
+                if (key == usage) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package jp.kshoji.blehid;
 
 import android.content.Context;
+import android.os.Looper;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.util.Arrays;
 
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapBuilder;
+import jp.kshoji.blehid.util.ReportRingBuffer;
+
 /**
  * BLE Mouse(Absolute Position)
  *
@@ -14,47 +21,52 @@ public final class AbsoluteMousePeripheral extends HidPeripheral {
     /**
      * Characteristic Data(Report Map)
      */
-    private static final byte[] REPORT_MAP = {
+    private static final ReportLayout REPORT_LAYOUT = new ReportMapBuilder()
         // @formatter:off
-        USAGE_PAGE(1), 0x01,           // Generic Desktop
-        USAGE(1), 0x02,                // Mouse
-        COLLECTION(1), 0x01,           // Application
-            USAGE(1), 0x01,                // Pointer
-            COLLECTION(1), 0x00,           // Physical
-                USAGE_PAGE(1), 0x01,            // Generic Desktop
-                USAGE(1), 0x30,                 // X
-                USAGE(1), 0x31,                 // Y
-                LOGICAL_MINIMUM(1), 0x00,       // 0
-                LOGICAL_MAXIMUM(2), (byte)0xff, 0x7f, // 32767
-                REPORT_SIZE(1), 0x10,
-                REPORT_COUNT(1), 0x02,
-                INPUT(1), 0x02,                 // Data, Variable, Absolute
-                USAGE_PAGE(1), 0x01,            // Generic Desktop
-                USAGE(1), 0x38,                 // scroll
-                LOGICAL_MINIMUM(1), (byte)0x81,       // -127
-                LOGICAL_MAXIMUM(1), 0x7f,       // 127
-                REPORT_SIZE(1), 0x08,
-                REPORT_COUNT(1), 0x01,
-                INPUT(1), 0x06,                 // Data, Variable, Relative
-                USAGE_PAGE(1), 0x09,            // Buttons
-                USAGE_MINIMUM(1), 0x01,
-                USAGE_MAXIMUM(1), 0x03,
-                LOGICAL_MINIMUM(1), 0x00,       // 0
-                LOGICAL_MAXIMUM(1), 0x01,       // 1
-                REPORT_COUNT(1), 0x03,
-                REPORT_SIZE(1), 0x01,
-                INPUT(1), 0x02,                 // Data, Variable, Absolute
-                REPORT_COUNT(1), 0x01,
-                REPORT_SIZE(1), 0x05,
-                INPUT(1), 0x01,                 // Constant
-            END_COLLECTION(0),
-        END_COLLECTION(0)
+        .usagePage(0x01)                    // Generic Desktop
+        .usage(0x02)                        // Mouse
+        .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .usage(0x01)                        // Pointer
+            .collection(ReportMapBuilder.COLLECTION_PHYSICAL)
+                .usagePage(0x01)                    // Generic Desktop
+                .usage(0x30)                        // X
+                .usage(0x31)                        // Y
+                .logicalMinimum(0)
+                .logicalMaximum(32767)
+                .reportSize(16)
+                .reportCount(2)
+                .input(ReportField.FLAG_VARIABLE)   // Data, Variable, Absolute
+                .usagePage(0x01)                    // Generic Desktop
+                .usage(0x38)                        // scroll
+                .logicalMinimum(-127)
+                .logicalMaximum(127)
+                .reportSize(8)
+                .reportCount(1)
+                .input(ReportField.FLAG_VARIABLE | ReportField.FLAG_RELATIVE)
+                .usagePage(0x09)                    // Buttons
+                .usageMinimum(0x01)
+                .usageMaximum(0x03)
+                .logicalMinimum(0)
+                .logicalMaximum(1)
+                .reportCount(3)
+                .reportSize(1)
+                .input(ReportField.FLAG_VARIABLE)   // Data, Variable, Absolute
+                .reportCount(1)
+                .reportSize(5)
+                .input(ReportField.FLAG_CONSTANT)
+            .endCollection()
+        .endCollection()
+        .build();
         // @formatter:on
-    };
+
+    private static final ReportField X = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x30);
+    private static final ReportField Y = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x31);
+    private static final ReportField WHEEL = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x38);
+    private static final ReportField BUTTONS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x09, 0x01);
 
     @Override
     protected byte[] getReportMap() {
-        return REPORT_MAP;
+        return REPORT_LAYOUT.getReportMap();
     }
 
     /**
@@ -64,7 +76,46 @@ public final class AbsoluteMousePeripheral extends HidPeripheral {
      * @param context the applicationContext
      */
     public AbsoluteMousePeripheral(final Context context) throws UnsupportedOperationException {
-        super(context.getApplicationContext(), true, false, false, 10);
+        this(context, context.getApplicationContext().getMainLooper());
+    }
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the applicationContext
+     * @param gattLooper the Looper to run GATT server works, null: runs on a dedicated high priority thread
+     */
+    public AbsoluteMousePeripheral(final Context context, @Nullable final Looper gattLooper) throws UnsupportedOperationException {
+        super(context.getApplicationContext(), true, false, false, 10, gattLooper);
+
+        // the latest absolute position supersedes the queued one
+        setInputReportOverflowPolicy(ReportRingBuffer.OVERFLOW_COALESCE);
+    }
+
+    private static final int REPORT_SIZE = REPORT_LAYOUT.getReportSize(ReportField.TYPE_INPUT, 0);
+    // the latest state, guarded by itself
+    private final byte[] stateReport = new byte[REPORT_SIZE];
+    private volatile boolean latestStateWins;
+
+    /**
+     * Set the 'latest wins' mode<br />
+     * The absolute position is kept in a single slot instead of being queued, and only the latest one is sent on each sending.
+     * A button change is never replaced: the previous state is queued before it, if not sent yet.
+     *
+     * @param enabled true: send the latest state only
+     */
+    public void setLatestStateWins(final boolean enabled) {
+        latestStateWins = enabled;
+    }
+
+    /**
+     * Check if the 'latest wins' mode is enabled
+     *
+     * @return true if enabled
+     */
+    public boolean isLatestStateWins() {
+        return latestStateWins;
     }
     
     /**
@@ -77,14 +128,8 @@ public final class AbsoluteMousePeripheral extends HidPeripheral {
      * @param rightButton true : button down
      * @param middleButton true : button down
      */
-    public void movePointer(int x, int y, int wheel, final boolean leftButton, final boolean rightButton, final boolean middleButton) {
-        if (x > 32767) x = 32767;
-        if (x < 0) x = 0;
-        if (y > 32767) y = 32767;
-        if (y < 0) y = 0;
-        if (wheel > 127) wheel = 127;
-        if (wheel < -127) wheel = -127;
-        byte button = 0;
+    public void movePointer(final int x, final int y, final int wheel, final boolean leftButton, final boolean rightButton, final boolean middleButton) {
+        int button = 0;
         if (leftButton) {
             button |= 1;
         }
@@ -95,15 +140,47 @@ public final class AbsoluteMousePeripheral extends HidPeripheral {
             button |= 4;
         }
 
-        final byte[] report = new byte[6];
-        report[0] = LSB(x);
-        report[1] = MSB(x);
-        report[2] = LSB(y);
-        report[3] = MSB(y);
-        report[4] = (byte) wheel;
-        report[5] = (byte) (button & 0x07);
+        if (latestStateWins) {
+            synchronized (stateReport) {
+                if (BUTTONS.getBitmap(stateReport) != button) {
+                    // the state with the previous buttons is sent before the button change
+                    flushInputReportState();
+                }
+                encodeReport(stateReport, x, y, wheel, button);
+                setInputReportState(stateReport, REPORT_SIZE);
+            }
+            return;
+        }
 
-        addInputReport(report);
+        // the overflow policy may overwrite the newest report, only if the button state is unchanged
+        boolean mayCoalesce = true;
+        final byte[] newest = claimNewestInputReport();
+        if (newest != null) {
+            mayCoalesce = BUTTONS.getBitmap(newest) == button;
+            commitInputReport(0);
+        }
+        final byte[] report = claimInputReport(mayCoalesce);
+        if (report == null) {
+            return;
+        }
+        encodeReport(report, x, y, wheel, button);
+        commitInputReport(REPORT_SIZE);
+    }
+
+    /**
+     * Encodes the pointer state, values are clamped to the logical range
+     *
+     * @param report the report
+     * @param x absolute X
+     * @param y absolute Y
+     * @param wheel wheel
+     * @param button the buttons bitmap
+     */
+    private static void encodeReport(final byte[] report, final int x, final int y, final int wheel, final int button) {
+        X.set(report, x);
+        Y.set(report, y);
+        WHEEL.set(report, wheel);
+        BUTTONS.setBitmap(report, button);
     }
 
     @Override
@@ -0,0 +1,118 @@
+package jp.kshoji.blehid;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.os.Build.VERSION_CODES;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jp.kshoji.blehid.core.GattTransport;
+
+/**
+ * {@link GattTransport} over the Android {@link BluetoothGattServer}<br />
+ * The server callbacks are forwarded to the pipeline by {@link HidPeripheral}, after registering the device with {@link #putDevice(BluetoothDevice)}.
+ *
+ * @author K.Shoji
+ */
+@TargetApi(VERSION_CODES.LOLLIPOP)
+final class AndroidGattTransport implements GattTransport {
+    private static final int REPORT_ID_COUNT = 256;
+
+    @Nullable
+    private volatile BluetoothGattServer gattServer;
+    // devices seen by the GATT server, keyed by the address
+    private final Map<String, BluetoothDevice> devices = new ConcurrentHashMap<>();
+    // Input Report characteristics indexed by the Report ID
+    private final BluetoothGattCharacteristic[] inputReportCharacteristics = new BluetoothGattCharacteristic[REPORT_ID_COUNT];
+
+    /**
+     * Set the GATT server to send with
+     *
+     * @param server the server
+     */
+    synchronized void setGattServer(@NonNull final BluetoothGattServer server) {
+        gattServer = server;
+    }
+
+    /**
+     * Clears the GATT server, only if it is still the server to send with
+     *
+     * @param server the closed server
+     */
+    synchronized void clearGattServer(@NonNull final BluetoothGattServer server) {
+        if (gattServer == server) {
+            gattServer = null;
+        }
+    }
+
+    /**
+     * Set the Input Report characteristic of the Report ID
+     *
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param characteristic the characteristic
+     */
+    void setInputReportCharacteristic(final int reportId, @NonNull final BluetoothGattCharacteristic characteristic) {
+        inputReportCharacteristics[reportId] = characteristic;
+    }
+
+    /**
+     * Registers the device to address it by {@link BluetoothDevice#getAddress()}
+     *
+     * @param device the device
+     */
+    void putDevice(@NonNull final BluetoothDevice device) {
+        devices.put(device.getAddress(), device);
+    }
+
+    /**
+     * Unregisters the device
+     *
+     * @param deviceAddress the device address
+     */
+    void removeDevice(@NonNull final String deviceAddress) {
+        devices.remove(deviceAddress);
+    }
+
+    /**
+     * Obtains the registered device
+     *
+     * @param deviceAddress the device address
+     * @return the device, null if not registered
+     */
+    @Nullable
+    BluetoothDevice getDevice(@NonNull final String deviceAddress) {
+        return devices.get(deviceAddress);
+    }
+
+    @Override
+    public void setCallback(@Nullable final Callback callback) {
+        // the server callbacks are forwarded to the pipeline by HidPeripheral
+    }
+
+    @Override
+    public boolean notifyInputReport(@NonNull final String deviceAddress, final int reportId, @NonNull final byte[] report) {
+        final BluetoothGattServer server = gattServer;
+        final BluetoothDevice device = devices.get(deviceAddress);
+        final BluetoothGattCharacteristic characteristic = inputReportCharacteristics[reportId];
+        if (server == null || device == null || characteristic == null) {
+            return false;
+        }
+
+        characteristic.setValue(report);
+        return server.notifyCharacteristicChanged(device, characteristic, false);
+    }
+
+    @Override
+    public void sendResponse(@NonNull final String deviceAddress, final int requestId, final int status, final int offset, @Nullable final byte[] value) {
+        final BluetoothGattServer server = gattServer;
+        final BluetoothDevice device = devices.get(deviceAddress);
+        if (server != null && device != null) {
+            server.sendResponse(device, requestId, status, offset, value);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package jp.kshoji.blehid;
+
+import android.content.Context;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapBuilder;
+
+/**
+ * BLE Keyboard, Mouse, Consumer Control and Gamepad in a single peripheral<br />
+ * Each device has its own Report ID, and all of them share one GATT server and one sender.
+ *
+ * @author K.Shoji
+ */
+public final class CompositePeripheral extends HidPeripheral {
+    /**
+     * Report IDs
+     */
+    public static final int REPORT_ID_KEYBOARD = 1;
+    public static final int REPORT_ID_MOUSE = 2;
+    public static final int REPORT_ID_CONSUMER_CONTROL = 3;
+    public static final int REPORT_ID_GAMEPAD = 4;
+
+    private static final int[] INPUT_REPORT_IDS = {REPORT_ID_KEYBOARD, REPORT_ID_MOUSE, REPORT_ID_CONSUMER_CONTROL, REPORT_ID_GAMEPAD};
+
+    /**
+     * Consumer Control usages
+     */
+    public static final int CONSUMER_SCAN_NEXT_TRACK = 0xb5;
+    public static final int CONSUMER_SCAN_PREVIOUS_TRACK = 0xb6;
+    public static final int CONSUMER_STOP = 0xb7;
+    public static final int CONSUMER_PLAY_PAUSE = 0xcd;
+    public static final int CONSUMER_MUTE = 0xe2;
+    public static final int CONSUMER_VOLUME_INCREMENT = 0xe9;
+    public static final int CONSUMER_VOLUME_DECREMENT = 0xea;
+
+    /**
+     * Keyboard LEDs
+     */
+    public static final int LED_NUM_LOCK = 0x01;
+    public static final int LED_CAPS_LOCK = 0x02;
+    public static final int LED_SCROLL_LOCK = 0x04;
+    public static final int LED_COMPOSE = 0x08;
+    public static final int LED_KANA = 0x10;
+
+    /**
+     * Characteristic Data(Report Map)
+     */
+    private static final ReportLayout REPORT_LAYOUT = new ReportMapBuilder()
+            // Keyboard
+            .usagePage(0x01)                  // Generic Desktop
+            .usage(0x06)                      // Keyboard
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .reportId(REPORT_ID_KEYBOARD)
+            .usagePage(0x07)                  //   Kbrd/Keypad
+            .usageMinimum(0xE0)
+            .usageMaximum(0xE7)
+            .logicalMinimum(0)
+            .logicalMaximum(1)
+            .reportSize(1)                    //   1 byte (Modifier)
+            .reportCount(8)
+            .input(ReportField.FLAG_VARIABLE)
+            .reportCount(1)                   //   1 byte (Reserved)
+            .reportSize(8)
+            .input(ReportField.FLAG_CONSTANT)
+            .reportCount(5)                   //   5 bits (Num lock, Caps lock, Scroll lock, Compose, Kana)
+            .reportSize(1)
+            .usagePage(0x08)                  //   LEDs
+            .usageMinimum(0x01)               //   Num Lock
+            .usageMaximum(0x05)               //   Kana
+            .output(ReportField.FLAG_VARIABLE)
+            .reportCount(1)                   //   3 bits (Padding)
+            .reportSize(3)
+            .output(ReportField.FLAG_CONSTANT)
+            .reportCount(6)                   //   6 bytes (Keys)
+            .reportSize(8)
+            .logicalMinimum(0)
+            .logicalMaximum(0x65)             //   101 keys
+            .usagePage(0x07)                  //   Kbrd/Keypad
+            .usageMinimum(0x00)
+            .usageMaximum(0x65)
+            .input(0)                         //   Data,Array,Abs
+            .endCollection()
+
+            // Mouse
+            .usagePage(0x01)                  // Generic Desktop
+            .usage(0x02)                      // Mouse
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .reportId(REPORT_ID_MOUSE)
+            .usage(0x01)                      //  Pointer
+            .collection(ReportMapBuilder.COLLECTION_PHYSICAL)
+            .usagePage(0x09)                  //   Buttons
+            .usageMinimum(0x01)
+            .usageMaximum(0x03)
+            .logicalMinimum(0)
+            .logicalMaximum(1)
+            .reportCount(3)                   //   3 bits (Buttons)
+            .reportSize(1)
+            .input(ReportField.FLAG_VARIABLE)
+            .reportCount(1)                   //   5 bits (Padding)
+            .reportSize(5)
+            .input(ReportField.FLAG_CONSTANT)
+            .usagePage(0x01)                  //   Generic Desktop
+            .usage(0x30)                      //   X
+            .usage(0x31)                      //   Y
+            .usage(0x38)                      //   Wheel
+            .logicalMinimum(-127)
+            .logicalMaximum(127)
+            .reportSize(8)                    //   Three bytes
+            .reportCount(3)
+            .input(ReportField.FLAG_VARIABLE | ReportField.FLAG_RELATIVE)
+            .endCollection()
+            .endCollection()
+
+            // Consumer Control
+            .usagePage(0x0c)                  // Consumer
+            .usage(0x01)                      // Consumer Control
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .reportId(REPORT_ID_CONSUMER_CONTROL)
+            .logicalMinimum(0)
+            .logicalMaximum(0x3ff)
+            .usageMinimum(0x00)
+            .usageMaximum(0x3ff)
+            .reportSize(16)                   //  2 bytes (Usage)
+            .reportCount(1)
+            .input(0)                         //  Data, Array, Absolute
+            .endCollection()
+
+            // Gamepad
+            .usagePage(0x01)                  // Generic Desktop
+            .usage(0x05)                      // Game Pad
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .reportId(REPORT_ID_GAMEPAD)
+            .usagePage(0x09)                  //  Buttons
+            .usageMinimum(0x01)
+            .usageMaximum(0x08)
+            .logicalMinimum(0)
+            .logicalMaximum(1)
+            .reportCount(8)                   //  8 bits (Buttons)
+            .reportSize(1)
+            .input(ReportField.FLAG_VARIABLE)
+            .usagePage(0x01)                  //  Generic Desktop
+            .usage(0x30)                      //  X
+            .usage(0x31)                      //  Y
+            .usage(0x32)                      //  Z
+            .usage(0x35)                      //  Rz
+            .logicalMinimum(-127)
+            .logicalMaximum(127)
+            .reportSize(8)                    //  Four bytes
+            .reportCount(4)
+            .input(ReportField.FLAG_VARIABLE)
+            .endCollection()
+            .build();
+
+    private static final ReportField KEYBOARD_MODIFIERS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_KEYBOARD, 0x07, 0xE0);
+    private static final ReportField KEYBOARD_KEYS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_KEYBOARD, 0x07, 0x00);
+    private static final ReportField KEYBOARD_LEDS = REPORT_LAYOUT.getField(ReportField.TYPE_OUTPUT, REPORT_ID_KEYBOARD, 0x08, 0x01);
+    private static final ReportField MOUSE_BUTTONS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_MOUSE, 0x09, 0x01);
+    private static final ReportField MOUSE_X = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_MOUSE, 0x01, 0x30);
+    private static final ReportField MOUSE_Y = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_MOUSE, 0x01, 0x31);
+    private static final ReportField MOUSE_WHEEL = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_MOUSE, 0x01, 0x38);
+    private static final ReportField CONSUMER_CONTROL = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_CONSUMER_CONTROL, 0x0c, 0x00);
+    private static final ReportField GAMEPAD_BUTTONS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_GAMEPAD, 0x09, 0x01);
+    private static final ReportField GAMEPAD_X = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_GAMEPAD, 0x01, 0x30);
+    private static final ReportField GAMEPAD_Y = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_GAMEPAD, 0x01, 0x31);
+    private static final ReportField GAMEPAD_Z = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_GAMEPAD, 0x01, 0x32);
+    private static final ReportField GAMEPAD_RZ = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, REPORT_ID_GAMEPAD, 0x01, 0x35);
+
+    @Override
+    protected byte[] getReportMap() {
+        return REPORT_LAYOUT.getReportMap();
+    }
+
+    @Override
+    protected int[] getInputReportIds() {
+        return INPUT_REPORT_IDS;
+    }
+
+    @Override
+    protected int getOutputReportId() {
+        return REPORT_ID_KEYBOARD;
+    }
+
+    private static final int INPUT_REPORT_QUEUE_CAPACITY = 128;
+    private static final int KEYBOARD_REPORT_SIZE = REPORT_LAYOUT.getReportSize(ReportField.TYPE_INPUT, REPORT_ID_KEYBOARD);
+    private static final int MOUSE_REPORT_SIZE = REPORT_LAYOUT.getReportSize(ReportField.TYPE_INPUT, REPORT_ID_MOUSE);
+    private static final int CONSUMER_CONTROL_REPORT_SIZE = REPORT_LAYOUT.getReportSize(ReportField.TYPE_INPUT, REPORT_ID_CONSUMER_CONTROL);
+    private static final int GAMEPAD_REPORT_SIZE = REPORT_LAYOUT.getReportSize(ReportField.TYPE_INPUT, REPORT_ID_GAMEPAD);
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the applicationContext
+     */
+    public CompositePeripheral(final Context context) throws UnsupportedOperationException {
+        this(context, context.getApplicationContext().getMainLooper());
+    }
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the applicationContext
+     * @param gattLooper the Looper to run GATT server works, null: runs on a dedicated high priority thread
+     */
+    public CompositePeripheral(final Context context, @Nullable final Looper gattLooper) throws UnsupportedOperationException {
+        super(context.getApplicationContext(), true, true, false, 10, INPUT_REPORT_QUEUE_CAPACITY, KEYBOARD_REPORT_SIZE, gattLooper);
+    }
+
+    /**
+     * Send Key Down Event
+     *
+     * @param modifier modifier key
+     * @param keyCode key code
+     */
+    public void sendKeyDown(final byte modifier, final byte keyCode) {
+        final byte[] report = claimInputReport();
+        if (report == null) {
+            return;
+        }
+        KEYBOARD_MODIFIERS.setBitmap(report, modifier & 0xff);
+        KEYBOARD_KEYS.set(report, 0, keyCode & 0xff);
+
+        commitInputReport(REPORT_ID_KEYBOARD, KEYBOARD_REPORT_SIZE);
+    }
+
+    /**
+     * Send Key Up Event
+     */
+    public void sendKeyUp() {
+        if (claimInputReport() != null) {
+            // the claimed report is zero-filled
+            commitInputReport(REPORT_ID_KEYBOARD, KEYBOARD_REPORT_SIZE);
+        }
+    }
+
+    /**
+     * Move the mouse pointer
+     *
+     * @param dx delta X (-127 .. +127)
+     * @param dy delta Y (-127 .. +127)
+     * @param wheel wheel (-127 .. +127)
+     * @param leftButton true : button down
+     * @param rightButton true : button down
+     * @param middleButton true : button down
+     */
+    public void movePointer(final int dx, final int dy, final int wheel, final boolean leftButton, final boolean rightButton, final boolean middleButton) {
+        final byte[] report = claimInputReport();
+        if (report == null) {
+            return;
+        }
+        int button = 0;
+        if (leftButton) {
+            button |= 1;
+        }
+        if (rightButton) {
+            button |= 2;
+        }
+        if (middleButton) {
+            button |= 4;
+        }
+        // values are clamped to the logical range
+        MOUSE_BUTTONS.setBitmap(report, button);
+        MOUSE_X.set(report, dx);
+        MOUSE_Y.set(report, dy);
+        MOUSE_WHEEL.set(report, wheel);
+
+        commitInputReport(REPORT_ID_MOUSE, MOUSE_REPORT_SIZE);
+    }
+
+    /**
+     * Press the Consumer Control usage, such as media keys
+     *
+     * @param usage the usage (0 .. 1023), 0 to release
+     */
+    public void sendConsumerControl(final int usage) {
+        final byte[] report = claimInputReport();
+        if (report == null) {
+            return;
+        }
+        CONSUMER_CONTROL.set(report, 0, usage);
+
+        commitInputReport(REPORT_ID_CONSUMER_CONTROL, CONSUMER_CONTROL_REPORT_SIZE);
+    }
+
+    /**
+     * Release the Consumer Control usage
+     */
+    public void releaseConsumerControl() {
+        sendConsumerControl(0);
+    }
+
+    /**
+     * Set the gamepad state
+     *
+     * @param buttons button bits, bit #0 is button 1
+     * @param x X (-127 .. +127)
+     * @param y Y (-127 .. +127)
+     * @param z Z (-127 .. +127)
+     * @param rz Rz (-127 .. +127)
+     */
+    public void setGamepadState(final int buttons, final int x, final int y, final int z, final int rz) {
+        final byte[] report = claimInputReport();
+        if (report == null) {
+            return;
+        }
+        GAMEPAD_BUTTONS.setBitmap(report, buttons);
+        GAMEPAD_X.set(report, x);
+        GAMEPAD_Y.set(report, y);
+        GAMEPAD_Z.set(report, z);
+        GAMEPAD_RZ.set(report, rz);
+
+        commitInputReport(REPORT_ID_GAMEPAD, GAMEPAD_REPORT_SIZE);
+    }
+
+    private volatile int ledState;
+
+    /**
+     * Obtains the keyboard LED state, set by the central
+     *
+     * @return the combination of {@link #LED_NUM_LOCK}, {@link #LED_CAPS_LOCK}, {@link #LED_SCROLL_LOCK}, {@link #LED_COMPOSE} and {@link #LED_KANA}
+     */
+    public int getLedState() {
+        return ledState;
+    }
+
+    @Override
+    protected void onOutputReport(final byte[] outputReport) {
+        ledState = KEYBOARD_LEDS.getBitmap(outputReport);
+    }
+}
@@ -0,0 +1,51 @@
+package jp.kshoji.blehid;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blehid.core.Scheduler;
+
+/**
+ * {@link Scheduler} on an Android {@link Handler}
+ *
+ * @author K.Shoji
+ */
+final class HandlerScheduler implements Scheduler {
+    private final Handler handler;
+
+    /**
+     * Constructor
+     *
+     * @param handler the handler to post the tasks
+     */
+    HandlerScheduler(@NonNull final Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void post(@NonNull final Runnable task) {
+        handler.post(task);
+    }
+
+    @Override
+    public void postDelayed(@NonNull final Runnable task, final long delayMillis) {
+        handler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void remove(@NonNull final Runnable task) {
+        handler.removeCallbacks(task);
+    }
+
+    @Override
+    public boolean isSchedulerThread() {
+        return Looper.myLooper() == handler.getLooper();
+    }
+}
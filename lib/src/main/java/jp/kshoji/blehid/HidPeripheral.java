@@ -22,25 +22,27 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build.VERSION_CODES;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
+import jp.kshoji.blehid.core.HidPipeline;
 import jp.kshoji.blehid.util.BleUuidUtils;
+import jp.kshoji.blehid.util.HidTracer;
+import jp.kshoji.blehid.util.LatencyHistogram;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapParser;
+import jp.kshoji.blehid.util.ReportRingBuffer;
 
 /**
  * BLE HID over GATT base features
@@ -48,7 +50,7 @@ import jp.kshoji.blehid.util.BleUuidUtils;
  * @author K.Shoji
  */
 @TargetApi(VERSION_CODES.LOLLIPOP)
-public abstract class HidPeripheral {
+public abstract class HidPeripheral implements AutoCloseable {
     private static final String TAG = HidPeripheral.class.getSimpleName();
 
     /**
@@ -158,17 +160,269 @@ public abstract class HidPeripheral {
      * @return Report Map data
      */
     protected abstract byte[] getReportMap();
-    
+
+    /**
+     * Obtains the layout of the reports, parsed from the Report Map
+     *
+     * @return the layout
+     */
+    @NonNull
+    protected final ReportLayout getReportLayout() {
+        return pipeline.getReportLayout();
+    }
+
+    /**
+     * Report IDs
+     */
+    private static final int[] NO_REPORT_IDS = {0};
+    private static final int REPORT_ID_COUNT = 256;
+
+    /**
+     * Report types of the Report Reference descriptor
+     */
+    private static final byte REPORT_TYPE_INPUT = 1;
+    private static final byte REPORT_TYPE_OUTPUT = 2;
+    private static final byte REPORT_TYPE_FEATURE = 3;
+
+    /**
+     * Represents the Report IDs of the Input Reports declared in the Report Map, each ID is served as an Input Report characteristic.<br />
+     * Called while constructing the instance, so the implementation should return a constant.
+     *
+     * @return the Report IDs (1 .. 255), or {0} if the Report Map has no Report ID
+     */
+    protected int[] getInputReportIds() {
+        return NO_REPORT_IDS;
+    }
+
+    /**
+     * Represents the Report ID of the Output Report declared in the Report Map<br />
+     * Called while constructing the instance, so the implementation should return a constant.
+     *
+     * @return the Report ID, or 0 if the Report Map has no Report ID
+     */
+    protected int getOutputReportId() {
+        return 0;
+    }
+
+    /**
+     * Represents the Report ID of the Feature Report declared in the Report Map<br />
+     * Called while constructing the instance, so the implementation should return a constant.
+     *
+     * @return the Report ID, or 0 if the Report Map has no Report ID
+     */
+    protected int getFeatureReportId() {
+        return 0;
+    }
+
     /**
      * HID Input Report
      */
-    private final Queue<byte[]> inputReportQueue = new ConcurrentLinkedQueue<>();
-    protected final void addInputReport(final byte[] inputReport) {
-        if (inputReport != null && inputReport.length > 0) {
-            inputReportQueue.offer(inputReport);
-        }
+    private static final int DEFAULT_INPUT_REPORT_QUEUE_CAPACITY = 128;
+    private static final int DEFAULT_MAX_INPUT_REPORT_SIZE = 20;
+
+    /**
+     * The max size of a report, limited by the max attribute value length
+     */
+    public static final int MAX_REPORT_SIZE = HidPipeline.MAX_REPORT_SIZE;
+
+    /**
+     * Input Report pipeline, independent of Android
+     */
+    private final AndroidGattTransport transport = new AndroidGattTransport();
+    private final HidPipeline pipeline;
+
+    /**
+     * Queue an Input Report, the data is copied into the queue.<br />
+     * On the main thread the report is dropped while the queue is full with {@link ReportRingBuffer#OVERFLOW_BLOCK}, the main thread never waits.
+     *
+     * @param inputReport the report data
+     * @throws IllegalArgumentException if the report is larger than the max Input Report size
+     */
+    protected final void addInputReport(final byte[] inputReport) throws IllegalArgumentException {
+        addInputReport(0, inputReport);
+    }
+
+    /**
+     * Queue an Input Report with the Report ID, the data is copied into the queue.
+     *
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param inputReport the report data, without the Report ID
+     * @throws IllegalArgumentException if the report is larger than the max Input Report size
+     */
+    protected final void addInputReport(final int reportId, final byte[] inputReport) throws IllegalArgumentException {
+        pipeline.addInputReport(reportId, inputReport, mayBlock());
+    }
+
+    /**
+     * Claims a zero-filled Input Report slot to encode a report into, without allocation.<br />
+     * When a slot is returned, {@link #commitInputReport(int)} must be called on the same thread.
+     * With {@link ReportRingBuffer#OVERFLOW_BLOCK}, a full queue blocks the caller until a slot frees up,
+     * except on the main thread and the GATT thread: there the new report is dropped, the main thread never waits.
+     *
+     * @return the slot, null if the report is dropped by the overflow policy
+     */
+    @Nullable
+    protected final byte[] claimInputReport() {
+        return pipeline.claimInputReport(mayBlock());
+    }
+
+    /**
+     * Claims a zero-filled Input Report slot to encode a report into, without allocation.<br />
+     * When a slot is returned, {@link #commitInputReport(int)} must be called on the same thread.
+     *
+     * @param mayCoalesce false: the report must not replace the newest queued one, such as a button change, {@link ReportRingBuffer#OVERFLOW_COALESCE} waits or drops instead
+     * @return the slot, null if the report is dropped by the overflow policy
+     */
+    @Nullable
+    protected final byte[] claimInputReport(final boolean mayCoalesce) {
+        return pipeline.claimInputReport(mayBlock(), mayCoalesce);
+    }
+
+    /**
+     * Check if the caller may wait for a slot, blocking the main thread risks an ANR
+     *
+     * @return true if not on the main thread
+     */
+    private static boolean mayBlock() {
+        return Looper.myLooper() != Looper.getMainLooper();
+    }
+
+    /**
+     * Queues the Input Report claimed by {@link #claimInputReport()}
+     *
+     * @param length the report length, 0 to cancel
+     */
+    protected final void commitInputReport(final int length) {
+        commitInputReport(0, length);
+    }
+
+    /**
+     * Queues the Input Report claimed by {@link #claimInputReport()} with the Report ID
+     *
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param length the report length, 0 to cancel
+     */
+    protected final void commitInputReport(final int reportId, final int length) {
+        pipeline.commitInputReport(reportId, length);
+    }
+
+    /**
+     * Set the source of Input Reports generated on the GATT thread as the queue frees up, replacing the current one
+     *
+     * @param source the source, null to remove
+     */
+    protected final void setInputReportSource(@Nullable final HidPipeline.InputReportSource source) {
+        pipeline.setInputReportSource(source);
+    }
+
+    /**
+     * Obtains the source of Input Reports
+     *
+     * @return the source, null if not set, finished, or removed by closing
+     */
+    @Nullable
+    protected final HidPipeline.InputReportSource getInputReportSource() {
+        return pipeline.getInputReportSource();
+    }
+
+    /**
+     * Claims the newest queued Input Report to merge new data into it, the slot keeps the queued contents.<br />
+     * When a slot is returned, {@link #commitInputReport(int)} must be called on the same thread: the length to update the report, or 0 to leave it unchanged.
+     *
+     * @return the slot, null if no reports are waiting to be sent
+     */
+    @Nullable
+    protected final byte[] claimNewestInputReport() {
+        return pipeline.claimNewestInputReport();
+    }
+
+    /**
+     * Claims the newest queued Input Report with the Report ID to merge new data into it, the slot keeps the queued contents.<br />
+     * When a slot is returned, {@link #commitInputReport(int, int)} must be called on the same thread: the length to update the report, or 0 to leave it unchanged.
+     *
+     * @param reportId the Report ID
+     * @return the slot, null if no reports are waiting to be sent, or the newest one has another Report ID
+     */
+    @Nullable
+    protected final byte[] claimNewestInputReport(final int reportId) {
+        return pipeline.claimNewestInputReport(reportId);
+    }
+
+    /**
+     * Obtains the number of Input Reports merged into the queued report
+     *
+     * @return the number of reports
+     */
+    public final long getCoalescedInputReportCount() {
+        return pipeline.getCoalescedInputReportCount();
+    }
+
+    /**
+     * Overwrites the latest Input Report state, instead of queueing a report.<br />
+     * The state is sent after the queued reports, only if it differs from the last notified state.
+     * Intermediate states between two sendings are never sent.
+     *
+     * @param report the report data, copied into the state slot
+     * @param length the report length
+     * @throws IllegalArgumentException if the length is larger than the max Input Report size
+     */
+    protected final void setInputReportState(@NonNull final byte[] report, final int length) throws IllegalArgumentException {
+        setInputReportState(0, report, length);
+    }
+
+    /**
+     * Overwrites the latest Input Report state with the Report ID, instead of queueing a report.<br />
+     * When the state of another Report ID is still waiting to be sent, it is queued first.
+     *
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param report the report data, copied into the state slot
+     * @param length the report length
+     * @throws IllegalArgumentException if the length is larger than the max Input Report size
+     */
+    protected final void setInputReportState(final int reportId, @NonNull final byte[] report, final int length) throws IllegalArgumentException {
+        pipeline.setInputReportState(reportId, report, length);
     }
 
+    /**
+     * Queues the latest Input Report state if it is waiting to be sent, so that the next state is sent after it instead of replacing it
+     *
+     * @return true if queued or no state is waiting, false if the queue has dropped it
+     */
+    protected final boolean flushInputReportState() {
+        return pipeline.flushInputReportState();
+    }
+
+    /**
+     * Set the policy applied when an Input Report is queued while the queue is full<br />
+     * The default {@link ReportRingBuffer#OVERFLOW_BLOCK} makes a background sender wait for a slot,
+     * the main thread and the GATT thread never wait: their new report is dropped and counted by {@link #getDroppedInputReportCount()}.
+     *
+     * @param policy {@link ReportRingBuffer#OVERFLOW_BLOCK}, {@link ReportRingBuffer#OVERFLOW_DROP_OLDEST}, {@link ReportRingBuffer#OVERFLOW_DROP_NEWEST} or {@link ReportRingBuffer#OVERFLOW_COALESCE}
+     * @throws IllegalArgumentException if the policy is unknown
+     */
+    public final void setInputReportOverflowPolicy(final int policy) throws IllegalArgumentException {
+        pipeline.setInputReportOverflowPolicy(policy);
+    }
+
+    /**
+     * Obtains the policy applied when an Input Report is queued while the queue is full
+     *
+     * @return the policy
+     */
+    public final int getInputReportOverflowPolicy() {
+        return pipeline.getInputReportOverflowPolicy();
+    }
+
+    /**
+     * Obtains the number of Input Reports discarded by the overflow policy, or because no device could receive them
+     *
+     * @return the number of reports
+     */
+    public final long getDroppedInputReportCount() {
+        return pipeline.getDroppedInputReportCount();
+    }
+
+
     /**
      * HID Output Report
      *
@@ -184,17 +438,30 @@ public abstract class HidPeripheral {
 
     private static final byte[] EMPTY_BYTES = {};
     private static final byte[] RESPONSE_HID_INFORMATION = {0x11, 0x01, 0x00, 0x03};
+    private static final byte[] RESPONSE_HID_CONTROL_POINT = {0};
+    private static final byte[] RESPONSE_BATTERY_LEVEL = {0x64}; // always 100%
 
     /**
      * Instances for the peripheral
      */
     private final Context applicationContext;
-    private final Handler handler;
+    private final BluetoothManager bluetoothManager;
+    @Nullable
+    private final Looper gattLooper;
+    private final boolean needInputReport;
+    private final boolean needOutputReport;
+    private final boolean needFeatureReport;
+    private final Object lifecycleLock = new Object();
+    @Nullable
+    private volatile Handler handler;
+    @Nullable
+    private HandlerThread gattThread;
     private final BluetoothLeAdvertiser bluetoothLeAdvertiser;
-    private BluetoothGattCharacteristic inputReportCharacteristic;
     @Nullable
-    private BluetoothGattServer gattServer;
-    private final Map<String, BluetoothDevice> bluetoothDevicesMap = new HashMap<>();
+    private volatile BluetoothGattServer gattServer;
+    // incremented on each open after closed, guarded by lifecycleLock
+    private int openCount;
+    private final Set<BroadcastReceiver> bondStateReceivers = new HashSet<>();
 
     /**
      * Constructor<br />
@@ -208,10 +475,62 @@ public abstract class HidPeripheral {
      * @throws UnsupportedOperationException if starting Bluetooth LE Peripheral failed
      */
     protected HidPeripheral(final Context context, final boolean needInputReport, final boolean needOutputReport, final boolean needFeatureReport, final int dataSendingRate) throws UnsupportedOperationException {
+        this(context, needInputReport, needOutputReport, needFeatureReport, dataSendingRate, context.getApplicationContext().getMainLooper());
+    }
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the ApplicationContext
+     * @param needInputReport true: serves 'Input Report' BLE characteristic
+     * @param needOutputReport true: serves 'Output Report' BLE characteristic
+     * @param needFeatureReport true: serves 'Feature Report' BLE characteristic
+     * @param dataSendingRate sending rate in milliseconds
+     * @param gattLooper the Looper to run GATT server works, null: runs on a dedicated high priority thread
+     * @throws UnsupportedOperationException if starting Bluetooth LE Peripheral failed
+     */
+    protected HidPeripheral(final Context context, final boolean needInputReport, final boolean needOutputReport, final boolean needFeatureReport, final int dataSendingRate, @Nullable final Looper gattLooper) throws UnsupportedOperationException {
+        this(context, needInputReport, needOutputReport, needFeatureReport, dataSendingRate, DEFAULT_INPUT_REPORT_QUEUE_CAPACITY, DEFAULT_MAX_INPUT_REPORT_SIZE, gattLooper);
+    }
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the ApplicationContext
+     * @param needInputReport true: serves 'Input Report' BLE characteristic
+     * @param needOutputReport true: serves 'Output Report' BLE characteristic
+     * @param needFeatureReport true: serves 'Feature Report' BLE characteristic
+     * @param dataSendingRate sending rate in milliseconds
+     * @param inputReportQueueCapacity the number of Input Reports can be queued
+     * @param maxInputReportSize the max size of an Input Report in bytes, up to {@link #MAX_REPORT_SIZE}. Reports larger than 20 bytes need the central to negotiate a larger MTU.
+     * @param gattLooper the Looper to run GATT server works, null: runs on a dedicated high priority thread
+     * @throws UnsupportedOperationException if starting Bluetooth LE Peripheral failed
+     * @throws IllegalArgumentException if maxInputReportSize is out of range, or the Report Map is malformed
+     */
+    protected HidPeripheral(final Context context, final boolean needInputReport, final boolean needOutputReport, final boolean needFeatureReport, final int dataSendingRate, final int inputReportQueueCapacity, final int maxInputReportSize, @Nullable final Looper gattLooper) throws UnsupportedOperationException, IllegalArgumentException {
+        pipeline = new HidPipeline(ReportMapParser.parse(getReportMap()), getInputReportIds(), inputReportQueueCapacity, maxInputReportSize, dataSendingRate, transport);
+        pipeline.setOutputReportListener(new HidPipeline.OutputReportListener() {
+            @Override
+            public void onOutputReport(@NonNull final byte[] outputReport) {
+                HidPeripheral.this.onOutputReport(outputReport);
+            }
+        });
         applicationContext = context.getApplicationContext();
-        handler = new Handler(applicationContext.getMainLooper());
 
-        final BluetoothManager bluetoothManager = (BluetoothManager) applicationContext.getSystemService(Context.BLUETOOTH_SERVICE);
+        pipeline.setReadResponse(BleUuidUtils.toShortValue(CHARACTERISTIC_HID_INFORMATION), RESPONSE_HID_INFORMATION);
+        pipeline.setReadResponse(BleUuidUtils.toShortValue(CHARACTERISTIC_HID_CONTROL_POINT), RESPONSE_HID_CONTROL_POINT);
+        pipeline.setReadResponse(BleUuidUtils.toShortValue(CHARACTERISTIC_MANUFACTURER_NAME), manufacturer.getBytes(StandardCharsets.UTF_8));
+        pipeline.setReadResponse(BleUuidUtils.toShortValue(CHARACTERISTIC_SERIAL_NUMBER), serialNumber.getBytes(StandardCharsets.UTF_8));
+        pipeline.setReadResponse(BleUuidUtils.toShortValue(CHARACTERISTIC_MODEL_NUMBER), deviceName.getBytes(StandardCharsets.UTF_8));
+        pipeline.setReadResponse(BleUuidUtils.toShortValue(CHARACTERISTIC_BATTERY_LEVEL), RESPONSE_BATTERY_LEVEL);
+        this.gattLooper = gattLooper;
+        this.needInputReport = needInputReport;
+        this.needOutputReport = needOutputReport;
+        this.needFeatureReport = needFeatureReport;
+
+        bluetoothManager = (BluetoothManager) applicationContext.getSystemService(Context.BLUETOOTH_SERVICE);
 
         final BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
         if (bluetoothAdapter == null) {
@@ -233,43 +552,450 @@ public abstract class HidPeripheral {
             throw new UnsupportedOperationException("Bluetooth LE Advertising not supported on this device.");
         }
 
-        gattServer = bluetoothManager.openGattServer(applicationContext, gattServerCallback);
+        open();
         if (gattServer == null) {
+            close();
             throw new UnsupportedOperationException("gattServer is null, check Bluetooth is ON.");
         }
+    }
 
-        // setup services
-        addService(setUpHidService(needInputReport, needOutputReport, needFeatureReport));
-        addService(setUpDeviceInformationService());
-        addService(setUpBatteryService());
-        
-        // send report each dataSendingRate, if data available
-        new Timer().scheduleAtFixedRate(new TimerTask() {
+    /**
+     * Starts the GATT thread, the GATT server and the sender, if they are not running.
+     */
+    private void open() {
+        synchronized (lifecycleLock) {
+            if (handler == null) {
+                openCount++;
+                if (gattLooper == null) {
+                    gattThread = new HandlerThread(TAG + "-GATT", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+                    gattThread.start();
+                    handler = new Handler(gattThread.getLooper());
+                } else {
+                    handler = new Handler(gattLooper);
+                }
+            }
+
+            openGattServer();
+
+            if (!pipeline.isStarted()) {
+                // send reports each dataSendingRate, if data available
+                pipeline.start(new HandlerScheduler(handler));
+            }
+        }
+    }
+
+    /**
+     * Opens the GATT server and sets up the services, if the server is not opened.
+     */
+    private void openGattServer() {
+        synchronized (lifecycleLock) {
+            if (gattServer != null) {
+                return;
+            }
+
+            final BluetoothGattServer server = bluetoothManager.openGattServer(applicationContext, gattServerCallback);
+            if (server == null) {
+                Log.d(TAG, "gattServer is null, check Bluetooth is ON.");
+                return;
+            }
+            gattServer = server;
+            transport.setGattServer(server);
+
+            // setup services
+            addService(setUpHidService(needInputReport, needOutputReport, needFeatureReport));
+            addService(setUpDeviceInformationService());
+            addService(setUpBatteryService());
+        }
+    }
+
+    /**
+     * Discard queued Input Reports on {@link #close()}
+     */
+    public static final int CLOSE_POLICY_DISCARD = HidPipeline.CLOSE_POLICY_DISCARD;
+    /**
+     * Send queued Input Reports as far as the link accepts, before closing the connection on {@link #close()}
+     */
+    public static final int CLOSE_POLICY_DRAIN = HidPipeline.CLOSE_POLICY_DRAIN;
+
+    /**
+     * Set the policy for the queued Input Reports on {@link #close()}
+     *
+     * @param policy {@link #CLOSE_POLICY_DISCARD} or {@link #CLOSE_POLICY_DRAIN}
+     * @throws IllegalArgumentException if the policy is unknown
+     */
+    public final void setClosePolicy(final int policy) throws IllegalArgumentException {
+        pipeline.setClosePolicy(policy);
+    }
+
+    /**
+     * Obtains the policy for the queued Input Reports on {@link #close()}
+     *
+     * @return the policy
+     */
+    public final int getClosePolicy() {
+        return pipeline.getClosePolicy();
+    }
+
+    /**
+     * Stops advertising, disconnects all devices, and releases the sender, the GATT server, the bond state receivers and the dedicated GATT thread.<br />
+     * The queued Input Reports are drained or discarded by the close policy.
+     * Calling {@link #startAdvertising()} afterwards restarts the peripheral, even before the closing has finished on the GATT thread.
+     */
+    @Override
+    public final void close() {
+        final HandlerThread closingThread;
+        final BluetoothGattServer closingServer;
+        final int closingOpenCount;
+        final String[] closingDeviceAddresses = pipeline.getConnectedDeviceAddresses();
+        synchronized (lifecycleLock) {
+            if (handler == null) {
+                // already closed
+                return;
+            }
+
+            closingThread = gattThread;
+            closingServer = gattServer;
+            closingOpenCount = openCount;
+            handler = null;
+            gattThread = null;
+            gattServer = null;
+        }
+
+        synchronized (bondStateReceivers) {
+            for (final BroadcastReceiver receiver : bondStateReceivers) {
+                try {
+                    applicationContext.unregisterReceiver(receiver);
+                } catch (final IllegalArgumentException ignored) {
+                    // already unregistered
+                }
+            }
+            bondStateReceivers.clear();
+        }
+
+        // runs on the GATT thread, after the queued reports are drained by the close policy
+        pipeline.close(new Runnable() {
             @Override
             public void run() {
-                final byte[] polled = inputReportQueue.poll();
-                if (polled != null && inputReportCharacteristic != null) {
-                    inputReportCharacteristic.setValue(polled);
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            final Set<BluetoothDevice> devices = getDevices();
-                            for (final BluetoothDevice device : devices) {
-                                try {
-                                    if (gattServer != null) {
-                                        gattServer.notifyCharacteristicChanged(device, inputReportCharacteristic, false);
-                                    }
-                                } catch (final Throwable ignored) {
+                final boolean reopened;
+                synchronized (lifecycleLock) {
+                    reopened = openCount != closingOpenCount;
+                }
 
-                                }
-                            }
+                if (closingServer != null) {
+                    if (!reopened) {
+                        // otherwise, the advertising has been started again by the new session
+                        try {
+                            bluetoothLeAdvertiser.stopAdvertising(advertiseCallback);
+                        } catch (final IllegalStateException ignored) {
+                            // BT Adapter is not turned ON
                         }
-                    });
+                    }
+                    try {
+                        cancelConnections(closingServer, closingDeviceAddresses);
+                        closingServer.close();
+                    } catch (final IllegalStateException ignored) {
+                        // BT Adapter is not turned ON
+                    }
+                    transport.clearGattServer(closingServer);
                 }
+
+                if (closingThread != null) {
+                    closingThread.quitSafely();
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancels the connections of the devices connected to the server
+     *
+     * @param server the GATT server
+     * @param deviceAddresses the addresses of the devices connected when the server was closed
+     */
+    private void cancelConnections(@NonNull final BluetoothGattServer server, @NonNull final String[] deviceAddresses) {
+        for (final String deviceAddress : deviceAddresses) {
+            final BluetoothDevice device = transport.getDevice(deviceAddress);
+            if (device != null) {
+                server.cancelConnection(device);
             }
-        }, 0, dataSendingRate);
+            pipeline.onDisconnected(deviceAddress);
+        }
+    }
+
+    /**
+     * Posts the task to the GATT thread, if the peripheral is not closed.
+     *
+     * @param task the task
+     */
+    private void post(@NonNull final Runnable task) {
+        final Handler gattHandler = handler;
+        if (gattHandler != null) {
+            gattHandler.post(task);
+        }
+    }
+
+    /**
+     * Sends queued reports on each tick of the fixed rate timer
+     */
+    public static final int SEND_MODE_TIMER = HidPipeline.SEND_MODE_TIMER;
+    /**
+     * Sends a report as soon as it is queued, if the link is idle.<br />
+     * Reports queued back to back are paced by the sending rate.
+     */
+    public static final int SEND_MODE_EVENT = HidPipeline.SEND_MODE_EVENT;
+
+    /**
+     * Set the Input Report sending mode
+     *
+     * @param newSendMode {@link #SEND_MODE_TIMER} or {@link #SEND_MODE_EVENT}
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    public final void setSendMode(final int newSendMode) throws IllegalArgumentException {
+        pipeline.setSendMode(newSendMode);
+    }
+
+    /**
+     * Obtains the Input Report sending mode
+     *
+     * @return {@link #SEND_MODE_TIMER} or {@link #SEND_MODE_EVENT}
+     */
+    public final int getSendMode() {
+        return pipeline.getSendMode();
+    }
+
+    /**
+     * Obtains the latency histogram from queueing an Input Report to notifying it, recorded while the specified mode is active.
+     *
+     * @param mode {@link #SEND_MODE_TIMER} or {@link #SEND_MODE_EVENT}
+     * @return the histogram
+     */
+    @NonNull
+    public final LatencyHistogram getInputReportLatencyHistogram(final int mode) {
+        return pipeline.getInputReportLatencyHistogram(mode);
+    }
+
+    /**
+     * Obtains the histogram of the delay from the time a sending is due to the time the GATT thread starts notifying.<br />
+     * When the GATT server runs on a busy Looper (such as the main Looper), this jitter grows with its load.
+     *
+     * @return the histogram
+     */
+    @NonNull
+    public final LatencyHistogram getSendDispatchJitterHistogram() {
+        return pipeline.getSendDispatchJitterHistogram();
+    }
+
+    /**
+     * Set the number of notifications which may be outstanding for each device, until onNotificationSent is called.<br />
+     * While the window is full, reports stay queued and are sent as soon as the device frees the window.
+     *
+     * @param window the number of notifications, must be positive
+     * @throws IllegalArgumentException if window is not positive
+     */
+    public final void setNotificationWindow(final int window) throws IllegalArgumentException {
+        pipeline.setNotificationWindow(window);
+    }
+
+    /**
+     * Obtains the number of notifications which may be outstanding for each device
+     *
+     * @return the number of notifications
+     */
+    public final int getNotificationWindow() {
+        return pipeline.getNotificationWindow();
+    }
+
+    /**
+     * Obtains the number of notifications refused because the link was busy. The refused reports have been retried.
+     *
+     * @return the number of notifications
+     */
+    public final long getNotificationBusyCount() {
+        return pipeline.getNotificationBusyCount();
+    }
+
+    /**
+     * Obtains the number of notifications failed with an exception or a failure status on onNotificationSent
+     *
+     * @return the number of notifications
+     */
+    public final long getNotificationFailureCount() {
+        return pipeline.getNotificationFailureCount();
+    }
+
+    /**
+     * Obtains the number of times an Input Report was skipped for a device, because the report is larger than the device's MTU allows
+     *
+     * @return the number of reports
+     */
+    public final long getOversizedInputReportCount() {
+        return pipeline.getOversizedInputReportCount();
+    }
+
+    /**
+     * Obtains the max size of an Input Report
+     *
+     * @return the size in bytes
+     */
+    public final int getMaxInputReportSize() {
+        return pipeline.getMaxInputReportSize();
+    }
+
+    /**
+     * Obtains the ATT MTU negotiated with the device
+     *
+     * @param device the device
+     * @return the MTU, 23 if not negotiated
+     */
+    public final int getMtu(@NonNull final BluetoothDevice device) {
+        return pipeline.getMtu(device.getAddress());
+    }
+
+    /**
+     * Obtains the largest report size which can be notified to all connected devices
+     *
+     * @return the size in bytes, limited by the smallest MTU of the connected devices
+     */
+    public final int getNotifiableReportSize() {
+        return pipeline.getNotifiableReportSize();
+    }
+
+    /**
+     * Obtains the number of times the Report Map has been read from the start
+     *
+     * @return the number of reads
+     */
+    public final long getReportMapReadCount() {
+        return pipeline.getReportMapReadCount();
+    }
+
+    /**
+     * Obtains the number of Report Map bytes served to all devices
+     *
+     * @return the number of bytes
+     */
+    public final long getReportMapBytesServedCount() {
+        return pipeline.getReportMapBytesServedCount();
+    }
+
+    /**
+     * Obtains the number of Report Map bytes served to the device in the current connection, counted while the device is connected
+     *
+     * @param device the device
+     * @return the number of bytes
+     */
+    public final long getReportMapBytesServed(@NonNull final BluetoothDevice device) {
+        return pipeline.getReportMapBytesServed(device.getAddress());
+    }
+
+    /**
+     * Obtains the number of Report Map read requests saved by the negotiated MTU, compared to the default MTU
+     *
+     * @return the number of read requests
+     */
+    public final long getSavedRoundTripCount() {
+        return pipeline.getSavedRoundTripCount();
+    }
+
+    /**
+     * Set the tracer to record the GATT events into
+     *
+     * @param tracer the tracer, null to disable tracing
+     */
+    public final void setTracer(@Nullable final HidTracer tracer) {
+        pipeline.setTracer(tracer);
+    }
+
+    /**
+     * Obtains the tracer
+     *
+     * @return the tracer, null if tracing is disabled
+     */
+    @Nullable
+    public final HidTracer getTracer() {
+        return pipeline.getTracer();
+    }
+
+    /**
+     * Obtains the number of Input Reports queued
+     *
+     * @return the number of reports
+     */
+    public final long getEnqueuedInputReportCount() {
+        return pipeline.getEnqueuedInputReportCount();
+    }
+
+    /**
+     * Obtains the number of notifications failed for the device in the current connection
+     *
+     * @param device the device
+     * @return the number of notifications, 0 if the device is not connected
+     */
+    public final long getNotificationFailureCount(@NonNull final BluetoothDevice device) {
+        return pipeline.getNotificationFailureCount(device.getAddress());
+    }
+
+    /**
+     * Takes a snapshot of the Input Report pipeline metrics.<br />
+     * The counters are recorded without allocation, only taking the snapshot allocates.
+     *
+     * @return the snapshot
+     */
+    @NonNull
+    public final HidMetrics getMetrics() {
+        return pipeline.getMetrics();
     }
 
+    /**
+     * Set the listener to report the metrics periodically, while the peripheral is open
+     *
+     * @param listener the listener, null to stop reporting
+     * @param intervalMillis the interval in milliseconds
+     * @throws IllegalArgumentException if intervalMillis is not positive
+     */
+    public final void setMetricsListener(@Nullable final HidMetrics.Listener listener, final long intervalMillis) throws IllegalArgumentException {
+        pipeline.setMetricsListener(listener, intervalMillis);
+    }
+
+    /**
+     * Set the maximum number of Input Reports sent on each sending tick.<br />
+     * The default value is 1. Larger value drains the queue faster, if the connection interval is shorter than the sending rate.
+     *
+     * @param maxReportsPerTick the number of reports, must be positive
+     * @throws IllegalArgumentException if maxReportsPerTick is not positive
+     */
+    public final void setMaxInputReportsPerTick(final int maxReportsPerTick) throws IllegalArgumentException {
+        pipeline.setMaxInputReportsPerTick(maxReportsPerTick);
+    }
+
+    /**
+     * Obtains the maximum number of Input Reports sent on each sending tick.
+     *
+     * @return the number of reports
+     */
+    public final int getMaxInputReportsPerTick() {
+        return pipeline.getMaxInputReportsPerTick();
+    }
+
+    /**
+     * Obtains the number of Input Reports sent since the instance has been created.
+     *
+     * @return the number of reports
+     */
+    public final long getSentInputReportCount() {
+        return pipeline.getSentInputReportCount();
+    }
+
+    /**
+     * Obtains the achieved Input Report throughput, measured over the last second.
+     *
+     * @return reports per second
+     */
+    public final float getInputReportThroughput() {
+        return pipeline.getInputReportThroughput();
+    }
+
+
     /**
      * Add GATT service to gattServer
      *
@@ -336,6 +1062,26 @@ public abstract class HidPeripheral {
         return service;
     }
 
+    /**
+     * Setup Report Reference descriptor
+     *
+     * @param reportId the Report ID, 0 if the Report Map has no Report ID
+     * @param reportType the report type
+     * @return the descriptor
+     * @throws IllegalArgumentException if the Report ID is out of range
+     */
+    private static BluetoothGattDescriptor setUpReportReferenceDescriptor(final int reportId, final byte reportType) throws IllegalArgumentException {
+        if (reportId < 0 || reportId >= REPORT_ID_COUNT) {
+            throw new IllegalArgumentException("Invalid Report ID: " + reportId);
+        }
+
+        final BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(
+                DESCRIPTOR_REPORT_REFERENCE,
+                BluetoothGattDescriptor.PERMISSION_READ_ENCRYPTED | BluetoothGattDescriptor.PERMISSION_WRITE_ENCRYPTED);
+        descriptor.setValue(new byte[] {(byte) reportId, reportType});
+        return descriptor;
+    }
+
     /**
      * Setup HID Service
      *
@@ -391,24 +1137,23 @@ public abstract class HidPeripheral {
 
         // Input Report
         if (isNeedInputReport) {
-            final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
-                    CHARACTERISTIC_REPORT,
-                    BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
-                    BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED | BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED);
-
-            final BluetoothGattDescriptor clientCharacteristicConfigurationDescriptor = new BluetoothGattDescriptor(
-                    DESCRIPTOR_CLIENT_CHARACTERISTIC_CONFIGURATION,
-                    BluetoothGattDescriptor.PERMISSION_READ_ENCRYPTED | BluetoothGattDescriptor.PERMISSION_WRITE_ENCRYPTED); //  | BluetoothGattDescriptor.PERMISSION_WRITE
-            clientCharacteristicConfigurationDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            characteristic.addDescriptor(clientCharacteristicConfigurationDescriptor);
-
-            final BluetoothGattDescriptor reportReferenceDescriptor = new BluetoothGattDescriptor(
-                    DESCRIPTOR_REPORT_REFERENCE,
-                    BluetoothGattDescriptor.PERMISSION_READ_ENCRYPTED | BluetoothGattDescriptor.PERMISSION_WRITE_ENCRYPTED);
-            characteristic.addDescriptor(reportReferenceDescriptor);
-
-            while (!service.addCharacteristic(characteristic));
-            inputReportCharacteristic = characteristic;
+            for (final int reportId : getInputReportIds()) {
+                final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                        CHARACTERISTIC_REPORT,
+                        BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
+                        BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED | BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED);
+
+                final BluetoothGattDescriptor clientCharacteristicConfigurationDescriptor = new BluetoothGattDescriptor(
+                        DESCRIPTOR_CLIENT_CHARACTERISTIC_CONFIGURATION,
+                        BluetoothGattDescriptor.PERMISSION_READ_ENCRYPTED | BluetoothGattDescriptor.PERMISSION_WRITE_ENCRYPTED); //  | BluetoothGattDescriptor.PERMISSION_WRITE
+                clientCharacteristicConfigurationDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                characteristic.addDescriptor(clientCharacteristicConfigurationDescriptor);
+
+                characteristic.addDescriptor(setUpReportReferenceDescriptor(reportId, REPORT_TYPE_INPUT));
+
+                while (!service.addCharacteristic(characteristic));
+                transport.setInputReportCharacteristic(reportId, characteristic);
+            }
         }
 
         // Output Report
@@ -419,10 +1164,7 @@ public abstract class HidPeripheral {
                     BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED | BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED);
             characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
 
-            final BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(
-                    DESCRIPTOR_REPORT_REFERENCE,
-                    BluetoothGattDescriptor.PERMISSION_READ_ENCRYPTED | BluetoothGattDescriptor.PERMISSION_WRITE_ENCRYPTED);
-            characteristic.addDescriptor(descriptor);
+            characteristic.addDescriptor(setUpReportReferenceDescriptor(getOutputReportId(), REPORT_TYPE_OUTPUT));
 
             while (!service.addCharacteristic(characteristic));
         }
@@ -434,10 +1176,7 @@ public abstract class HidPeripheral {
                     BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
                     BluetoothGattCharacteristic.PERMISSION_READ_ENCRYPTED | BluetoothGattCharacteristic.PERMISSION_WRITE_ENCRYPTED);
 
-            final BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(
-                    DESCRIPTOR_REPORT_REFERENCE,
-                    BluetoothGattDescriptor.PERMISSION_READ_ENCRYPTED | BluetoothGattDescriptor.PERMISSION_WRITE_ENCRYPTED);
-            characteristic.addDescriptor(descriptor);
+            characteristic.addDescriptor(setUpReportReferenceDescriptor(getFeatureReportId(), REPORT_TYPE_FEATURE));
 
             while (!service.addCharacteristic(characteristic));
         }
@@ -449,9 +1188,13 @@ public abstract class HidPeripheral {
      * Starts advertising
      */
     public final void startAdvertising() {
-        handler.post(new Runnable() {
+        open();
+        post(new Runnable() {
             @Override
             public void run() {
+                // the GATT server may be closed by stopAdvertising
+                openGattServer();
+
                 // set up advertising setting
                 final AdvertiseSettings advertiseSettings = new AdvertiseSettings.Builder()
                         .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
@@ -486,7 +1229,7 @@ public abstract class HidPeripheral {
      * Stops advertising
      */
     public final void stopAdvertising() {
-        handler.post(new Runnable() {
+        post(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -495,14 +1238,13 @@ public abstract class HidPeripheral {
                     // BT Adapter is not turned ON
                 }
                 try {
-                    if (gattServer != null) {
-                        final Set<BluetoothDevice> devices = getDevices();
-                        for (final BluetoothDevice device : devices) {
-                            gattServer.cancelConnection(device);
-                        }
+                    final BluetoothGattServer server = gattServer;
+                    if (server != null) {
+                        cancelConnections(server, pipeline.getConnectedDeviceAddresses());
 
-                        gattServer.close();
+                        server.close();
                         gattServer = null;
+                        transport.clearGattServer(server);
                     }
                 } catch (final IllegalStateException ignored) {
                     // BT Adapter is not turned ON
@@ -520,20 +1262,30 @@ public abstract class HidPeripheral {
     }
 
     /**
-     * Obtains connected Bluetooth devices
+     * Obtains the report type of the Report characteristic, from its Report Reference set up in setUpHidService
      *
-     * @return the connected Bluetooth devices
+     * @param characteristic the characteristic
+     * @return the report type, 0 if the characteristic is not a Report characteristic
      */
-    private Set<BluetoothDevice> getDevices() {
-        final Set<BluetoothDevice> deviceSet = new HashSet<>();
-        synchronized (bluetoothDevicesMap) {
-            deviceSet.addAll(bluetoothDevicesMap.values());
+    private static int getReportType(@NonNull final BluetoothGattCharacteristic characteristic) {
+        if (!BleUuidUtils.matches(CHARACTERISTIC_REPORT, characteristic.getUuid())) {
+            return 0;
+        }
+
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(DESCRIPTOR_REPORT_REFERENCE);
+        if (descriptor == null) {
+            return 0;
+        }
+        // Report ID and report type
+        final byte[] reportReference = descriptor.getValue();
+        if (reportReference == null || reportReference.length < 2) {
+            return 0;
         }
-        return Collections.unmodifiableSet(deviceSet);
+        return reportReference[1] & 0xff;
     }
 
     /**
-     * Callback for BLE data transfer
+     * Callback for BLE data transfer, the pipeline events are forwarded to {@link HidPipeline}
      */
     private final BluetoothGattServerCallback gattServerCallback = new BluetoothGattServerCallback() {
 
@@ -541,13 +1293,17 @@ public abstract class HidPeripheral {
         public void onConnectionStateChange(final BluetoothDevice device, final int status, final int newState) {
             super.onConnectionStateChange(device, status, newState);
             Log.d(TAG, "onConnectionStateChange status: " + status + ", newState: " + newState);
+            final HidTracer currentTracer = pipeline.getTracer();
 
             switch (newState) {
                 case BluetoothProfile.STATE_CONNECTED:
                     // check bond status
                     Log.d(TAG, "BluetoothProfile.STATE_CONNECTED bondState: " + device.getBondState());
+                    if (currentTracer != null) {
+                        currentTracer.record(HidTracer.EVENT_CONNECT, status, device.getBondState());
+                    }
                     if (device.getBondState() == BluetoothDevice.BOND_NONE) {
-                        applicationContext.registerReceiver(new BroadcastReceiver() {
+                        final BroadcastReceiver bondStateReceiver = new BroadcastReceiver() {
                             @Override
                             public void onReceive(final Context context, final Intent intent) {
                                 final String action = intent.getAction();
@@ -555,14 +1311,21 @@ public abstract class HidPeripheral {
 
                                 if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
                                     final int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
+                                    final HidTracer bondTracer = pipeline.getTracer();
+                                    if (bondTracer != null) {
+                                        bondTracer.record(HidTracer.EVENT_BOND, state, 0);
+                                    }
 
                                     if (state == BluetoothDevice.BOND_BONDED) {
                                         final BluetoothDevice bondedDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
                                         // successfully bonded
                                         context.unregisterReceiver(this);
+                                        synchronized (bondStateReceivers) {
+                                            bondStateReceivers.remove(this);
+                                        }
 
-                                        handler.post(new Runnable() {
+                                        post(new Runnable() {
                                             @Override
                                             public void run() {
                                                 if (gattServer != null) {
@@ -574,7 +1337,11 @@ public abstract class HidPeripheral {
                                     }
                                 }
                             }
-                        }, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+                        };
+                        synchronized (bondStateReceivers) {
+                            bondStateReceivers.add(bondStateReceiver);
+                        }
+                        applicationContext.registerReceiver(bondStateReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED), null, handler);
 
                         // create bond
                         try {
@@ -584,7 +1351,7 @@ public abstract class HidPeripheral {
                         }
                         device.createBond();
                     } else if (device.getBondState() == BluetoothDevice.BOND_BONDED) {
-                        handler.post(new Runnable() {
+                        post(new Runnable() {
                             @Override
                             public void run() {
                                 if (gattServer != null) {
@@ -592,17 +1359,19 @@ public abstract class HidPeripheral {
                                 }
                             }
                         });
-                        synchronized (bluetoothDevicesMap) {
-                            bluetoothDevicesMap.put(device.getAddress(), device);
-                        }
+                        transport.putDevice(device);
+                        pipeline.onConnected(device.getAddress());
                     }
                     break;
 
                 case BluetoothProfile.STATE_DISCONNECTED:
                     final String deviceAddress = device.getAddress();
+                    if (currentTracer != null) {
+                        currentTracer.record(HidTracer.EVENT_DISCONNECT, status, 0);
+                    }
 
                     // try reconnect immediately
-                    handler.post(new Runnable() {
+                    post(new Runnable() {
                         @Override
                         public void run() {
                             if (gattServer != null) {
@@ -611,10 +1380,9 @@ public abstract class HidPeripheral {
                             }
                         }
                     });
-                    
-                    synchronized (bluetoothDevicesMap) {
-                        bluetoothDevicesMap.remove(deviceAddress);
-                    }
+
+                    pipeline.onDisconnected(deviceAddress);
+                    transport.removeDevice(deviceAddress);
                     break;
 
                 default:
@@ -626,76 +1394,46 @@ public abstract class HidPeripheral {
         @Override
         public void onCharacteristicReadRequest(final BluetoothDevice device, final int requestId, final int offset, final BluetoothGattCharacteristic characteristic) {
             super.onCharacteristicReadRequest(device, requestId, offset, characteristic);
-            if (gattServer == null) {
+            final BluetoothGattServer server = gattServer;
+            if (server == null) {
                 return;
             }
-            Log.d(TAG, "onCharacteristicReadRequest characteristic: " + characteristic.getUuid() + ", offset: " + offset);
-
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
 
-                    final UUID characteristicUuid = characteristic.getUuid();
-                    if (BleUuidUtils.matches(CHARACTERISTIC_HID_INFORMATION, characteristicUuid)) {
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, RESPONSE_HID_INFORMATION);
-                    } else if (BleUuidUtils.matches(CHARACTERISTIC_REPORT_MAP, characteristicUuid)) {
-                        if (offset == 0) {
-                            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, getReportMap());
-                        } else {
-                            final int remainLength = getReportMap().length - offset;
-                            if (remainLength > 0) {
-                                final byte[] data = new byte[remainLength];
-                                System.arraycopy(getReportMap(), offset, data, 0, remainLength);
-                                gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, data);
-                            } else {
-                                gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, null);
-                            }
-                        }
-                    } else if (BleUuidUtils.matches(CHARACTERISTIC_HID_CONTROL_POINT, characteristicUuid)) {
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte []{0});
-                    } else if (BleUuidUtils.matches(CHARACTERISTIC_REPORT, characteristicUuid)) {
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, EMPTY_BYTES);
-                    } else if (BleUuidUtils.matches(CHARACTERISTIC_MANUFACTURER_NAME, characteristicUuid)) {
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, manufacturer.getBytes(StandardCharsets.UTF_8));
-                    } else if (BleUuidUtils.matches(CHARACTERISTIC_SERIAL_NUMBER, characteristicUuid)) {
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, serialNumber.getBytes(StandardCharsets.UTF_8));
-                    } else if (BleUuidUtils.matches(CHARACTERISTIC_MODEL_NUMBER, characteristicUuid)) {
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, deviceName.getBytes(StandardCharsets.UTF_8));
-                    } else if (BleUuidUtils.matches(CHARACTERISTIC_BATTERY_LEVEL, characteristicUuid)) {
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[] {0x64}); // always 100%
-                    } else {
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, characteristic.getValue());
-                    }
-                }
-            });
+            transport.putDevice(device);
+            if (!pipeline.onReadRequest(device.getAddress(), requestId, offset, BleUuidUtils.toShortValue(characteristic.getUuid()))) {
+                server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, characteristic.getValue());
+            }
         }
 
         @Override
         public void onDescriptorReadRequest(final BluetoothDevice device, final int requestId, final int offset, final BluetoothGattDescriptor descriptor) {
             super.onDescriptorReadRequest(device, requestId, offset, descriptor);
-            Log.d(TAG, "onDescriptorReadRequest requestId: " + requestId + ", offset: " + offset + ", descriptor: " + descriptor.getUuid());
+            final HidTracer currentTracer = pipeline.getTracer();
+            if (currentTracer != null) {
+                currentTracer.record(HidTracer.EVENT_DESCRIPTOR_READ, BleUuidUtils.toShortValue(descriptor.getUuid()), offset);
+            }
 
             if (gattServer == null) {
                 return;
             }
 
-            handler.post(new Runnable() {
+            post(new Runnable() {
                 @Override
                 public void run() {
-                    if (BleUuidUtils.matches(DESCRIPTOR_REPORT_REFERENCE, descriptor.getUuid())) {
-                        final int characteristicProperties = descriptor.getCharacteristic().getProperties();
-                        if (characteristicProperties == (BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY)) {
-                            // Input Report
-                            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[]{0, 1});
-                        } else if (characteristicProperties == (BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) {
-                            // Output Report
-                            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[]{0, 2});
-                        } else if (characteristicProperties == (BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE)) {
-                            // Feature Report
-                            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[]{0, 3});
-                        } else {
-                            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, EMPTY_BYTES);
-                        }
+                    final BluetoothGattServer server = gattServer;
+                    if (server == null) {
+                        // closed while posted
+                        return;
+                    }
+
+                    // every read is answered: the Report Reference (Report ID and report type), the Client Characteristic Configuration, or an error
+                    final byte[] value = descriptor.getValue();
+                    if (value == null) {
+                        server.sendResponse(device, requestId, BluetoothGatt.GATT_READ_NOT_PERMITTED, offset, EMPTY_BYTES);
+                    } else if (offset > value.length) {
+                        server.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, offset, EMPTY_BYTES);
+                    } else {
+                        server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, Arrays.copyOfRange(value, offset, value.length));
                     }
                 }
             });
@@ -704,32 +1442,21 @@ public abstract class HidPeripheral {
         @Override
         public void onCharacteristicWriteRequest(final BluetoothDevice device, final int requestId, final BluetoothGattCharacteristic characteristic, final boolean preparedWrite, final boolean responseNeeded, final int offset, final byte[] value) {
             super.onCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
-            Log.d(TAG, "onCharacteristicWriteRequest characteristic: " + characteristic.getUuid() + ", value: " + Arrays.toString(value));
-
             if (gattServer == null) {
                 return;
             }
 
-            if (responseNeeded) {
-                if (BleUuidUtils.matches(CHARACTERISTIC_REPORT, characteristic.getUuid())) {
-                    if (characteristic.getProperties() == (BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) {
-                        // Output Report
-                        onOutputReport(value);
-
-                        // send empty
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, EMPTY_BYTES);
-                    } else {
-                        // send empty
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, EMPTY_BYTES);
-                    }
-                }
-            }
+            transport.putDevice(device);
+            pipeline.onWriteRequest(device.getAddress(), requestId, BleUuidUtils.toShortValue(characteristic.getUuid()), getReportType(characteristic), responseNeeded, value == null ? EMPTY_BYTES : value);
         }
 
         @Override
         public void onDescriptorWriteRequest(final BluetoothDevice device, final int requestId, final BluetoothGattDescriptor descriptor, final boolean preparedWrite, final boolean responseNeeded, final int offset, final byte[] value) {
             super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
-            Log.d(TAG, "onDescriptorWriteRequest descriptor: " + descriptor.getUuid() + ", value: " + Arrays.toString(value) + ", responseNeeded: " + responseNeeded + ", preparedWrite: " + preparedWrite);
+            final HidTracer currentTracer = pipeline.getTracer();
+            if (currentTracer != null) {
+                currentTracer.record(HidTracer.EVENT_DESCRIPTOR_WRITE, BleUuidUtils.toShortValue(descriptor.getUuid()), value == null ? 0 : value.length);
+            }
 
             descriptor.setValue(value);
 
@@ -743,6 +1470,18 @@ public abstract class HidPeripheral {
             }
         }
 
+        @Override
+        public void onMtuChanged(final BluetoothDevice device, final int mtu) {
+            super.onMtuChanged(device, mtu);
+            pipeline.onMtuChanged(device.getAddress(), mtu);
+        }
+
+        @Override
+        public void onNotificationSent(final BluetoothDevice device, final int status) {
+            super.onNotificationSent(device, status);
+            pipeline.onNotificationSent(device.getAddress(), status);
+        }
+
         @Override
         public void onServiceAdded(final int status, final BluetoothGattService service) {
             super.onServiceAdded(status, service);
@@ -770,6 +1509,7 @@ public abstract class HidPeripheral {
         } else {
             manufacturer = newManufacturer;
         }
+        pipeline.setReadResponse(BleUuidUtils.toShortValue(CHARACTERISTIC_MANUFACTURER_NAME), manufacturer.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -788,6 +1528,7 @@ public abstract class HidPeripheral {
         } else {
             deviceName = newDeviceName;
         }
+        pipeline.setReadResponse(BleUuidUtils.toShortValue(CHARACTERISTIC_MODEL_NUMBER), deviceName.getBytes(StandardCharsets.UTF_8));
     }
 
     /**
@@ -806,5 +1547,6 @@ public abstract class HidPeripheral {
         } else {
             serialNumber = newSerialNumber;
         }
+        pipeline.setReadResponse(BleUuidUtils.toShortValue(CHARACTERISTIC_SERIAL_NUMBER), serialNumber.getBytes(StandardCharsets.UTF_8));
     }
 }
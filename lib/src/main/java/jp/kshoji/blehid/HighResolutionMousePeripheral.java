@@ -0,0 +1,81 @@
+package jp.kshoji.blehid;
+
+import android.content.Context;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapBuilder;
+
+/**
+ * BLE Mouse with 16-bit X and Y<br />
+ * A fast movement fits in fewer reports than {@link MousePeripheral}, which reports X and Y in -127 .. +127.
+ *
+ * @author K.Shoji
+ */
+public final class HighResolutionMousePeripheral extends RelativeMousePeripheral {
+    /**
+     * Characteristic Data(Report Map)
+     */
+    private static final ReportLayout REPORT_LAYOUT = new ReportMapBuilder()
+            .usagePage(0x01)                  // Generic Desktop
+            .usage(0x02)                      // Mouse
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .usage(0x01)                      //  Pointer
+            .collection(ReportMapBuilder.COLLECTION_PHYSICAL)
+            .usagePage(0x09)                  //   Buttons
+            .usageMinimum(0x01)
+            .usageMaximum(0x03)
+            .logicalMinimum(0)
+            .logicalMaximum(1)
+            .reportCount(3)                   //   3 bits (Buttons)
+            .reportSize(1)
+            .input(ReportField.FLAG_VARIABLE)
+            .reportCount(1)                   //   5 bits (Padding)
+            .reportSize(5)
+            .input(ReportField.FLAG_CONSTANT)
+            .usagePage(0x01)                  //   Generic Desktop
+            .usage(0x30)                      //   X
+            .usage(0x31)                      //   Y
+            .logicalMinimum(-32767)
+            .logicalMaximum(32767)
+            .reportSize(16)                   //   Two words
+            .reportCount(2)
+            .input(ReportField.FLAG_VARIABLE | ReportField.FLAG_RELATIVE)
+            .usage(0x38)                      //   Wheel
+            .logicalMinimum(-127)
+            .logicalMaximum(127)
+            .reportSize(8)                    //   One byte
+            .reportCount(1)
+            .input(ReportField.FLAG_VARIABLE | ReportField.FLAG_RELATIVE)
+            .endCollection()
+            .endCollection()
+            .build();
+
+    @Override
+    protected byte[] getReportMap() {
+        return REPORT_LAYOUT.getReportMap();
+    }
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the applicationContext
+     */
+    public HighResolutionMousePeripheral(final Context context) throws UnsupportedOperationException {
+        this(context, context.getApplicationContext().getMainLooper());
+    }
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the applicationContext
+     * @param gattLooper the Looper to run GATT server works, null: runs on a dedicated high priority thread
+     */
+    public HighResolutionMousePeripheral(final Context context, @Nullable final Looper gattLooper) throws UnsupportedOperationException {
+        super(context, gattLooper, REPORT_LAYOUT);
+    }
+}
@@ -1,6 +1,13 @@
 package jp.kshoji.blehid;
 
 import android.content.Context;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapBuilder;
+import jp.kshoji.blehid.util.ReportRingBuffer;
 
 /**
  * BLE Joystick
@@ -11,35 +18,41 @@ public class JoystickPeripheral extends HidPeripheral {
     /**
      * Characteristic Data(Report Map)
      */
-    private static final byte[] REPORT_MAP = {
-            USAGE_PAGE(1),      0x01,         // Generic Desktop
-            USAGE(1),           0x04,         // Joystick
-            COLLECTION(1),      0x01,         // Application
-            COLLECTION(1),      0x00,         //  Physical
-            USAGE_PAGE(1),      0x09,         //   Buttons
-            USAGE_MINIMUM(1),   0x01,
-            USAGE_MAXIMUM(1),   0x03,
-            LOGICAL_MINIMUM(1), 0x00,
-            LOGICAL_MAXIMUM(1), 0x01,
-            REPORT_COUNT(1),    0x03,         //   2 bits (Buttons)
-            REPORT_SIZE(1),     0x01,
-            INPUT(1),           0x02,         //   Data, Variable, Absolute
-            REPORT_COUNT(1),    0x01,         //   6 bits (Padding)
-            REPORT_SIZE(1),     0x05,
-            INPUT(1),           0x01,         //   Constant
-            USAGE_PAGE(1),      0x01,         //   Generic Desktop
-            USAGE(1),           0x30,         //   X
-            USAGE(1),           0x31,         //   Y
-            USAGE(1),           0x32,         //   Z
-            USAGE(1),           0x33,         //   Rx
-            LOGICAL_MINIMUM(1), (byte) 0x81,         //   -127
-            LOGICAL_MAXIMUM(1), 0x7f,         //   127
-            REPORT_SIZE(1),     0x08,         //   Three bytes
-            REPORT_COUNT(1),    0x04,
-            INPUT(1),           0x02,         //   Data, Variable, Absolute (unlike mouse)
-            END_COLLECTION(0),
-            END_COLLECTION(0),
-    };
+    private static final ReportLayout REPORT_LAYOUT = new ReportMapBuilder()
+            .usagePage(0x01)                  // Generic Desktop
+            .usage(0x04)                      // Joystick
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .collection(ReportMapBuilder.COLLECTION_PHYSICAL)
+            .usagePage(0x09)                  //   Buttons
+            .usageMinimum(0x01)
+            .usageMaximum(0x03)
+            .logicalMinimum(0)
+            .logicalMaximum(1)
+            .reportCount(3)                   //   3 bits (Buttons)
+            .reportSize(1)
+            .input(ReportField.FLAG_VARIABLE)
+            .reportCount(1)                   //   5 bits (Padding)
+            .reportSize(5)
+            .input(ReportField.FLAG_CONSTANT)
+            .usagePage(0x01)                  //   Generic Desktop
+            .usage(0x30)                      //   X
+            .usage(0x31)                      //   Y
+            .usage(0x32)                      //   Z
+            .usage(0x33)                      //   Rx
+            .logicalMinimum(-127)
+            .logicalMaximum(127)
+            .reportSize(8)                    //   Four bytes
+            .reportCount(4)
+            .input(ReportField.FLAG_VARIABLE) //   Data, Variable, Absolute (unlike mouse)
+            .endCollection()
+            .endCollection()
+            .build();
+
+    private static final ReportField BUTTONS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x09, 0x01);
+    private static final ReportField X = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x30);
+    private static final ReportField Y = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x31);
+    private static final ReportField Z = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x32);
+    private static final ReportField RX = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x33);
 
     /**
      * Constructor<br />
@@ -48,12 +61,65 @@ public class JoystickPeripheral extends HidPeripheral {
      * @param context the applicationContext
      */
     public JoystickPeripheral(final Context context) throws UnsupportedOperationException {
-        super(context.getApplicationContext(), true, false, false, 10);
+        this(context, context.getApplicationContext().getMainLooper());
+    }
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the applicationContext
+     * @param gattLooper the Looper to run GATT server works, null: runs on a dedicated high priority thread
+     */
+    public JoystickPeripheral(final Context context, @Nullable final Looper gattLooper) throws UnsupportedOperationException {
+        super(context.getApplicationContext(), true, false, false, 10, gattLooper);
+
+        // the latest joystick state supersedes the queued one
+        setInputReportOverflowPolicy(ReportRingBuffer.OVERFLOW_COALESCE);
+    }
+
+    private static final int REPORT_SIZE = REPORT_LAYOUT.getReportSize(ReportField.TYPE_INPUT, 0);
+    // the latest state, guarded by itself
+    private final byte[] stateReport = new byte[REPORT_SIZE];
+    private volatile boolean latestStateWins;
+
+    /**
+     * Set the 'latest wins' mode<br />
+     * The joystick state is kept in a single slot instead of being queued, and only the latest one is sent on each sending.
+     * A button change is never replaced: the previous state is queued before it, if not sent yet.
+     *
+     * @param enabled true: send the latest state only
+     */
+    public void setLatestStateWins(final boolean enabled) {
+        latestStateWins = enabled;
+    }
+
+    /**
+     * Check if the 'latest wins' mode is enabled
+     *
+     * @return true if enabled
+     */
+    public boolean isLatestStateWins() {
+        return latestStateWins;
     }
 
     @Override
     protected byte[] getReportMap() {
-        return REPORT_MAP;
+        return REPORT_LAYOUT.getReportMap();
+    }
+
+    /**
+     * Move the joystick pointer, Rx stays at the center
+     *
+     * @param dx delta X (-127 .. +127)
+     * @param dy delta Y (-127 .. +127)
+     * @param dz delta Z (-127 .. +127)
+     * @param leftButton true : button down
+     * @param rightButton true : button down
+     * @param middleButton true : button down
+     */
+    public void movePointer(final int dx, final int dy, final int dz, final boolean leftButton, final boolean rightButton, final boolean middleButton) {
+        movePointer(dx, dy, dz, 0, leftButton, rightButton, middleButton);
     }
 
     /**
@@ -62,18 +128,13 @@ public class JoystickPeripheral extends HidPeripheral {
      * @param dx delta X (-127 .. +127)
      * @param dy delta Y (-127 .. +127)
      * @param dz delta Z (-127 .. +127)
+     * @param rx Rx (-127 .. +127)
      * @param leftButton true : button down
      * @param rightButton true : button down
      * @param middleButton true : button down
      */
-    public void movePointer(int dx, int dy, int dz, final boolean leftButton, final boolean rightButton, final boolean middleButton) {
-        if (dx > 127) dx = 127;
-        if (dx < -127) dx = -127;
-        if (dy > 127) dy = 127;
-        if (dy < -127) dy = -127;
-        if (dz > 127) dz = 127;
-        if (dz < -127) dz = -127;
-        byte button = 0;
+    public void movePointer(final int dx, final int dy, final int dz, final int rx, final boolean leftButton, final boolean rightButton, final boolean middleButton) {
+        int button = 0;
         if (leftButton) {
             button |= 1;
         }
@@ -84,13 +145,49 @@ public class JoystickPeripheral extends HidPeripheral {
             button |= 4;
         }
 
-        final byte[] report = new byte[5];
-        report[0] = (byte) (button & 7);
-        report[1] = (byte) dx;
-        report[2] = (byte) dy;
-        report[3] = (byte) dz;
+        if (latestStateWins) {
+            synchronized (stateReport) {
+                if (BUTTONS.getBitmap(stateReport) != button) {
+                    // the state with the previous buttons is sent before the button change
+                    flushInputReportState();
+                }
+                encodeReport(stateReport, dx, dy, dz, rx, button);
+                setInputReportState(stateReport, REPORT_SIZE);
+            }
+            return;
+        }
+
+        // the overflow policy may overwrite the newest report, only if the button state is unchanged
+        boolean mayCoalesce = true;
+        final byte[] newest = claimNewestInputReport();
+        if (newest != null) {
+            mayCoalesce = BUTTONS.getBitmap(newest) == button;
+            commitInputReport(0);
+        }
+        final byte[] report = claimInputReport(mayCoalesce);
+        if (report == null) {
+            return;
+        }
+        encodeReport(report, dx, dy, dz, rx, button);
+        commitInputReport(REPORT_SIZE);
+    }
 
-        addInputReport(report);
+    /**
+     * Encodes the joystick state, values are clamped to the logical range
+     *
+     * @param report the report
+     * @param dx X
+     * @param dy Y
+     * @param dz Z
+     * @param rx Rx
+     * @param button the buttons bitmap
+     */
+    private static void encodeReport(final byte[] report, final int dx, final int dy, final int dz, final int rx, final int button) {
+        BUTTONS.setBitmap(report, button);
+        X.set(report, dx);
+        Y.set(report, dy);
+        Z.set(report, dz);
+        RX.set(report, rx);
     }
 
     @Override
@@ -1,23 +1,49 @@
 package jp.kshoji.blehid;
 
 import android.content.Context;
-import android.util.Log;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
-import java.util.Arrays;
+import java.io.Reader;
+
+import jp.kshoji.blehid.util.KeyTyper;
+import jp.kshoji.blehid.util.KeyboardLayout;
+import jp.kshoji.blehid.util.KeyboardState;
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapBuilder;
 
 /**
- * BLE Keyboard (US layout)
+ * BLE Keyboard, types with the US layout unless {@link #setKeyboardLayout(KeyboardLayout)} is called
  *
  * @author K.Shoji
  */
 public final class KeyboardPeripheral extends HidPeripheral {
-    private static final String TAG = KeyboardPeripheral.class.getSimpleName();
-
     public static final int MODIFIER_KEY_NONE = 0;
     public static final int MODIFIER_KEY_CTRL = 1;
     public static final int MODIFIER_KEY_SHIFT = 2;
     public static final int MODIFIER_KEY_ALT = 4;
 
+    /**
+     * Keyboard LEDs
+     */
+    public static final int LED_NUM_LOCK = 0x01;
+    public static final int LED_CAPS_LOCK = 0x02;
+    public static final int LED_SCROLL_LOCK = 0x04;
+    public static final int LED_COMPOSE = 0x08;
+    public static final int LED_KANA = 0x10;
+
+    /**
+     * Types a character per report, releasing before a repeated character
+     */
+    public static final int TYPING_MODE_SINGLE = 0;
+    /**
+     * Packs runs of distinct characters with the same modifier into one report, up to six keys.<br />
+     * Hosts press the keys of a report in the array order, some hosts may not.
+     */
+    public static final int TYPING_MODE_PACKED = 1;
+
     public static final int KEY_F1 = 0x3a;
     public static final int KEY_F2 = 0x3b;
     public static final int KEY_F3 = 0x3c;
@@ -52,58 +78,7 @@ public final class KeyboardPeripheral extends HidPeripheral {
      * @return modifier code
      */
     public static byte modifier(final String aChar) {
-        switch (aChar) {
-            case "A":
-            case "B":
-            case "C":
-            case "D":
-            case "E":
-            case "F":
-            case "G":
-            case "H":
-            case "I":
-            case "J":
-            case "K":
-            case "L":
-            case "M":
-            case "N":
-            case "O":
-            case "P":
-            case "Q":
-            case "R":
-            case "S":
-            case "T":
-            case "U":
-            case "V":
-            case "W":
-            case "X":
-            case "Y":
-            case "Z":
-            case "!":
-            case "@":
-            case "#":
-            case "$":
-            case "%":
-            case "^":
-            case "&":
-            case "*":
-            case "(":
-            case ")":
-            case "_":
-            case "+":
-            case "{":
-            case "}":
-            case "|":
-            case ":":
-            case "\"":
-            case "~":
-            case "<":
-            case ">":
-            case "?":
-                return MODIFIER_KEY_SHIFT;
-            default:
-                return 0;
-        }
+        return aChar.length() == 1 ? modifier(aChar.charAt(0)) : 0;
     }
 
     /**
@@ -113,202 +88,74 @@ public final class KeyboardPeripheral extends HidPeripheral {
      * @return keyCode
      */
     public static byte keyCode(final String aChar) {
-        switch (aChar) {
-            case "A":
-            case "a":
-                return 0x04;
-            case "B":
-            case "b":
-                return 0x05;
-            case "C":
-            case "c":
-                return 0x06;
-            case "D":
-            case "d":
-                return 0x07;
-            case "E":
-            case "e":
-                return 0x08;
-            case "F":
-            case "f":
-                return 0x09;
-            case "G":
-            case "g":
-                return 0x0a;
-            case "H":
-            case "h":
-                return 0x0b;
-            case "I":
-            case "i":
-                return 0x0c;
-            case "J":
-            case "j":
-                return 0x0d;
-            case "K":
-            case "k":
-                return 0x0e;
-            case "L":
-            case "l":
-                return 0x0f;
-            case "M":
-            case "m":
-                return 0x10;
-            case "N":
-            case "n":
-                return 0x11;
-            case "O":
-            case "o":
-                return 0x12;
-            case "P":
-            case "p":
-                return 0x13;
-            case "Q":
-            case "q":
-                return 0x14;
-            case "R":
-            case "r":
-                return 0x15;
-            case "S":
-            case "s":
-                return 0x16;
-            case "T":
-            case "t":
-                return 0x17;
-            case "U":
-            case "u":
-                return 0x18;
-            case "V":
-            case "v":
-                return 0x19;
-            case "W":
-            case "w":
-                return 0x1a;
-            case "X":
-            case "x":
-                return 0x1b;
-            case "Y":
-            case "y":
-                return 0x1c;
-            case "Z":
-            case "z":
-                return 0x1d;
-            case "!":
-            case "1":
-                return 0x1e;
-            case "@":
-            case "2":
-                return 0x1f;
-            case "#":
-            case "3":
-                return 0x20;
-            case "$":
-            case "4":
-                return 0x21;
-            case "%":
-            case "5":
-                return 0x22;
-            case "^":
-            case "6":
-                return 0x23;
-            case "&":
-            case "7":
-                return 0x24;
-            case "*":
-            case "8":
-                return 0x25;
-            case "(":
-            case "9":
-                return 0x26;
-            case ")":
-            case "0":
-                return 0x27;
-            case "\n": // LF
-                return 0x28;
-            case "\b": // BS
-                return 0x2a;
-            case "\t": // TAB
-                return 0x2b;
-            case " ":
-                return 0x2c;
-            case "_":
-            case "-":
-                return 0x2d;
-            case "+":
-            case "=":
-                return 0x2e;
-            case "{":
-            case "[":
-                return 0x2f;
-            case "}":
-            case "]":
-                return 0x30;
-            case "|":
-            case "\\":
-                return 0x31;
-            case ":":
-            case ";":
-                return 0x33;
-            case "\"":
-            case "'":
-                return 0x34;
-            case "~":
-            case "`":
-                return 0x35;
-            case "<":
-            case ",":
-                return 0x36;
-            case ">":
-            case ".":
-                return 0x37;
-            case "?":
-            case "/":
-                return 0x38;
-            default:
-                return 0;
-        }
+        return aChar.length() == 1 ? keyCode(aChar.charAt(0)) : 0;
     }
-    
+
+    /**
+     * Modifier code for US Keyboard, without allocation
+     *
+     * @param codePoint the character, or the Unicode code point
+     * @return modifier code, 0 if the character is not on the keyboard
+     */
+    public static byte modifier(final int codePoint) {
+        return (byte) KeyboardLayout.getModifier(KeyboardLayout.US.getKeyStroke(codePoint));
+    }
+
+    /**
+     * Key code for US Keyboard, without allocation
+     *
+     * @param codePoint the character, or the Unicode code point
+     * @return keyCode, 0 if the character is not on the keyboard
+     */
+    public static byte keyCode(final int codePoint) {
+        return (byte) KeyboardLayout.getUsage(KeyboardLayout.US.getKeyStroke(codePoint));
+    }
+
     /**
      * Characteristic Data(Report Map)
      */
-    private static final byte[] REPORT_MAP = {
-            USAGE_PAGE(1),      0x01,       // Generic Desktop Ctrls
-            USAGE(1),           0x06,       // Keyboard
-            COLLECTION(1),      0x01,       // Application
-            USAGE_PAGE(1),      0x07,       //   Kbrd/Keypad
-            USAGE_MINIMUM(1), (byte) 0xE0,
-            USAGE_MAXIMUM(1), (byte) 0xE7,
-            LOGICAL_MINIMUM(1), 0x00,
-            LOGICAL_MAXIMUM(1), 0x01,
-            REPORT_SIZE(1),     0x01,       //   1 byte (Modifier)
-            REPORT_COUNT(1),    0x08,
-            INPUT(1),           0x02,       //   Data,Var,Abs,No Wrap,Linear,Preferred State,No Null Position
-            REPORT_COUNT(1),    0x01,       //   1 byte (Reserved)
-            REPORT_SIZE(1),     0x08,
-            INPUT(1),           0x01,       //   Const,Array,Abs,No Wrap,Linear,Preferred State,No Null Position
-            REPORT_COUNT(1),    0x05,       //   5 bits (Num lock, Caps lock, Scroll lock, Compose, Kana)
-            REPORT_SIZE(1),     0x01,
-            USAGE_PAGE(1),      0x08,       //   LEDs
-            USAGE_MINIMUM(1),   0x01,       //   Num Lock
-            USAGE_MAXIMUM(1),   0x05,       //   Kana
-            OUTPUT(1),          0x02,       //   Data,Var,Abs,No Wrap,Linear,Preferred State,No Null Position,Non-volatile
-            REPORT_COUNT(1),    0x01,       //   3 bits (Padding)
-            REPORT_SIZE(1),     0x03,
-            OUTPUT(1),          0x01,       //   Const,Array,Abs,No Wrap,Linear,Preferred State,No Null Position,Non-volatile
-            REPORT_COUNT(1),    0x06,       //   6 bytes (Keys)
-            REPORT_SIZE(1),     0x08,
-            LOGICAL_MINIMUM(1), 0x00,
-            LOGICAL_MAXIMUM(1), 0x65,       //   101 keys
-            USAGE_PAGE(1),      0x07,       //   Kbrd/Keypad
-            USAGE_MINIMUM(1),   0x00,
-            USAGE_MAXIMUM(1),   0x65,
-            INPUT(1),           0x00,       //   Data,Array,Abs,No Wrap,Linear,Preferred State,No Null Position
-            END_COLLECTION(0),
-    };
+    private static final ReportLayout REPORT_LAYOUT = new ReportMapBuilder()
+            .usagePage(0x01)                  // Generic Desktop Ctrls
+            .usage(0x06)                      // Keyboard
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .usagePage(0x07)                  //   Kbrd/Keypad
+            .usageMinimum(0xE0)
+            .usageMaximum(0xE7)
+            .logicalMinimum(0)
+            .logicalMaximum(1)
+            .reportSize(1)                    //   1 byte (Modifier)
+            .reportCount(8)
+            .input(ReportField.FLAG_VARIABLE) //   Data,Var,Abs,No Wrap,Linear,Preferred State,No Null Position
+            .reportCount(1)                   //   1 byte (Reserved)
+            .reportSize(8)
+            .input(ReportField.FLAG_CONSTANT) //   Const,Array,Abs,No Wrap,Linear,Preferred State,No Null Position
+            .reportCount(5)                   //   5 bits (Num lock, Caps lock, Scroll lock, Compose, Kana)
+            .reportSize(1)
+            .usagePage(0x08)                  //   LEDs
+            .usageMinimum(0x01)               //   Num Lock
+            .usageMaximum(0x05)               //   Kana
+            .output(ReportField.FLAG_VARIABLE) //  Data,Var,Abs,No Wrap,Linear,Preferred State,No Null Position,Non-volatile
+            .reportCount(1)                   //   3 bits (Padding)
+            .reportSize(3)
+            .output(ReportField.FLAG_CONSTANT) //  Const,Array,Abs,No Wrap,Linear,Preferred State,No Null Position,Non-volatile
+            .reportCount(6)                   //   6 bytes (Keys)
+            .reportSize(8)
+            .logicalMinimum(0)
+            .logicalMaximum(0xff)             //   All keys, including the JIS keys (International1 to 5)
+            .usagePage(0x07)                  //   Kbrd/Keypad
+            .usageMinimum(0x00)
+            .usageMaximum(0xff)
+            .input(0)                         //   Data,Array,Abs,No Wrap,Linear,Preferred State,No Null Position
+            .endCollection()
+            .build();
+
+    private static final ReportField MODIFIERS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x07, 0xE0);
+    private static final ReportField KEYS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x07, 0x00);
+    private static final ReportField LEDS = REPORT_LAYOUT.getField(ReportField.TYPE_OUTPUT, 0, 0x08, 0x01);
 
     @Override
     protected byte[] getReportMap() {
-        return REPORT_MAP;
+        return REPORT_LAYOUT.getReportMap();
     }
 
     /**
@@ -318,31 +165,198 @@ public final class KeyboardPeripheral extends HidPeripheral {
      * @param context the applicationContext
      */
     public KeyboardPeripheral(final Context context) throws UnsupportedOperationException {
-        super(context.getApplicationContext(), true, true, false, 20);
+        this(context, context.getApplicationContext().getMainLooper());
+    }
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the applicationContext
+     * @param gattLooper the Looper to run GATT server works, null: runs on a dedicated high priority thread
+     */
+    public KeyboardPeripheral(final Context context, @Nullable final Looper gattLooper) throws UnsupportedOperationException {
+        super(context.getApplicationContext(), true, true, false, 20, gattLooper);
     }
     
-    private static final int KEY_PACKET_MODIFIER_KEY_INDEX = 0;
-    private static final int KEY_PACKET_KEY_INDEX = 2;
+    private static final int REPORT_SIZE = REPORT_LAYOUT.getReportSize(ReportField.TYPE_INPUT, 0);
+
+    private volatile int typingMode = TYPING_MODE_SINGLE;
+    private volatile KeyboardLayout keyboardLayout = KeyboardLayout.US;
+
+    /**
+     * Set the keyboard layout of the central, to type the text with
+     *
+     * @param layout the layout, such as {@link KeyboardLayout#US}, {@link KeyboardLayout#UK}, {@link KeyboardLayout#DE}, {@link KeyboardLayout#FR} or {@link KeyboardLayout#JIS}
+     */
+    public void setKeyboardLayout(@NonNull final KeyboardLayout layout) {
+        keyboardLayout = layout;
+    }
+
+    /**
+     * Obtains the keyboard layout to type the text with
+     *
+     * @return the layout
+     */
+    @NonNull
+    public KeyboardLayout getKeyboardLayout() {
+        return keyboardLayout;
+    }
+
+    /**
+     * Set the typing mode of {@link #sendKeys(String)}
+     *
+     * @param newTypingMode {@link #TYPING_MODE_SINGLE} or {@link #TYPING_MODE_PACKED}
+     * @throws IllegalArgumentException if the mode is unknown
+     */
+    public void setTypingMode(final int newTypingMode) throws IllegalArgumentException {
+        if (newTypingMode != TYPING_MODE_SINGLE && newTypingMode != TYPING_MODE_PACKED) {
+            throw new IllegalArgumentException("Unknown typing mode: " + newTypingMode);
+        }
+        typingMode = newTypingMode;
+    }
+
+    /**
+     * Obtains the typing mode of {@link #sendKeys(String)}
+     *
+     * @return {@link #TYPING_MODE_SINGLE} or {@link #TYPING_MODE_PACKED}
+     */
+    public int getTypingMode() {
+        return typingMode;
+    }
 
     /**
-     * Send text to Central device
+     * Send text to Central device, no character is lost<br />
+     * The characters are looked up by the code point in the keyboard layout, no objects are created per character.
+     * On a background thread, blocks while the input report queue is full with {@link jp.kshoji.blehid.util.ReportRingBuffer#OVERFLOW_BLOCK}.
+     * On the main thread and the GATT thread, which never wait, or when the queue drops the new report,
+     * the rest of the text is typed in the background as the queue frees up, like {@link #typeText(CharSequence, TypingTask.Listener)}.
+     * While text is typed in the background, the new text is typed after it.
+     *
      * @param text the text to send
+     * @see #setTypingMode(int)
+     * @see #typeText(CharSequence, TypingTask.Listener)
      */
     public void sendKeys(final String text) {
-        String lastKey = null;
-        for (int i = 0; i < text.length(); i++) {
-            final String key = text.substring(i, i + 1);
-            final byte[] report = new byte[8];
-            report[KEY_PACKET_MODIFIER_KEY_INDEX] = modifier(key);
-            report[KEY_PACKET_KEY_INDEX] = keyCode(key);
-
-            if (key.equals(lastKey)) {
-                sendKeyUp();
+        type(newKeyTyper(typingMode == TYPING_MODE_PACKED), text);
+    }
+
+    /**
+     * Types the text in the background, generating the reports as the input report queue frees up.<br />
+     * The memory used does not depend on the text length. A typing task already running is cancelled,
+     * the text of {@link #sendKeys(String)} waiting to be typed is typed first.
+     *
+     * @param text the text to type, must not be modified until the task finishes
+     * @param listener the listener, called on the GATT thread
+     * @return the task
+     * @see #setTypingMode(int)
+     */
+    @NonNull
+    public TypingTask typeText(@NonNull final CharSequence text, @Nullable final TypingTask.Listener listener) {
+        return startTypingTask(new TypingTask(newKeyTyper(typingMode == TYPING_MODE_PACKED), text, listener), true);
+    }
+
+    /**
+     * Types the text read from the reader in the background, generating the reports as the input report queue frees up.<br />
+     * The reader is read on the GATT thread a chunk at a time, and closed when the task finishes. It should not block for long.
+     * A typing task already running is cancelled, the text of {@link #sendKeys(String)} waiting to be typed is typed first.
+     *
+     * @param reader the reader to type
+     * @param listener the listener, called on the GATT thread
+     * @return the task
+     * @see #setTypingMode(int)
+     */
+    @NonNull
+    public TypingTask typeText(@NonNull final Reader reader, @Nullable final TypingTask.Listener listener) {
+        return startTypingTask(new TypingTask(newKeyTyper(typingMode == TYPING_MODE_PACKED), reader, listener), true);
+    }
+
+    private final KeyTyper.KeyReportSink keyReportSink = new KeyTyper.KeyReportSink() {
+        @Override
+        public boolean sendKeys(final int modifier, @NonNull final int[] keys, final int keyCount) {
+            return sendKeysDown(modifier, keys, keyCount);
+        }
+    };
+
+    /**
+     * Creates a typer with the current keyboard layout
+     *
+     * @param packed true: {@link #TYPING_MODE_PACKED}, false: {@link #TYPING_MODE_SINGLE}
+     * @return the typer
+     */
+    @NonNull
+    private KeyTyper newKeyTyper(final boolean packed) {
+        return new KeyTyper(keyboardLayout, KEYS.getCount(), packed, keyReportSink);
+    }
+
+    // the task started by typeText, and the last task typed in the background
+    private TypingTask typingTask;
+    private TypingTask lastTypingTask;
+
+    /**
+     * Starts the typing task after the tasks typed in the background
+     *
+     * @param task the task
+     * @param cancelRunning true: cancels the task started by typeText
+     * @return the task
+     */
+    @NonNull
+    private synchronized TypingTask startTypingTask(@NonNull final TypingTask task, final boolean cancelRunning) {
+        if (cancelRunning) {
+            if (typingTask != null) {
+                typingTask.cancel();
+            }
+            typingTask = task;
+        }
+        if (!isTypingInBackground() || !lastTypingTask.setNextTask(task)) {
+            setInputReportSource(task);
+        }
+        lastTypingTask = task;
+        return task;
+    }
+
+    /**
+     * Check if a task is typing in the background, the tasks are removed by closing the peripheral
+     *
+     * @return true if typing
+     */
+    private synchronized boolean isTypingInBackground() {
+        return lastTypingTask != null && !lastTypingTask.isFinished() && getInputReportSource() != null;
+    }
+
+    /**
+     * Types the text, the rest is typed in the background if a report could not be queued
+     *
+     * @param typer the typer
+     * @param text the text
+     */
+    private void type(@NonNull final KeyTyper typer, @NonNull final CharSequence text) {
+        int i = 0;
+        if (!isTypingInBackground()) {
+            while (i < text.length()) {
+                final int next = typer.type(text, i, text.length());
+                if (next == i) {
+                    break;
+                }
+                i = next;
+            }
+            if (i == text.length() && typer.finish()) {
+                return;
             }
-            addInputReport(report);
-            lastKey = key;
         }
-        sendKeyUp();
+
+        // the failed step of the typer is retried by the task
+        startTypingTask(new TypingTask(typer, text, i, null), false);
+    }
+
+    /**
+     * Send a character to Central device with the keyboard layout, as Key Down and Key Up Events<br />
+     * Like {@link #sendKeys(String)}, typed in the background if a report could not be queued.
+     *
+     * @param codePoint the character, or the Unicode code point
+     */
+    public void sendKey(final int codePoint) {
+        type(newKeyTyper(false), new String(Character.toChars(codePoint)));
     }
 
     /**
@@ -351,24 +365,157 @@ public final class KeyboardPeripheral extends HidPeripheral {
      * @param keyCode key code
      */
     public void sendKeyDown(final byte modifier, final byte keyCode) {
-        final byte[] report = new byte[8];
-        report[KEY_PACKET_MODIFIER_KEY_INDEX] = modifier;
-        report[KEY_PACKET_KEY_INDEX] = keyCode;
-        
-        addInputReport(report);
+        final byte[] report = claimInputReport();
+        if (report == null) {
+            return;
+        }
+        MODIFIERS.setBitmap(report, modifier & 0xff);
+        KEYS.set(report, 0, keyCode & 0xff);
+
+        commitInputReport(REPORT_SIZE);
     }
 
-    private static final byte[] EMPTY_REPORT = new byte[8];
+    /**
+     * Send Key Down Event with several keys, pressed by the host in the array order
+     *
+     * @param modifier modifier keys
+     * @param keyCodes key codes
+     * @param keyCount the number of key codes, up to the number of keys in the report
+     * @return true if queued, false if dropped
+     */
+    private boolean sendKeysDown(final int modifier, final int[] keyCodes, final int keyCount) {
+        final byte[] report = claimInputReport();
+        if (report == null) {
+            return false;
+        }
+        MODIFIERS.setBitmap(report, modifier);
+        for (int i = 0; i < keyCount; i++) {
+            KEYS.set(report, i, keyCodes[i]);
+        }
+
+        commitInputReport(REPORT_SIZE);
+        return true;
+    }
 
     /**
      * Send Key Up Event
      */
     public void sendKeyUp() {
-        addInputReport(EMPTY_REPORT);
+        if (claimInputReport() != null) {
+            // the claimed report is zero-filled
+            commitInputReport(REPORT_SIZE);
+        }
+    }
+
+    private final KeyboardState keyboardState = new KeyboardState();
+
+    /**
+     * Presses the key, keeping the other keys pressed<br />
+     * A report is sent only if the pressed keys have changed. More than six keys report the rollover error, use {@link NkroKeyboardPeripheral} to send them.
+     * The pressed keys are independent of {@link #sendKeyDown(byte, byte)}, {@link #sendKeyUp()} and typing, which overwrite the reported keys.
+     *
+     * @param usage the usage of the key, including the modifier keys (0xE0 to 0xE7)
+     * @return true if sent, or the pressed keys are unchanged. false if the report has been dropped, the key is kept released
+     * @throws IllegalArgumentException if the usage is out of range
+     */
+    public boolean press(final int usage) throws IllegalArgumentException {
+        synchronized (keyboardState) {
+            if (!keyboardState.press(usage)) {
+                return true;
+            }
+            if (sendKeyboardState()) {
+                return true;
+            }
+            // not to leave the key stuck without the report
+            keyboardState.release(usage);
+            return false;
+        }
+    }
+
+    /**
+     * Releases the key, keeping the other keys pressed<br />
+     * A report is sent only if the pressed keys have changed.
+     *
+     * @param usage the usage of the key, including the modifier keys (0xE0 to 0xE7)
+     * @return true if sent, or the pressed keys are unchanged. false if the report has been dropped, the key is kept pressed
+     * @throws IllegalArgumentException if the usage is out of range
+     */
+    public boolean release(final int usage) throws IllegalArgumentException {
+        synchronized (keyboardState) {
+            if (!keyboardState.release(usage)) {
+                return true;
+            }
+            if (sendKeyboardState()) {
+                return true;
+            }
+            keyboardState.press(usage);
+            return false;
+        }
+    }
+
+    /**
+     * Releases all keys pressed by {@link #press(int)}
+     *
+     * @return true if sent, or no key is pressed. false if the report has been dropped, the keys are kept pressed
+     */
+    public boolean releaseAll() {
+        synchronized (keyboardState) {
+            if (keyboardState.getKeyCount() == 0 && keyboardState.getModifiers() == 0) {
+                return true;
+            }
+            // claimed before changing the state, the keys are kept pressed if dropped
+            final byte[] report = claimInputReport();
+            if (report == null) {
+                return false;
+            }
+            keyboardState.releaseAll();
+            // the claimed report is zero-filled
+            commitInputReport(REPORT_SIZE);
+            return true;
+        }
+    }
+
+    /**
+     * Check if the key is pressed by {@link #press(int)}
+     *
+     * @param usage the usage of the key
+     * @return true if pressed
+     */
+    public boolean isPressed(final int usage) {
+        synchronized (keyboardState) {
+            return keyboardState.isPressed(usage);
+        }
+    }
+
+    /**
+     * Sends the pressed keys, while holding the lock of the state
+     *
+     * @return true if queued, false if dropped
+     */
+    private boolean sendKeyboardState() {
+        final byte[] report = claimInputReport();
+        if (report == null) {
+            return false;
+        }
+        keyboardState.encodeArray(report, MODIFIERS, KEYS);
+
+        commitInputReport(REPORT_SIZE);
+        return true;
+    }
+
+    private volatile int ledState;
+
+    /**
+     * Obtains the keyboard LED state, set by the central
+     *
+     * @return the combination of {@link #LED_NUM_LOCK}, {@link #LED_CAPS_LOCK}, {@link #LED_SCROLL_LOCK}, {@link #LED_COMPOSE} and {@link #LED_KANA}
+     */
+    public int getLedState() {
+        return ledState;
     }
 
     @Override
     protected void onOutputReport(final byte[] outputReport) {
-        Log.i(TAG, "onOutputReport data: " + Arrays.toString(outputReport));
+        ledState = LEDS.getBitmap(outputReport);
     }
 }
@@ -0,0 +1,198 @@
+package jp.kshoji.blehid;
+
+import android.support.annotation.NonNull;
+
+import jp.kshoji.blehid.util.ReportField;
+
+/**
+ * Relative mouse motion, split into Input Reports<br />
+ * A movement larger than the logical range of the fields is split into reports, up to {@link #MAX_REPORTS_PER_MOVE} reports per movement,
+ * and the movement not queued yet (too large, or the queue dropped the report) is carried over to the next movements, none is discarded.
+ * The carried movement is sent with the button state it was captured with: a button change waits until the carried movement has been queued.
+ *
+ * @author K.Shoji
+ */
+final class MotionAccumulator {
+    /**
+     * The max number of reports queued by a movement
+     */
+    static final int MAX_REPORTS_PER_MOVE = 8;
+
+    private final HidPeripheral peripheral;
+    private final ReportField buttons;
+    private final ReportField x;
+    private final ReportField y;
+    private final ReportField wheel;
+    private final int reportSize;
+    private final byte[] lastSent;
+    // movement not queued yet, and its button state
+    private long carryX;
+    private long carryY;
+    private long carryWheel;
+    private int carryButton;
+    // movement after a button change, waiting for the carried movement to be queued
+    private boolean hasPending;
+    private long pendingX;
+    private long pendingY;
+    private long pendingWheel;
+    private int pendingButton;
+    // the number of reports queued by the current movement
+    private int reportCount;
+
+    /**
+     * Constructor
+     *
+     * @param peripheral the peripheral to queue the reports
+     * @param buttons the buttons field
+     * @param x the X field
+     * @param y the Y field
+     * @param wheel the wheel field
+     * @param reportSize the report size
+     */
+    MotionAccumulator(@NonNull final HidPeripheral peripheral, @NonNull final ReportField buttons, @NonNull final ReportField x, @NonNull final ReportField y, @NonNull final ReportField wheel, final int reportSize) {
+        this.peripheral = peripheral;
+        this.buttons = buttons;
+        this.x = x;
+        this.y = y;
+        this.wheel = wheel;
+        this.reportSize = reportSize;
+        lastSent = new byte[reportSize];
+    }
+
+    /**
+     * Queues the movement after the carried over movement
+     *
+     * @param dx delta X
+     * @param dy delta Y
+     * @param dWheel delta wheel
+     * @param button the buttons bitmap
+     * @param coalescing true: merge into the newest waiting report, if the button state is unchanged
+     */
+    synchronized void move(final int dx, final int dy, final int dWheel, final int button, final boolean coalescing) {
+        if (hasPending || button != carryButton) {
+            // a button state not queued yet is replaced, its movement is kept
+            hasPending = true;
+            pendingButton = button;
+            pendingX = saturatedAdd(pendingX, dx);
+            pendingY = saturatedAdd(pendingY, dy);
+            pendingWheel = saturatedAdd(pendingWheel, dWheel);
+        } else {
+            carryX = saturatedAdd(carryX, dx);
+            carryY = saturatedAdd(carryY, dy);
+            carryWheel = saturatedAdd(carryWheel, dWheel);
+
+            if (buttons.getBitmap(lastSent) == 0 && x.get(lastSent) == 0 && y.get(lastSent) == 0 && wheel.get(lastSent) == 0 &&
+                    button == 0 && carryX == 0 && carryY == 0 && carryWheel == 0) {
+                return;
+            }
+        }
+
+        reportCount = 0;
+        if (hasPending && carryX == 0 && carryY == 0 && carryWheel == 0 && buttons.getBitmap(lastSent) == carryButton) {
+            // nothing carried with the old button state
+            applyPending();
+        }
+        while (flush(coalescing)) {
+            if (!hasPending) {
+                return;
+            }
+            // the carried movement has been queued, the button change is sent next, even without movement
+            applyPending();
+        }
+    }
+
+    /**
+     * Makes the movement after the button change the carried movement
+     */
+    private void applyPending() {
+        carryX = pendingX;
+        carryY = pendingY;
+        carryWheel = pendingWheel;
+        carryButton = pendingButton;
+        hasPending = false;
+        pendingX = 0;
+        pendingY = 0;
+        pendingWheel = 0;
+    }
+
+    /**
+     * Queues the carried movement with its button state, at least one report, up to {@link #MAX_REPORTS_PER_MOVE} reports per movement
+     *
+     * @param coalescing true: merge into the newest waiting report, if the button state is unchanged
+     * @return true if all the carried movement has been queued, false if carried over to the next movement
+     */
+    private boolean flush(final boolean coalescing) {
+        if (coalescing) {
+            // merge into the report waiting to be sent, if the button state is unchanged
+            final byte[] newest = peripheral.claimNewestInputReport();
+            if (newest != null) {
+                if (buttons.getBitmap(newest) != carryButton) {
+                    peripheral.commitInputReport(0);
+                } else {
+                    // saturates at the logical range, the remainder spills into new reports
+                    carryX -= merge(x, newest, carryX);
+                    carryY -= merge(y, newest, carryY);
+                    carryWheel -= merge(wheel, newest, carryWheel);
+
+                    System.arraycopy(newest, 0, lastSent, 0, reportSize);
+                    peripheral.commitInputReport(reportSize);
+
+                    if (carryX == 0 && carryY == 0 && carryWheel == 0) {
+                        return true;
+                    }
+                }
+            }
+        }
+
+        while (reportCount < MAX_REPORTS_PER_MOVE) {
+            final byte[] report = peripheral.claimInputReport();
+            if (report == null) {
+                // dropped: carried over to the next movement
+                return false;
+            }
+            buttons.setBitmap(report, carryButton);
+            x.set(report, clamp(carryX));
+            y.set(report, clamp(carryY));
+            wheel.set(report, clamp(carryWheel));
+            carryX -= x.get(report);
+            carryY -= y.get(report);
+            carryWheel -= wheel.get(report);
+
+            System.arraycopy(report, 0, lastSent, 0, reportSize);
+            peripheral.commitInputReport(reportSize);
+            reportCount++;
+
+            if (carryX == 0 && carryY == 0 && carryWheel == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the movement to the queued value of the field
+     *
+     * @param field the field
+     * @param report the queued report
+     * @param delta the movement
+     * @return the movement merged
+     */
+    private static int merge(@NonNull final ReportField field, @NonNull final byte[] report, final long delta) {
+        final int queued = field.get(report);
+        field.set(report, clamp(saturatedAdd(queued, delta)));
+        return field.get(report) - queued;
+    }
+
+    private static int clamp(final long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    private static long saturatedAdd(final long a, final long b) {
+        final long sum = a + b;
+        // overflows only if both have the same sign, and the sum has the other
+        if (((a ^ sum) & (b ^ sum)) < 0) {
+            return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        return sum;
+    }
+}
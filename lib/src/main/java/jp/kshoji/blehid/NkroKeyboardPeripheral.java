@@ -0,0 +1,205 @@
+package jp.kshoji.blehid;
+
+import android.content.Context;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blehid.util.KeyboardState;
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+import jp.kshoji.blehid.util.ReportMapBuilder;
+
+/**
+ * BLE Keyboard with N-key rollover<br />
+ * The keys are reported as a bitmap, so any number of keys can be pressed at once, and each change of the pressed keys is sent as one report.
+ * The bitmap covers the usages 0x00 to 0x97, including the JIS keys (International1 to 9) and the input mode keys (LANG1 to 8).
+ * The 20-byte report fits into a notification of the default MTU.
+ *
+ * @author K.Shoji
+ */
+public final class NkroKeyboardPeripheral extends HidPeripheral {
+    /**
+     * Characteristic Data(Report Map)
+     */
+    private static final ReportLayout REPORT_LAYOUT = new ReportMapBuilder()
+            .usagePage(0x01)                  // Generic Desktop Ctrls
+            .usage(0x06)                      // Keyboard
+            .collection(ReportMapBuilder.COLLECTION_APPLICATION)
+            .usagePage(0x07)                  //   Kbrd/Keypad
+            .usageMinimum(0xE0)
+            .usageMaximum(0xE7)
+            .logicalMinimum(0)
+            .logicalMaximum(1)
+            .reportSize(1)                    //   1 byte (Modifier)
+            .reportCount(8)
+            .input(ReportField.FLAG_VARIABLE) //   Data,Var,Abs
+            .reportCount(5)                   //   5 bits (Num lock, Caps lock, Scroll lock, Compose, Kana)
+            .reportSize(1)
+            .usagePage(0x08)                  //   LEDs
+            .usageMinimum(0x01)               //   Num Lock
+            .usageMaximum(0x05)               //   Kana
+            .output(ReportField.FLAG_VARIABLE) //  Data,Var,Abs
+            .reportCount(1)                   //   3 bits (Padding)
+            .reportSize(3)
+            .output(ReportField.FLAG_CONSTANT) //  Const,Array,Abs
+            .usagePage(0x07)                  //   Kbrd/Keypad
+            .usageMinimum(0x00)
+            .usageMaximum(0x97)
+            .logicalMinimum(0)
+            .logicalMaximum(1)
+            .reportSize(1)                    //   19 bytes (Key bitmap)
+            .reportCount(0x98)
+            .input(ReportField.FLAG_VARIABLE) //   Data,Var,Abs
+            .endCollection()
+            .build();
+
+    private static final ReportField MODIFIERS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x07, 0xE0);
+    private static final ReportField KEYS = REPORT_LAYOUT.getField(ReportField.TYPE_INPUT, 0, 0x07, 0x00);
+    private static final ReportField LEDS = REPORT_LAYOUT.getField(ReportField.TYPE_OUTPUT, 0, 0x08, 0x01);
+    private static final int REPORT_SIZE = REPORT_LAYOUT.getReportSize(ReportField.TYPE_INPUT, 0);
+
+    @Override
+    protected byte[] getReportMap() {
+        return REPORT_LAYOUT.getReportMap();
+    }
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the applicationContext
+     */
+    public NkroKeyboardPeripheral(final Context context) throws UnsupportedOperationException {
+        this(context, context.getApplicationContext().getMainLooper());
+    }
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the applicationContext
+     * @param gattLooper the Looper to run GATT server works, null: runs on a dedicated high priority thread
+     */
+    public NkroKeyboardPeripheral(final Context context, @Nullable final Looper gattLooper) throws UnsupportedOperationException {
+        super(context.getApplicationContext(), true, true, false, 20, gattLooper);
+    }
+
+    private final KeyboardState keyboardState = new KeyboardState();
+
+    /**
+     * Presses the key, keeping the other keys pressed<br />
+     * A report is sent only if the pressed keys have changed.
+     *
+     * @param usage the usage of the key, up to 0x97, or a modifier key (0xE0 to 0xE7)
+     * @return true if sent, or the pressed keys are unchanged. false if the report has been dropped, the key is kept released
+     * @throws IllegalArgumentException if the usage is out of range
+     */
+    public boolean press(final int usage) throws IllegalArgumentException {
+        checkUsage(usage);
+        synchronized (keyboardState) {
+            if (!keyboardState.press(usage)) {
+                return true;
+            }
+            if (sendKeyboardState()) {
+                return true;
+            }
+            // not to leave the key stuck without the report
+            keyboardState.release(usage);
+            return false;
+        }
+    }
+
+    /**
+     * Releases the key, keeping the other keys pressed<br />
+     * A report is sent only if the pressed keys have changed.
+     *
+     * @param usage the usage of the key, up to 0x97, or a modifier key (0xE0 to 0xE7)
+     * @return true if sent, or the pressed keys are unchanged. false if the report has been dropped, the key is kept pressed
+     * @throws IllegalArgumentException if the usage is out of range
+     */
+    public boolean release(final int usage) throws IllegalArgumentException {
+        checkUsage(usage);
+        synchronized (keyboardState) {
+            if (!keyboardState.release(usage)) {
+                return true;
+            }
+            if (sendKeyboardState()) {
+                return true;
+            }
+            keyboardState.press(usage);
+            return false;
+        }
+    }
+
+    /**
+     * Releases all keys
+     *
+     * @return true if sent, or no key is pressed. false if the report has been dropped, the keys are kept pressed
+     */
+    public boolean releaseAll() {
+        synchronized (keyboardState) {
+            if (keyboardState.getKeyCount() == 0 && keyboardState.getModifiers() == 0) {
+                return true;
+            }
+            // claimed before changing the state, the keys are kept pressed if dropped
+            final byte[] report = claimInputReport();
+            if (report == null) {
+                return false;
+            }
+            keyboardState.releaseAll();
+            // the claimed report is zero-filled
+            commitInputReport(REPORT_SIZE);
+            return true;
+        }
+    }
+
+    /**
+     * Check if the key is pressed
+     *
+     * @param usage the usage of the key
+     * @return true if pressed
+     */
+    public boolean isPressed(final int usage) {
+        synchronized (keyboardState) {
+            return keyboardState.isPressed(usage);
+        }
+    }
+
+    /**
+     * Sends the pressed keys, while holding the lock of the state
+     *
+     * @return true if queued, false if dropped
+     */
+    private boolean sendKeyboardState() {
+        final byte[] report = claimInputReport();
+        if (report == null) {
+            return false;
+        }
+        keyboardState.encodeBitmap(report, MODIFIERS, KEYS);
+
+        commitInputReport(REPORT_SIZE);
+        return true;
+    }
+
+    private static void checkUsage(final int usage) throws IllegalArgumentException {
+        if (usage > KEYS.getUsageMaximum() && (usage < KeyboardState.USAGE_MODIFIER_MINIMUM || usage > KeyboardState.USAGE_MODIFIER_MAXIMUM)) {
+            throw new IllegalArgumentException("Usage out of the key bitmap: " + usage);
+        }
+    }
+
+    private volatile int ledState;
+
+    /**
+     * Obtains the keyboard LED state, set by the central
+     *
+     * @return the combination of {@link KeyboardPeripheral#LED_NUM_LOCK}, {@link KeyboardPeripheral#LED_CAPS_LOCK}, {@link KeyboardPeripheral#LED_SCROLL_LOCK}, {@link KeyboardPeripheral#LED_COMPOSE} and {@link KeyboardPeripheral#LED_KANA}
+     */
+    public int getLedState() {
+        return ledState;
+    }
+
+    @Override
+    protected void onOutputReport(final byte[] outputReport) {
+        ledState = LEDS.getBitmap(outputReport);
+    }
+}
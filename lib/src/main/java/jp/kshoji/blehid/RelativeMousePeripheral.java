@@ -0,0 +1,93 @@
+package jp.kshoji.blehid;
+
+import android.content.Context;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.kshoji.blehid.util.ReportField;
+import jp.kshoji.blehid.util.ReportLayout;
+
+/**
+ * BLE Mouse with relative X, Y and wheel, and three buttons<br />
+ * The subclasses define the Report Map, the fields are looked up by the usages.
+ *
+ * @author K.Shoji
+ */
+public abstract class RelativeMousePeripheral extends HidPeripheral {
+    private final MotionAccumulator motion;
+
+    /**
+     * Constructor<br />
+     * Before constructing the instance, check the Bluetooth availability.
+     *
+     * @param context the applicationContext
+     * @param gattLooper the Looper to run GATT server works, null: runs on a dedicated high priority thread
+     * @param reportLayout the layout of the Report Map, with the Buttons, X, Y and Wheel input fields
+     * @throws UnsupportedOperationException if starting Bluetooth LE Peripheral failed
+     */
+    RelativeMousePeripheral(final Context context, @Nullable final Looper gattLooper, @NonNull final ReportLayout reportLayout) throws UnsupportedOperationException {
+        super(context.getApplicationContext(), true, false, false, 10, gattLooper);
+        motion = new MotionAccumulator(this,
+                reportLayout.getField(ReportField.TYPE_INPUT, 0, 0x09, 0x01),
+                reportLayout.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x30),
+                reportLayout.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x31),
+                reportLayout.getField(ReportField.TYPE_INPUT, 0, 0x01, 0x38),
+                reportLayout.getReportSize(ReportField.TYPE_INPUT, 0));
+    }
+
+    /**
+     * Move the mouse pointer<br />
+     * A movement beyond the logical range of the fields is split into several reports, up to 8 reports per call,
+     * and the movement not queued is carried over to the next calls, none is discarded.
+     * The carried movement is sent with the button state of its call, before a button change.
+     *
+     * @param dx delta X
+     * @param dy delta Y
+     * @param wheel wheel
+     * @param leftButton true : button down
+     * @param rightButton true : button down
+     * @param middleButton true : button down
+     */
+    public void movePointer(final int dx, final int dy, final int wheel, final boolean leftButton, final boolean rightButton, final boolean middleButton) {
+        int button = 0;
+        if (leftButton) {
+            button |= 1;
+        }
+        if (rightButton) {
+            button |= 2;
+        }
+        if (middleButton) {
+            button |= 4;
+        }
+
+        motion.move(dx, dy, wheel, button, motionCoalescing);
+    }
+
+    private volatile boolean motionCoalescing;
+
+    /**
+     * Set the motion coalescing mode<br />
+     * While reports are waiting to be sent, a new movement with the same button state is merged into the newest waiting report.
+     * Merging saturates at the logical range, and the remainder is queued as a new report.
+     *
+     * @param enabled true: merge movements
+     */
+    public void setMotionCoalescing(final boolean enabled) {
+        motionCoalescing = enabled;
+    }
+
+    /**
+     * Check if the motion coalescing mode is enabled
+     *
+     * @return true if enabled
+     */
+    public boolean isMotionCoalescing() {
+        return motionCoalescing;
+    }
+
+    @Override
+    protected void onOutputReport(final byte[] outputReport) {
+        // do nothing
+    }
+}
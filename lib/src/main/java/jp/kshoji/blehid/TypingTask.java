@@ -0,0 +1,269 @@
+package jp.kshoji.blehid;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+import jp.kshoji.blehid.core.HidPipeline;
+import jp.kshoji.blehid.util.KeyTyper;
+
+/**
+ * Text typed by {@link KeyboardPeripheral} in the background<br />
+ * The key reports are generated on the GATT thread as the input report queue frees up,
+ * a Reader is read a chunk at a time, so the memory used does not depend on the text length.
+ * If another sender fills the queue first, the character is typed again on the next call, not skipped.
+ * Tasks are typed one after another: a task appended to a running task starts when the running task finishes.
+ *
+ * @author K.Shoji
+ */
+public final class TypingTask implements HidPipeline.InputReportSource {
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * Listener for the typing progress
+     */
+    public interface Listener {
+        /**
+         * Called on the GATT thread when characters have been translated into queued reports
+         *
+         * @param task the task
+         * @param typedCount the number of characters typed so far
+         */
+        void onProgress(@NonNull TypingTask task, long typedCount);
+
+        /**
+         * Called on the GATT thread when the task has finished, all keys have been released
+         *
+         * @param task the task
+         */
+        void onFinished(@NonNull TypingTask task);
+    }
+
+    private final KeyTyper typer;
+    @Nullable
+    private final Listener listener;
+    @Nullable
+    private final CharSequence text;
+    @Nullable
+    private final Reader reader;
+    @Nullable
+    private final char[] chunk;
+    @Nullable
+    private final CharBuffer chunkBuffer;
+    // the range of the text, or the chunk read from the reader, not typed yet
+    private int position;
+    private int end;
+    // true if the text has been read to the end, or failed to read
+    private boolean endOfText;
+    private volatile long typedCount;
+    // the task typed after this task, guarded by this
+    @Nullable
+    private TypingTask nextTask;
+    private volatile boolean cancelled;
+    private volatile boolean finished;
+    @Nullable
+    private volatile IOException error;
+
+    /**
+     * Constructor to type the text
+     *
+     * @param typer the typer
+     * @param text the text
+     * @param listener the listener
+     */
+    TypingTask(@NonNull final KeyTyper typer, @NonNull final CharSequence text, @Nullable final Listener listener) {
+        this(typer, text, 0, listener);
+    }
+
+    /**
+     * Constructor to type the rest of the text
+     *
+     * @param typer the typer, with the failed step to retry if any
+     * @param text the text
+     * @param start the index to start from
+     * @param listener the listener
+     */
+    TypingTask(@NonNull final KeyTyper typer, @NonNull final CharSequence text, final int start, @Nullable final Listener listener) {
+        this.typer = typer;
+        this.listener = listener;
+        this.text = text;
+        reader = null;
+        chunk = null;
+        chunkBuffer = null;
+        position = start;
+        end = text.length();
+    }
+
+    /**
+     * Constructor to type the text read from the reader
+     *
+     * @param typer the typer
+     * @param reader the reader
+     * @param listener the listener
+     */
+    TypingTask(@NonNull final KeyTyper typer, @NonNull final Reader reader, @Nullable final Listener listener) {
+        this.typer = typer;
+        this.listener = listener;
+        text = null;
+        this.reader = reader;
+        chunk = new char[CHUNK_SIZE];
+        chunkBuffer = CharBuffer.wrap(chunk);
+    }
+
+    /**
+     * Set the task typed after this task, it becomes the Input Report source when this task finishes
+     *
+     * @param task the task
+     * @return false if this task has already finished: start the task instead
+     */
+    synchronized boolean setNextTask(@NonNull final TypingTask task) {
+        if (finished) {
+            return false;
+        }
+        nextTask = task;
+        return true;
+    }
+
+    /**
+     * Cancels typing, the keys being pressed are released
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Check if the task has been cancelled
+     *
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Check if the task has finished: typed all, cancelled, or failed to read
+     *
+     * @return true if finished
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Obtains the number of characters typed so far
+     *
+     * @return the number of characters
+     */
+    public long getTypedCount() {
+        return typedCount;
+    }
+
+    /**
+     * Obtains the error occurred while reading the text
+     *
+     * @return the error, null if no error
+     */
+    @Nullable
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public boolean onInputReportSlotsAvailable(@NonNull final HidPipeline pipeline, int freeSlots) {
+        if (finished) {
+            return false;
+        }
+
+        final long startCount = typedCount;
+        final long startReportCount = typer.getReportCount();
+        while (!cancelled && freeSlots - (typer.getReportCount() - startReportCount) >= KeyTyper.MAX_REPORTS_PER_STEP) {
+            if (position == end && !readChunk()) {
+                break;
+            }
+
+            final int next = typer.type(text != null ? text : chunkBuffer, position, end);
+            if (next == position) {
+                // the queue has been filled by another sender, the position is typed again on the next call
+                break;
+            }
+            typedCount += next - position;
+            position = next;
+        }
+
+        if (typedCount != startCount && listener != null) {
+            listener.onProgress(this, typedCount);
+        }
+
+        if (cancelled || (endOfText && position == end)) {
+            if (freeSlots - (typer.getReportCount() - startReportCount) < 1) {
+                // wait for a slot to release the keys
+                return true;
+            }
+            return !finish(pipeline);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next chunk from the reader
+     *
+     * @return true if read, false at the end of the text or on an error
+     */
+    private boolean readChunk() {
+        if (reader == null || endOfText) {
+            endOfText = true;
+            return false;
+        }
+
+        try {
+            final int length = reader.read(chunk, 0, chunk.length);
+            if (length < 0) {
+                endOfText = true;
+                return false;
+            }
+            chunkBuffer.clear();
+            chunkBuffer.limit(length);
+            position = 0;
+            end = length;
+            return true;
+        } catch (final IOException e) {
+            error = e;
+            endOfText = true;
+            return false;
+        }
+    }
+
+    /**
+     * Releases the keys, closes the reader, notifies the listener, and starts the next task
+     *
+     * @param pipeline the pipeline
+     * @return true if finished, false if the keys could not be released
+     */
+    private boolean finish(@NonNull final HidPipeline pipeline) {
+        if (!typer.finish()) {
+            return false;
+        }
+        final TypingTask next;
+        synchronized (this) {
+            finished = true;
+            next = nextTask;
+            nextTask = null;
+        }
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (final IOException ignored) {
+            }
+        }
+        if (listener != null) {
+            listener.onFinished(this);
+        }
+        if (next != null) {
+            pipeline.setInputReportSource(next);
+        }
+        return true;
+    }
+}